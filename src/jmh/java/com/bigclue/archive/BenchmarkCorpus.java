@@ -0,0 +1,169 @@
+package com.bigclue.archive;
+
+import java.util.Random;
+
+/**
+ * Generates message bodies that look like the ones the archive actually deals with, at any size, so that the
+ *   benchmarks exercise the same paths (and the same regular expression backtracking) as real mail does.
+ * Generation is deterministic for a given kind, size and seed.
+ */
+public class BenchmarkCorpus {
+  private BenchmarkCorpus() {
+    // Prevent instantiation
+  }
+
+  public enum Kind {
+    /** Gmail: a div per line, empty divs for blank lines, and quoted replies nested in blockquotes. */
+    GMAIL_NESTED_DIVS,
+    /** Blogger: images in tr-caption-container tables and separator divs with links to the full-size image. */
+    BLOGGER_CAPTION_TABLES,
+    /** A long plain-text message, converted to paragraphs with a br at the end of each line. */
+    PLAIN_TEXT,
+    /** Apple Mail: mostly images, each in its own styled div, with a few lines of text. */
+    IMAGE_HEAVY
+  }
+
+  private static final String[] WORDS = {"the", "kids", "went", "to", "Grandma's", "house", "and", "we", "saw",
+      "a", "lot", "of", "animals", "on", "way", "back", "Sunday", "was", "Erika's", "birthday", "love", "Dad",
+      "Jerusalem", "pictures", "of", "me", "with", "that", "we", "had", "&amp;", "fun", "trip", "weather", "great"};
+
+  /**
+   * Returns a body of the given kind that is about size characters long.
+   */
+  static String body(Kind kind, int size, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(size + 1024);
+    int image = 0;
+    while (sb.length() < size) {
+      switch (kind) {
+        case GMAIL_NESTED_DIVS -> appendGmail(sb, random);
+        case BLOGGER_CAPTION_TABLES -> appendBlogger(sb, random, image++);
+        case PLAIN_TEXT -> appendPlainText(sb, random);
+        case IMAGE_HEAVY -> appendImages(sb, random, image += 8);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns a whole HTML document (head and body) for HtmlCleaner.cleanHtml.
+   */
+  static String html(Kind kind, int size, long seed) {
+    return "<html><head><meta charset=\"UTF-8\"><title>" + kind + "</title></head>\n<body>\n"
+        + body(kind, size, seed) + "\n</body></html>\n";
+  }
+
+  /**
+   * Returns email subjects like the ones that end up as directory names.
+   */
+  static String[] subjects(int count, long seed) {
+    Random random = new Random(seed);
+    String[] subjects = new String[count];
+    for (int i = 0; i < count; i++) {
+      String prefix = switch (random.nextInt(4)) {
+        case 0 -> "What's up: ";
+        case 1 -> "Re: ";
+        case 2 -> "Fwd: What's Up - ";
+        default -> "";
+      };
+      subjects[i] = prefix + sentence(random, 3 + random.nextInt(8)).replace("&amp;", "&")
+          + (random.nextBoolean() ? "!" : "... (part " + (i % 5 + 1) + ")");
+    }
+    return subjects;
+  }
+
+  /**
+   * Returns attachment filenames, some of which need sanitizing.
+   */
+  static String[] filenames(int count, long seed) {
+    Random random = new Random(seed);
+    String[] filenames = new String[count];
+    for (int i = 0; i < count; i++) {
+      filenames[i] = switch (random.nextInt(4)) {
+        case 0 -> "IMG_" + (1000 + i) + ".JPG";
+        case 1 -> "2014-09-13_10-55-12_DRW_" + (7000 + i) + ".jpeg";
+        case 2 -> "Photo " + i + " (edited).heic";
+        default -> "Scan%20of%20" + WORDS[random.nextInt(WORDS.length)] + "'s letter #" + i + ".pdf";
+      };
+    }
+    return filenames;
+  }
+
+  private static void appendGmail(StringBuilder sb, Random random) {
+    sb.append("<div dir=\"ltr\">");
+    int lines = 2 + random.nextInt(6);
+    for (int i = 0; i < lines; i++) {
+      sb.append("<div>");
+      if (random.nextInt(4) == 0) {
+        sb.append("<span style=\"font-size:12.8px\"><font face=\"arial, sans-serif\">")
+            .append(sentence(random, 8 + random.nextInt(20))).append("</font></span>");
+      } else {
+        sb.append(sentence(random, 5 + random.nextInt(30)));
+      }
+      sb.append(random.nextInt(3) == 0 ? "&nbsp;</div>" : "</div>").append("<div><br></div>");
+    }
+    if (random.nextInt(3) == 0) {
+      sb.append("<br><div class=\"gmail_quote\"><div dir=\"ltr\" class=\"gmail_attr\">On Sun, Sep 14, 2014 at 8:53 AM")
+          .append(" Randy Wilson &lt;<a href=\"mailto:randy@example.com\">randy@example.com</a>&gt; wrote:<br></div>")
+          .append("<blockquote class=\"gmail_quote\" style=\"margin:0px 0px 0px 0.8ex;border-left:1px solid ")
+          .append("rgb(204,204,204);padding-left:1ex\"><div dir=\"ltr\"><div>")
+          .append(sentence(random, 20)).append("<br>").append(sentence(random, 12))
+          .append("</div></div></blockquote></div>");
+    }
+    sb.append("</div>\n");
+  }
+
+  private static void appendBlogger(StringBuilder sb, Random random, int image) {
+    String name = "2015-12-31_13-44-" + (10 + image % 50) + "_IMG_" + (8500 + image) + ".JPG";
+    if (random.nextBoolean()) {
+      sb.append("<table align=\"center\" cellpadding=\"0\" cellspacing=\"0\" class=\"tr-caption-container\"")
+          .append(" style=\"margin-left: auto; margin-right: auto; text-align: center;\"><tbody><tr>")
+          .append("<td style=\"text-align: center;\"><a href=\"full/").append(name)
+          .append("\" imageanchor=\"1\" style=\"margin-left: auto; margin-right: auto;\"><img border=\"0\"")
+          .append(" height=\"480\" src=\"small/").append(name).append("\" width=\"640\"></a></td></tr>")
+          .append("<tr><td class=\"tr-caption\" style=\"text-align: center;\">").append(sentence(random, 6))
+          .append("</td></tr></tbody></table>\n");
+    } else {
+      sb.append("<div class=\"separator\" style=\"clear: both; text-align: center;\"><a href=\"full/").append(name)
+          .append("\" style=\"margin-left: 1em; margin-right: 1em;\"><img border=\"0\" height=\"432\" src=\"small/")
+          .append(name).append("\" width=\"640\"></a></div>\n");
+    }
+    sb.append("<div>").append(sentence(random, 15 + random.nextInt(40))).append("</div><div><br></div>\n");
+  }
+
+  private static void appendPlainText(StringBuilder sb, Random random) {
+    sb.append("<p>");
+    int lines = 1 + random.nextInt(8);
+    for (int i = 0; i < lines; i++) {
+      if (i > 0) {
+        sb.append("<br>");
+      }
+      sb.append(sentence(random, 8 + random.nextInt(6)));
+    }
+    sb.append("</p>\n");
+  }
+
+  private static void appendImages(StringBuilder sb, Random random, int firstImage) {
+    String style = "margin-top: 0px; margin-right: 0px; margin-bottom: 0px; margin-left: 0px; font: normal normal "
+        + "normal 12px/normal Helvetica; color: rgb(0, 0, 0); min-height: 14px; ";
+    sb.append("<div style=\"").append(style).append("\">").append(sentence(random, 10)).append("</div>");
+    for (int i = 0; i < 8; i++) {
+      sb.append("<div style=\"").append(style).append("\"><br></div>")
+          .append("<div style=\"").append(style).append("\"><img src=\"IMG_").append(firstImage + i)
+          .append(".jpg\"></div>");
+    }
+    sb.append('\n');
+  }
+
+  private static String sentence(Random random, int words) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      String word = WORDS[random.nextInt(WORDS.length)];
+      sb.append(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+    }
+    return sb.append('.').toString();
+  }
+}
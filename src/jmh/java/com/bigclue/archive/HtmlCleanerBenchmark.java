@@ -0,0 +1,95 @@
+package com.bigclue.archive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures HtmlCleaner on generated message bodies of each kind, at several sizes, to show how each step scales
+ *   with the size of the document.
+ * Run with "-prof gc" to see the allocation rate (gc.alloc.rate.norm is bytes allocated per operation).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HtmlCleanerBenchmark {
+  @Param({"GMAIL_NESTED_DIVS", "BLOGGER_CAPTION_TABLES", "PLAIN_TEXT", "IMAGE_HEAVY"})
+  public BenchmarkCorpus.Kind kind;
+
+  @Param({"4096", "65536", "1048576"})
+  public int size;
+
+  private String html;
+  private String body;
+  private String paragraphs;
+
+  @Setup
+  public void setUp() {
+    html = BenchmarkCorpus.html(kind, size, 1);
+    body = BenchmarkCorpus.body(kind, size, 1);
+    paragraphs = SinglePassCleaner.cleanParagraphs(body);
+  }
+
+  @Benchmark
+  public String cleanHtml() {
+    return HtmlCleaner.cleanHtml(html);
+  }
+
+  @Benchmark
+  public String cleanHtmlStreaming() throws IOException {
+    StringWriter out = new StringWriter(html.length());
+    HtmlCleaner.clean(new StringReader(html), out);
+    return out.toString();
+  }
+
+  @Benchmark
+  public String cleanHtmlInMemory() {
+    return HtmlCleaner.cleanHtmlInMemory(html);
+  }
+
+  @Benchmark
+  public String cleanBody() {
+    return HtmlCleaner.cleanBody(body);
+  }
+
+  @Benchmark
+  public String cleanBodyRegex() {
+    return HtmlCleaner.cleanBodyRegex(body);
+  }
+
+  @Benchmark
+  public String cleanParagraphs() {
+    return SinglePassCleaner.cleanParagraphs(body);
+  }
+
+  @Benchmark
+  public String fixLinksAndTables() {
+    return HtmlCleaner.fixLinksAndTables(paragraphs);
+  }
+
+  @Benchmark
+  public String fixLinksAndTablesRegex() {
+    return HtmlCleaner.fixLinksAndTablesRegex(paragraphs);
+  }
+
+  @Benchmark
+  public String replaceActualLineBreaks() {
+    return HtmlCleaner.replaceActualLineBreaks(body);
+  }
+}
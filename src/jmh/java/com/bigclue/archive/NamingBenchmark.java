@@ -0,0 +1,62 @@
+package com.bigclue.archive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-message naming and escaping helpers in MailToHtml over a batch of realistic subjects and
+ *   filenames. Each operation handles the whole batch of 1000.
+ * Run with "-prof gc" to see the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NamingBenchmark {
+  private String[] subjects;
+  private String[] filenames;
+
+  @Setup
+  public void setUp() {
+    subjects = BenchmarkCorpus.subjects(1000, 1);
+    filenames = BenchmarkCorpus.filenames(1000, 1);
+    // sanitizeFilename logs each name it changes; keep that cost but not the noise.
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+  }
+
+  @Benchmark
+  public void subjectToDirName(Blackhole blackhole) {
+    for (String subject : subjects) {
+      blackhole.consume(MailToHtml.subjectToDirName(subject));
+    }
+  }
+
+  @Benchmark
+  public void sanitizeFilename(Blackhole blackhole) {
+    for (String filename : filenames) {
+      blackhole.consume(MailToHtml.sanitizeFilename(filename));
+    }
+  }
+
+  @Benchmark
+  public void escapeHtml(Blackhole blackhole) {
+    for (String subject : subjects) {
+      blackhole.consume(MailToHtml.escapeHtml(subject));
+    }
+  }
+}
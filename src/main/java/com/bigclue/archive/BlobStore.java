@@ -0,0 +1,81 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Archive-wide store of attachment contents, keyed by SHA-256 digest, so that a photo that was forwarded to a dozen
+ *   messages is only stored once.
+ * Blobs live in journalRoot/.blobs/ab/abcdef..., and each message directory gets a hard link to the blob under the
+ *   attachment's own filename. If hard links aren't possible (e.g., the file system doesn't support them), a relative
+ *   symbolic link is used instead, and if that fails too, the blob is copied.
+ */
+class BlobStore {
+  static final String BLOB_DIR = ".blobs";
+
+  private BlobStore() {
+    // Prevent instantiation
+  }
+
+  /**
+   * Returns the path a blob with the given digest is (or would be) stored at.
+   */
+  static Path blobPath(Path journalRoot, String digest) {
+    return journalRoot.resolve(BLOB_DIR).resolve(digest.substring(0, 2)).resolve(digest);
+  }
+
+  /**
+   * Moves a freshly written temp file into the store. If the store already has a blob with the same content, the
+   *   temp file is deleted instead, so existing bytes are never rewritten.
+   * @param journalRoot - Journal directory that holds the .blobs directory
+   * @param tempFile - Temp file, with its size and digest
+   * @return Path of the blob holding the content
+   * @throws IOException - If the blob can't be written
+   */
+  static Path store(Path journalRoot, MailToHtml.StreamedFile tempFile) throws IOException {
+    Path blob = blobPath(journalRoot, tempFile.digest());
+    if (Files.exists(blob) && Files.size(blob) == tempFile.size()) {
+      log("  ## Reusing stored blob " + tempFile.digest());
+      Files.delete(tempFile.file());
+      return blob;
+    }
+    Files.createDirectories(blob.getParent());
+    try {
+      Files.move(tempFile.file(), blob, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // Another thread stored the same content first.
+      Files.delete(tempFile.file());
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.file(), blob, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return blob;
+  }
+
+  /**
+   * Makes 'link' refer to the blob's content: a hard link if possible, otherwise a relative symbolic link,
+   *   otherwise a copy.
+   */
+  static void link(Path blob, Path link) throws IOException {
+    try {
+      Files.createLink(link, blob);
+      return;
+    } catch (UnsupportedOperationException | IOException e) {
+      log("  ## Could not hard link " + link.getFileName() + " (" + e.getMessage() + "); trying a symbolic link");
+    }
+    try {
+      // Message directories are all directly under the journal root, so a relative link stays valid when the
+      // message's .tmp directory is renamed, or when the whole journal is moved.
+      Files.createSymbolicLink(link, link.getParent().relativize(blob));
+      return;
+    } catch (UnsupportedOperationException | IOException e) {
+      log("  ## Could not create symbolic link " + link.getFileName() + " (" + e.getMessage() + "); copying");
+    }
+    Files.copy(blob, link, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
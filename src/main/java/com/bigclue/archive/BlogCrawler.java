@@ -0,0 +1,138 @@
+package com.bigclue.archive;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Mirrors a blog by fetching its month archive pages and posts several at a time, since a sequential crawl spends
+ *   most of its time waiting on round trips. Each month page that is fetched queues up its posts right away, so
+ *   posts from early months are being saved while later month pages are still being read.
+ * Listing pages are fetched through an HttpCache. A month whose page hasn't changed since a run that saved all of its
+ *   posts is skipped without fetching any of them; otherwise, once every post of the month is saved, it's marked
+ *   complete for next time.
+ * Each worker thread fetches one page at a time, so the number of page requests in flight never exceeds the number
+ *   of workers. (Images are downloaded by ImageDownloader, which has a bound of its own.) Each post is still written
+ *   to a tmp directory and moved into place, as with BlogToHtml.saveBlogPost.
+ */
+class BlogCrawler {
+  /** Default number of requests to have in flight at once. */
+  static final int DEFAULT_MAX_REQUESTS = 8;
+
+  private final ExecutorService executor;
+  private final int maxRequests;
+  private final Path outputDir;
+  private final HttpCache cache;
+  /** Tasks that have been submitted, in order; month tasks add their post tasks before they finish. */
+  private final Queue<Future<Void>> pending = new ConcurrentLinkedQueue<>();
+  private final Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger postCount = new AtomicInteger();
+  private final AtomicInteger savedCount = new AtomicInteger();
+  private final AtomicBoolean failed = new AtomicBoolean();
+
+  private BlogCrawler(Path outputDir, int maxRequests, HttpCache cache) {
+    this.executor = Executors.newFixedThreadPool(maxRequests);
+    this.maxRequests = maxRequests;
+    this.outputDir = outputDir;
+    this.cache = cache;
+  }
+
+  /**
+   * Saves every post of the blog that isn't in outputDir yet, and waits for all of them to finish.
+   * @param blogUrl - URL of the blog's main page
+   * @param outputDir - Directory that holds one subdirectory per post
+   * @param maxRequests - Number of requests (and worker threads) to have in flight at once
+   * @param cache - Cache to fetch the main page and month archive pages through
+   * @return Number of posts saved (not counting skipped ones)
+   * @throws Exception - The first exception thrown by any worker, after all workers have stopped
+   */
+  static int crawl(String blogUrl, Path outputDir, int maxRequests, HttpCache cache) throws Exception {
+    BlogCrawler crawler = new BlogCrawler(outputDir, maxRequests, cache);
+    try {
+      return crawler.crawl(blogUrl);
+    } finally {
+      crawler.executor.shutdown();
+    }
+  }
+
+  private int crawl(String blogUrl) throws Exception {
+    log("Reading post list using " + maxRequests + " connections...");
+    for (String monthUrl : BlogToHtml.getMonthArchiveUrls(blogUrl, cache)) {
+      submit(() -> {
+        List<String> postUrls = BlogToHtml.getPostUrlsToSave(monthUrl, cache);
+        if (postUrls.isEmpty()) {
+          cache.markComplete(monthUrl);
+          return;
+        }
+        // The last of the month's posts to be saved marks the month complete.
+        AtomicInteger unsavedCount = new AtomicInteger(postUrls.size());
+        for (String postUrl : postUrls) {
+          postCount.incrementAndGet();
+          submit(() -> {
+            log(postUrl);
+            if (BlogToHtml.saveBlogPost(postUrl, outputDir, claimedDirs)) {
+              savedCount.incrementAndGet();
+            }
+            if (unsavedCount.decrementAndGet() == 0) {
+              cache.markComplete(monthUrl);
+            }
+          });
+        }
+      });
+    }
+    Exception firstFailure = null;
+    Future<Void> future;
+    // A month's post tasks are queued before its own task finishes, so once the queue is empty, everything is done.
+    while ((future = pending.poll()) != null) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (firstFailure == null) {
+          firstFailure = e.getCause() instanceof Exception cause ? cause : e;
+        }
+      }
+    }
+    if (firstFailure != null) {
+      throw firstFailure;
+    }
+    log("Saved " + savedCount.get() + " of " + postCount.get() + " posts");
+    return savedCount.get();
+  }
+
+  /** A step of the crawl, which may fetch a page. */
+  @FunctionalInterface
+  private interface Step {
+    void run() throws Exception;
+  }
+
+  /**
+   * Queues a step to run on a worker thread. Once any step has failed, the ones that haven't started are skipped.
+   */
+  private void submit(Step step) {
+    Callable<Void> task = () -> {
+      if (failed.get()) {
+        return null;
+      }
+      try {
+        step.run();
+      } catch (Exception e) {
+        failed.set(true);
+        throw e;
+      }
+      return null;
+    };
+    pending.add(executor.submit(task));
+  }
+}
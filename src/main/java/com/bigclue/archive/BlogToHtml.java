@@ -6,6 +6,7 @@ import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,32 +14,70 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static com.bigclue.archive.HtmlCleaner.cleanBody;
 import static com.bigclue.archive.MailToHtml.log;
-import static com.bigclue.archive.MailToHtml.sanitizeFilename;
 
 @SuppressWarnings({"java:S106", "java:S1148"})
 public class BlogToHtml {
 
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws Exception {
     String blogUrl = "https://notabletimes.blogspot.com";
     Path outputDir = Paths.get("TravelBlog");
-    System.out.println("Reading post list...");
-    List<String> allPostUrls = getAllPostUrls(blogUrl);
-    for (String postUrl : allPostUrls) {
-      System.out.println(postUrl);
-      saveBlogPost(postUrl, outputDir);
+    int threads = 1;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-blogUrl" -> blogUrl = args[++i];
+        case "-outputDir" -> outputDir = Paths.get(args[++i]);
+        case "-threads" -> threads = Integer.parseInt(args[++i]);
+        case "-resizeLocally" -> resizeSmallImagesLocally();
+        default -> {
+          System.err.println("Usage: BlogToHtml [-blogUrl url] [-outputDir directory] [-threads n] [-resizeLocally]");
+          return;
+        }
+      }
     }
+    // Month pages are fetched through the cache, so months that haven't changed since the last run can be skipped.
+    HttpCache cache = new HttpCache(outputDir.resolve(HttpCache.CACHE_DIR));
+    if (threads > 1) {
+      // Fetch month pages and posts several at a time.
+      BlogCrawler.crawl(blogUrl, outputDir, threads, cache);
+    } else {
+      System.out.println("Reading post list...");
+      for (String monthUrl : getMonthArchiveUrls(blogUrl, cache)) {
+        for (String postUrl : getPostUrlsToSave(monthUrl, cache)) {
+          System.out.println(postUrl);
+          saveBlogPost(postUrl, outputDir);
+        }
+        cache.markComplete(monthUrl);
+      }
+    }
+    log(cache.summary());
   }
 
   /**
    * Fetches the main blog page and returns a list of all month archive URLs (e.g. .../2025/06/)
    */
   public static List<String> getMonthArchiveUrls(String blogUrl) throws IOException {
+    return getMonthArchiveUrls(Jsoup.connect(blogUrl).get());
+  }
+
+  /**
+   * Same as getMonthArchiveUrls(blogUrl), but fetches the main page through the cache.
+   */
+  static List<String> getMonthArchiveUrls(String blogUrl, HttpCache cache) throws IOException {
+    return getMonthArchiveUrls(cache.fetch(blogUrl).document());
+  }
+
+  private static List<String> getMonthArchiveUrls(Document doc) {
     List<String> monthUrls = new ArrayList<>();
-    Document doc = Jsoup.connect(blogUrl).get();
     Elements links = doc.select("a.post-count-link");
     for (Element link : links) {
       String href = link.attr("href");
@@ -54,8 +93,24 @@ public class BlogToHtml {
    * Given a month archive URL, fetches the page and returns a list of all post URLs for that month.
    */
   public static List<String> getPostUrlsForMonth(String monthUrl) throws IOException {
+    return getPostUrlsForMonth(Jsoup.connect(monthUrl).get());
+  }
+
+  /**
+   * Fetches a month archive page through the cache and returns the URLs of its posts, or an empty list if the page
+   * hasn't changed since a run that saved all of them (see HttpCache.markComplete).
+   */
+  static List<String> getPostUrlsToSave(String monthUrl, HttpCache cache) throws IOException {
+    HttpCache.Page page = cache.fetch(monthUrl);
+    if (page.isUnchanged() && page.isComplete()) {
+      log("## Skipping unchanged month: " + monthUrl);
+      return List.of();
+    }
+    return getPostUrlsForMonth(page.document());
+  }
+
+  private static List<String> getPostUrlsForMonth(Document doc) {
     List<String> postUrls = new ArrayList<>();
-    Document doc = Jsoup.connect(monthUrl).get();
     Elements postLinks = doc.select("ul.posts li a");
     for (Element link : postLinks) {
       postUrls.add(link.attr("href"));
@@ -79,6 +134,16 @@ public class BlogToHtml {
    * Fetches a blog post URL, extracts the date, title, and body, and writes the HTML to dirName/dirName.html.
    */
   public static void saveBlogPost(String postUrl, Path outputDir) throws IOException {
+    saveBlogPost(postUrl, outputDir, ConcurrentHashMap.newKeySet());
+  }
+
+  /**
+   * Same as saveBlogPost(postUrl, outputDir), but safe to call from several threads at once: a post is skipped if
+   * another thread has already claimed its directory name, so two posts can't write to the same tmp directory.
+   * @param claimedDirs - Names of the directories claimed so far, shared by all threads
+   * @return True if the post was saved, false if it was skipped
+   */
+  static boolean saveBlogPost(String postUrl, Path outputDir, Set<String> claimedDirs) throws IOException {
     Document doc = Jsoup.connect(postUrl).get();
     // Extract date
     Element dateHeader = doc.selectFirst("h2.date-header");
@@ -89,9 +154,9 @@ public class BlogToHtml {
     String articleTitle = h3 != null ? h3.text().trim() : postUrl.replaceAll(".*/", "");
     String dirName = receivedDate + "_" + MailToHtml.subjectToDirName(articleTitle);
     Path articleDir = outputDir.resolve(dirName);
-    if (Files.exists(articleDir)) {
+    if (Files.exists(articleDir) || !claimedDirs.add(dirName)) {
       log("## Skipping existing article: " + dirName);
-      return;
+      return false;
     }
     Path tmpDir = outputDir.resolve("tmp." + dirName);
     Files.createDirectories(tmpDir);
@@ -117,127 +182,110 @@ public class BlogToHtml {
     Path htmlFile = tmpDir.resolve(dirName + ".html");
     Files.writeString(htmlFile, html.toString(), StandardCharsets.UTF_8);
     Files.move(tmpDir, articleDir, StandardCopyOption.ATOMIC_MOVE);
+    return true;
   }
 
-  private static int imageCounter = 1;
+  /** Downloads the images of every post; shared so that connections are reused across posts. */
+  private static final ImageDownloader imageDownloader =
+      new ImageDownloader(ImageDownloader.DEFAULT_MAX_DOWNLOADS, ImageDownloader.DEFAULT_MAX_DOWNLOADS_PER_POST);
+
+  /** Makes the small images from the full ones when set (with -resizeLocally); otherwise they're downloaded. */
+  private static volatile ImageResizer smallImageResizer = null;
 
-  private static void fetchImages(Element body, Path outputDir) {
+  private static final String BLOGGER_IMAGE_PREFIX = "https://blogger.googleusercontent.com/img/";
+
+  /**
+   * Makes each post's small images from its full ones instead of downloading Blogger's copies.
+   */
+  static void resizeSmallImagesLocally() {
+    if (smallImageResizer == null) {
+      smallImageResizer = new ImageResizer(Runtime.getRuntime().availableProcessors(), MemoryBudget.IMAGES);
+    }
+  }
+
+  /**
+   * Downloads the full and small versions of each Blogger image in the body into outputDir/full and outputDir/small,
+   * several at a time, and then points the links and img tags at the local copies.
+   * With resizeSmallImagesLocally, a small image whose link goes to a full one is made from the full one instead,
+   * and only downloaded if that fails.
+   */
+  private static void fetchImages(Element body, Path outputDir) throws IOException {
     if (body == null) return;
     Elements anchors = body.select("a[href]");
     Path fullDir = outputDir.resolve("full");
     Path smallDir = outputDir.resolve("small");
+    Files.createDirectories(fullDir);
+    Files.createDirectories(smallDir);
+    ImageResizer resizer = smallImageResizer;
+    ImageDownloader.PostDownloads downloads = imageDownloader.forPost();
+    Map<Element, Future<String>> fullImages = new LinkedHashMap<>();
+    Map<Element, Future<String>> smallImages = new LinkedHashMap<>();
+    // Link of each small image to be made from the full image it links to.
+    Map<Element, Element> smallImagesToResize = new LinkedHashMap<>();
     try {
-      Files.createDirectories(fullDir);
-      Files.createDirectories(smallDir);
-    } catch (IOException e) {
-      // Ignore or log
-    }
-    for (Element a : anchors) {
-      String href = a.attr("href");
-      Element img = a.selectFirst("img[src]");
-      if (href.startsWith("https://blogger.googleusercontent.com/img/")) {
-        String imageFilename = getImageFilename(href);
-        Path localImage = fullDir.resolve(imageFilename);
-
-        if (Files.exists(localImage)) {
-          log("  ## Skipping existing file: " + imageFilename);
-        } else {
-          // Download the full image
-          href = reEncodeUrl(href);
-          try (java.io.InputStream in = new java.net.URL(href).openStream()) {
-            Path tmpFile = fullDir.resolve("tmp." + imageFilename);
-            Files.copy(in, tmpFile, StandardCopyOption.REPLACE_EXISTING);
-            Files.move(tmpFile, localImage, StandardCopyOption.REPLACE_EXISTING);
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
+      for (Element a : anchors) {
+        String href = a.attr("href");
+        if (href.startsWith(BLOGGER_IMAGE_PREFIX)) {
+          fullImages.put(a, downloads.download(href, fullDir));
         }
-        a.attr("href", "full/" + imageFilename);
-      }
-      if (img != null) {
-        String src = img.attr("src");
-        if (src.startsWith("https://blogger.googleusercontent.com/img/")) {
-          String smallFilename = getImageFilename(src);
-          Path localSmallImage = smallDir.resolve(smallFilename);
-
-          if (Files.exists(localSmallImage)) {
-            log("  ## Skipping existing file: " + smallFilename);
+        Element img = a.selectFirst("img[src]");
+        if (img != null && img.attr("src").startsWith(BLOGGER_IMAGE_PREFIX)) {
+          if (resizer != null && fullImages.containsKey(a)) {
+            smallImagesToResize.put(img, a);
           } else {
-            src = reEncodeUrl(src);
-            // Download the small image
-            try (java.io.InputStream in = new java.net.URL(src).openStream()) {
-              Files.copy(in, smallDir.resolve("tmp." + smallFilename), StandardCopyOption.REPLACE_EXISTING);
-              Files.move(smallDir.resolve("tmp." + smallFilename), localSmallImage, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-              // Ignore or log
-            }
+            smallImages.put(img, downloads.download(img.attr("src"), smallDir));
           }
-          img.attr("src", "small/" + smallFilename);
         }
       }
-    }
-  }
-
-  private static String getImageFilename(String url) {
-    // Check if URL has a normal image filename (period followed by 3-4 chars at end)
-    int lastSlash = url.lastIndexOf('/');
-    if (lastSlash >= 0) {
-      String urlPart = url.substring(lastSlash + 1);
-      if (urlPart.matches(".*\\.[a-zA-Z]{3,4}$")) {
-        return sanitizeFilename(urlPart);
+      for (Map.Entry<Element, Future<String>> entry : fullImages.entrySet()) {
+        entry.getKey().attr("href", "full/" + entry.getValue().get());
       }
-    }
-
-    // Otherwise, get filename from Content-Disposition header
-    try {
-      java.net.HttpURLConnection connection = (java.net.HttpURLConnection) new java.net.URL(url).openConnection();
-      try {
-        connection.setRequestMethod("HEAD"); // Only get headers, not body
-        connection.setRequestProperty("User-Agent", "Mozilla/5.0");
-        connection.setConnectTimeout(5000); // 5 second timeout
-        connection.setReadTimeout(5000);
-
-        String contentDisposition = connection.getHeaderField("Content-Disposition");
-        if (contentDisposition != null && contentDisposition.contains("filename=")) {
-          String filename = contentDisposition.substring(contentDisposition.indexOf("filename=") + 9);
-          filename = filename.replaceAll("(^\")|(\"$)", "");
-          return sanitizeFilename(filename);
+      Map<Element, Future<Void>> resizes = new LinkedHashMap<>();
+      Map<Element, String> resizedFilenames = new LinkedHashMap<>();
+      for (Map.Entry<Element, Element> entry : smallImagesToResize.entrySet()) {
+        Element img = entry.getKey();
+        String fullFilename = fullImages.get(entry.getValue()).get();
+        String smallFilename = ImageDownloader.filenameFromUrl(img.attr("src"));
+        smallFilename = smallFilename != null ? smallFilename : fullFilename;
+        resizedFilenames.put(img, smallFilename);
+        resizes.put(img, resizer.resize(fullDir.resolve(fullFilename), smallDir.resolve(smallFilename), smallImageBounds(img)));
+      }
+      for (Map.Entry<Element, Future<Void>> entry : resizes.entrySet()) {
+        Element img = entry.getKey();
+        try {
+          entry.getValue().get();
+          img.attr("src", "small/" + resizedFilenames.get(img));
+        } catch (ExecutionException e) {
+          log("  ## Downloading small image instead of making it: " + e.getCause());
+          smallImages.put(img, downloads.download(img.attr("src"), smallDir));
         }
-
-        // Fallback: generate name with proper extension from Content-Type
-        String contentType = connection.getContentType();
-        String extension = getExtensionFromContentType(contentType);
-        return "image" + (imageCounter++) + extension;
-
-      } finally {
-        connection.disconnect(); // Explicitly close connection
       }
-    } catch (Exception e) {
-      return "image" + (imageCounter++) + ".jpg";
+      for (Map.Entry<Element, Future<String>> entry : smallImages.entrySet()) {
+        entry.getKey().attr("src", "small/" + entry.getValue().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while downloading images");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to download images", e.getCause());
     }
   }
 
-  private static String getExtensionFromContentType(String contentType) {
-    if (contentType != null) {
-      if (contentType.contains("png")) return ".png";
-      if (contentType.contains("gif")) return ".gif";
-      if (contentType.contains("webp")) return ".webp";
+  /**
+   * Returns the box a small image should fit in: the size in its Blogger URL, or else its width and height
+   * attributes, or else the default.
+   */
+  static ImageResizer.Bounds smallImageBounds(Element img) {
+    ImageResizer.Bounds bounds = ImageResizer.boundsFromUrl(img.attr("src"));
+    if (bounds != null) {
+      return bounds;
     }
-    return ".jpg"; // default
-  }
-
-  // Re-encode URL to handle spaces and line breaks.
-  // In particular, remove line breaks, and make sure spaces are %20, not literal spaces.
-  private static String reEncodeUrl(String url) {
-    try {
-      // Remove line breaks but preserve spaces, then properly encode
-      String cleanUrl = url.trim().replaceAll("\\r?\\n", "");
-      java.net.URI uri = new java.net.URI(cleanUrl);
-      return uri.toASCIIString();
-    } catch (Exception e) {
-      // Fallback: remove all whitespace since spaces in URLs are usually unintentional
-      return url.trim().replaceAll("\\s+", "");
+    String width = img.attr("width");
+    String height = img.attr("height");
+    if (width.matches("\\d+") && height.matches("\\d+")) {
+      return new ImageResizer.Bounds(Integer.parseInt(width), Integer.parseInt(height));
     }
+    return ImageResizer.Bounds.DEFAULT;
   }
 
   private static String reformatDate(String dateText) {
@@ -0,0 +1,42 @@
+package com.bigclue.archive;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer that keeps track of how many chars have been written through it, so that positions in the output
+ *   (like where an image part was encountered) can be recorded without keeping the output in memory.
+ */
+class CountingWriter extends FilterWriter {
+  private long count = 0;
+
+  CountingWriter(Writer out) {
+    super(out);
+  }
+
+  /**
+   * Returns the number of chars written so far.
+   */
+  long count() {
+    return count;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    out.write(c);
+    count++;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    out.write(cbuf, off, len);
+    count += len;
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    out.write(str, off, len);
+    count += len;
+  }
+}
@@ -0,0 +1,376 @@
+package com.bigclue.archive;
+
+import java.nio.CharBuffer;
+
+/**
+ * Finds where the head and body of an HTML document start and end, in one forward pass over its tags, without
+ *   regular expressions (which backtrack badly on multi-megabyte newsletters).
+ * Tag names are matched case-insensitively, and tags inside comments are ignored. If there is no &lt;body&gt; tag,
+ *   the body is taken to be whatever follows the head (or the &lt;html&gt; tag), up to &lt;/html&gt;.
+ * The parts are returned as views of the original text rather than copies.
+ */
+class HtmlBoundaries {
+  private final CharSequence html;
+  private int headStart = -1;
+  private int headEndTagStart = -1;
+  private int headEnd = -1;
+  private int htmlTagEnd = -1;
+  private int bodyTagStart = -1;
+  private int bodyStart = -1;
+  private int bodyEnd = -1;
+  private boolean hasBodyEndTag = false;
+  private boolean hasHtmlEndTagBeforeBody = false;
+
+  private HtmlBoundaries(CharSequence html) {
+    this.html = html;
+  }
+
+  /**
+   * Scans the given HTML for its head and body.
+   */
+  static HtmlBoundaries scan(CharSequence html) {
+    HtmlBoundaries boundaries = new HtmlBoundaries(html);
+    boundaries.scan();
+    return boundaries;
+  }
+
+  private void scan() {
+    int length = html.length();
+    int htmlEndTagStart = -1;
+    int pos = indexOf(html, '<', 0);
+    while (pos >= 0 && pos < length) {
+      if (startsWith(html, pos, "<!--")) {
+        int commentEnd = indexOf(html, "-->", pos + 4);
+        pos = commentEnd < 0 ? length : indexOf(html, '<', commentEnd + 3);
+        continue;
+      }
+      int tagEnd = indexOf(html, '>', pos);
+      if (tagEnd < 0) {
+        break;
+      }
+      if (bodyStart < 0) {
+        if (headStart < 0 && isTag(pos, "head")) {
+          headStart = pos;
+        } else if (headStart >= 0 && headEnd < 0 && isTag(pos, "/head")) {
+          headEndTagStart = pos;
+          headEnd = tagEnd + 1;
+        } else if (htmlTagEnd < 0 && isTag(pos, "html")) {
+          htmlTagEnd = tagEnd + 1;
+        } else if (isTag(pos, "body")) {
+          bodyTagStart = pos;
+          bodyStart = tagEnd + 1;
+        }
+      } else if (isTag(pos, "/body")) {
+        bodyEnd = pos;
+        hasBodyEndTag = true;
+        break;
+      }
+      if (htmlEndTagStart < 0 && isTag(pos, "/html")) {
+        htmlEndTagStart = pos;
+        if (bodyStart >= 0) {
+          break;
+        }
+        hasHtmlEndTagBeforeBody = true;
+      }
+      pos = indexOf(html, '<', tagEnd + 1);
+    }
+    if (bodyStart < 0) {
+      // No <body> tag, so the body is whatever comes after the head, or after <html>.
+      bodyStart = Math.max(Math.max(headEnd, htmlTagEnd), 0);
+      if (htmlEndTagStart >= 0 && htmlEndTagStart < bodyStart) {
+        htmlEndTagStart = -1;
+      }
+    }
+    if (bodyEnd < 0) {
+      bodyEnd = htmlEndTagStart >= bodyStart ? htmlEndTagStart : length;
+    }
+  }
+
+  /**
+   * Returns the contents of the head (between &lt;head&gt; and &lt;/head&gt;), or an empty sequence if there is none.
+   */
+  CharSequence head() {
+    if (headStart < 0 || headEnd < 0) {
+      return "";
+    }
+    int contentStart = indexOf(html, '>', headStart) + 1;
+    return view(contentStart, headEndTagStart);
+  }
+
+  /**
+   * Returns what comes between the head (or the &lt;html&gt; tag) and the &lt;body&gt; tag: usually just whitespace,
+   * but sometimes content that a sender put outside the body. Empty if there is no &lt;body&gt; tag.
+   */
+  CharSequence beforeBody() {
+    if (bodyTagStart < 0) {
+      return "";
+    }
+    return view(Math.max(Math.max(headEnd, htmlTagEnd), 0), bodyTagStart);
+  }
+
+  /**
+   * Returns the contents of the body, not including the &lt;body&gt; and &lt;/body&gt; tags.
+   */
+  CharSequence body() {
+    return view(bodyStart, bodyEnd);
+  }
+
+  /**
+   * Returns what follows the body, starting with &lt;/body&gt; or &lt;/html&gt; if there is one: usually just those
+   * end tags, but sometimes a footer added after them, or a whole second document.
+   */
+  CharSequence afterBody() {
+    return view(bodyEnd, html.length());
+  }
+
+  /**
+   * Returns the given HTML without any html or body tags, and without head sections (tags and contents), keeping
+   * everything else, including comments.
+   */
+  static String withoutDocumentTags(CharSequence html) {
+    StringBuilder sb = new StringBuilder(html.length());
+    int copied = 0;
+    int pos = indexOf(html, '<', 0);
+    while (pos >= 0 && pos < html.length()) {
+      if (startsWith(html, pos, "<!--")) {
+        int commentEnd = indexOf(html, "-->", pos + 4);
+        pos = commentEnd < 0 ? -1 : indexOf(html, '<', commentEnd + 3);
+        continue;
+      }
+      int tagEnd = indexOf(html, '>', pos);
+      if (tagEnd < 0) {
+        break;
+      }
+      int end = -1;
+      if (isTag(html, pos, "html") || isTag(html, pos, "/html") || isTag(html, pos, "body") || isTag(html, pos, "/body")) {
+        end = tagEnd + 1;
+      } else if (isTag(html, pos, "head")) {
+        int headEndTag = tagEnd;
+        while ((headEndTag = indexOf(html, '<', headEndTag)) >= 0 && !isTag(html, headEndTag, "/head")) {
+          headEndTag++;
+        }
+        end = headEndTag < 0 ? tagEnd + 1 : indexOf(html, '>', headEndTag) + 1;
+      }
+      if (end > 0) {
+        sb.append(html, copied, pos);
+        copied = end;
+        tagEnd = end - 1;
+      }
+      pos = indexOf(html, '<', tagEnd + 1);
+    }
+    return sb.append(html, copied, html.length()).toString();
+  }
+
+  /**
+   * Tells whether the document has a &lt;body&gt; tag.
+   */
+  boolean hasBodyTag() {
+    return bodyTagStart >= 0;
+  }
+
+  /**
+   * Returns the position where the contents of the body start (just after the &lt;body&gt; tag, if there is one).
+   */
+  int bodyStart() {
+    return bodyStart;
+  }
+
+  /**
+   * Tells whether there is an &lt;/html&gt; tag before the body, in which case a later one doesn't end the body.
+   */
+  boolean hasHtmlEndTagBeforeBody() {
+    return hasHtmlEndTagBeforeBody;
+  }
+
+  /**
+   * Returns the document with the body replaced, adding &lt;body&gt; and &lt;/body&gt; tags if it didn't have them.
+   */
+  String replaceBody(CharSequence newBody) {
+    StringBuilder sb = new StringBuilder(html.length() + newBody.length() - (bodyEnd - bodyStart) + 16);
+    sb.append(html, 0, bodyStart);
+    if (bodyTagStart < 0) {
+      sb.append("<body>");
+    }
+    sb.append(newBody);
+    if (!hasBodyEndTag) {
+      sb.append("</body>");
+    }
+    sb.append(html, bodyEnd, html.length());
+    return sb.toString();
+  }
+
+  /**
+   * Returns a view of the given text without leading and trailing whitespace (as defined by String.trim()).
+   */
+  static CharSequence trim(CharSequence s) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && s.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && s.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return s.subSequence(start, end);
+  }
+
+  private CharSequence view(int start, int end) {
+    return CharBuffer.wrap(html, start, end);
+  }
+
+  private boolean isTag(int pos, String name) {
+    return isTag(html, pos, name);
+  }
+
+  /**
+   * Tells whether there is a tag with the given name (e.g., "body" or "/body") at pos, ignoring case and attributes.
+   */
+  private static boolean isTag(CharSequence html, int pos, String name) {
+    if (!startsWith(html, pos + 1, name)) {
+      return false;
+    }
+    int after = pos + 1 + name.length();
+    if (after >= html.length()) {
+      return false;
+    }
+    char c = html.charAt(after);
+    return c == '>' || c == '/' || Character.isWhitespace(c);
+  }
+
+  private static boolean startsWith(CharSequence s, int pos, String lowercase) {
+    if (pos + lowercase.length() > s.length()) {
+      return false;
+    }
+    for (int i = 0; i < lowercase.length(); i++) {
+      if (Character.toLowerCase(s.charAt(pos + i)) != lowercase.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(CharSequence s, char c, int from) {
+    if (s instanceof String string) {
+      return string.indexOf(c, from);
+    }
+    if (s instanceof StringBuilder sb) {
+      return sb.indexOf(String.valueOf(c), from);
+    }
+    for (int i = from; i < s.length(); i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(CharSequence s, String target, int from) {
+    if (s instanceof String string) {
+      return string.indexOf(target, from);
+    }
+    if (s instanceof StringBuilder sb) {
+      return sb.indexOf(target, from);
+    }
+    for (int i = from; i <= s.length() - target.length(); i++) {
+      if (startsWith(s, i, target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the end of the body the same way scan() does, but in a body that is read a piece at a time, so that the
+   *   start of the body can be dealt with before the rest of it has been read.
+   */
+  static class BodyEndFinder {
+    private final boolean canHtmlEndTagEndBody;
+    /** Position of the next '<' to look at, or where to start looking for one. */
+    private int pos = 0;
+    /** Where to carry on looking for the end of the comment or tag at pos, or -1 if pos isn't in one. */
+    private int resumeFrom = -1;
+    private int bodyEnd = -1;
+    private boolean hasBodyEndTag = false;
+
+    /**
+     * @param boundaries - Boundaries found by scanning the start of the document, up to and including its &lt;body&gt; tag
+     */
+    BodyEndFinder(HtmlBoundaries boundaries) {
+      this.canHtmlEndTagEndBody = !boundaries.hasHtmlEndTagBeforeBody();
+    }
+
+    /**
+     * Looks for the end of the body in the text read so far.
+     * @param body - The body read so far, starting at bodyStart() (less anything dropped with drop())
+     * @param isComplete - True if the rest of the document has been read, too
+     * @return Length of the text that is known to be part of the body; once bodyEnd() is found, that's where it is
+     */
+    int scan(CharSequence body, boolean isComplete) {
+      while (bodyEnd < 0) {
+        if (resumeFrom < 0) {
+          int tagStart = indexOf(body, '<', pos);
+          if (tagStart < 0) {
+            pos = body.length();
+            break;
+          }
+          pos = tagStart;
+          if (!isComplete && body.length() - pos < 4) {
+            // Can't tell yet whether this starts a comment.
+            return pos;
+          }
+        }
+        if (startsWith(body, pos, "<!--")) {
+          int commentEnd = indexOf(body, "-->", Math.max(pos + 4, resumeFrom));
+          if (commentEnd < 0) {
+            resumeFrom = Math.max(pos + 4, body.length() - 2);
+            break;
+          }
+          pos = commentEnd + 3;
+        } else {
+          int tagEnd = indexOf(body, '>', Math.max(pos, resumeFrom));
+          if (tagEnd < 0) {
+            resumeFrom = body.length();
+            break;
+          }
+          if (isTag(body, pos, "/body")) {
+            bodyEnd = pos;
+            hasBodyEndTag = true;
+          } else if (canHtmlEndTagEndBody && isTag(body, pos, "/html")) {
+            bodyEnd = pos;
+          }
+          pos = tagEnd + 1;
+        }
+        resumeFrom = -1;
+      }
+      if (bodyEnd < 0 && isComplete) {
+        // An unclosed comment or tag, or no end tag at all, so the body goes to the end of the document.
+        bodyEnd = body.length();
+      }
+      return bodyEnd >= 0 ? bodyEnd : pos;
+    }
+
+    /**
+     * Returns where the body ends (just before &lt;/body&gt;, if there is one), or -1 if that isn't known yet.
+     */
+    int bodyEnd() {
+      return bodyEnd;
+    }
+
+    boolean hasBodyEndTag() {
+      return hasBodyEndTag;
+    }
+
+    /**
+     * Notes that the first count chars of the body have been dealt with and dropped from the text passed to scan().
+     */
+    void drop(int count) {
+      pos -= count;
+      if (resumeFrom >= 0) {
+        resumeFrom -= count;
+      }
+      if (bodyEnd >= 0) {
+        bodyEnd -= count;
+      }
+    }
+  }
+}
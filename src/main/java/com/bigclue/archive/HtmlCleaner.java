@@ -1,5 +1,11 @@
 package com.bigclue.archive;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -15,23 +21,73 @@ public class HtmlCleaner {
     // Prevent instantiation
   }
 
-  private static final Pattern BODY_PATTERN = Pattern.compile("(?is)(.*?<body[^>]*>)(.*?)(</body>.*)", Pattern.DOTALL);
+  /**
+   * Cleans up the body of an HTML document, leaving everything outside the body as it is.
+   * If the document has no &lt;body&gt; tag, the content after the head is treated as the body, and the tags are added.
+   */
   static String cleanHtml(String html) {
-    // get everything up to <body>; then body; then everything after </body>
-    Matcher m = BODY_PATTERN.matcher(html);
-    if (m.matches()) {
-      String beforeBody = m.group(1);
-      String body = m.group(2);
-      String afterBody = m.group(3);
-      body = cleanBody(body);
-      html = beforeBody + body + afterBody;
-    } else {
-      throw new IllegalArgumentException("Invalid html string: " + html);
+    StringWriter out = new StringWriter(html.length() + 64);
+    try {
+      // The document is in memory already, so there's nothing to gain from cleaning the body in pieces.
+      StreamingHtmlCleaner.cleanHtml(new StringReader(html), out, Math.max(html.length(), 1));
+    } catch (IOException e) {
+      throw new IllegalStateException("Strings can always be read and written", e);
     }
-    return html;
+    return out.toString();
+  }
+
+  /**
+   * Same as cleanHtml, but reads the document from 'in' and writes the result to 'out' as it goes, so that only a
+   * window of it is in memory at a time (see StreamingHtmlCleaner).
+   * @param in - HTML document to clean
+   * @param out - Where to write the cleaned document
+   * @throws IOException - If reading or writing fails
+   */
+  static void clean(Reader in, Writer out) throws IOException {
+    StreamingHtmlCleaner.cleanHtml(in, out, StreamingHtmlCleaner.DEFAULT_WINDOW_SIZE);
   }
 
+  /**
+   * Cleans up the contents of a &lt;body&gt; element, turning it into a list of paragraphs.
+   */
   static String cleanBody(String body) {
+    StringWriter out = new StringWriter(body.length() + 64);
+    try {
+      StreamingHtmlCleaner.cleanBody(new StringReader(body), out, Math.max(body.length(), 1));
+    } catch (IOException e) {
+      throw new IllegalStateException("Strings can always be read and written", e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Same as cleanBody(String), but reads the body from 'in' and writes the result to 'out' as it goes.
+   */
+  static void cleanBody(Reader in, Writer out) throws IOException {
+    StreamingHtmlCleaner.cleanBody(in, out, StreamingHtmlCleaner.DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Version of cleanHtml that cleans the whole body at once. Used for documents without a &lt;body&gt; tag, which
+   * can't be streamed, and to check StreamingHtmlCleaner against.
+   */
+  static String cleanHtmlInMemory(String html) {
+    HtmlBoundaries boundaries = HtmlBoundaries.scan(html);
+    return boundaries.replaceBody(cleanBodyInMemory(boundaries.body().toString()));
+  }
+
+  /**
+   * Version of cleanBody that cleans the whole body at once.
+   */
+  static String cleanBodyInMemory(String body) {
+    return fixLinksAndTables(SinglePassCleaner.cleanParagraphs(body));
+  }
+
+  /**
+   * Original version of cleanBody, which does the paragraph stage with a series of regular expressions.
+   * Kept to check (and measure) SinglePassCleaner against.
+   */
+  static String cleanBodyRegex(String body) {
     // Get rid of <span> and <font> tags
     body = body.replaceAll("(?is)</?(span|font|blockquote)[^>]*>", "");
     // Make sure images are surrounded by <p> tags. Duplicates will be removed later.
@@ -59,9 +115,44 @@ public class HtmlCleaner {
     body = body.replace("<ß>", "<br>\n");
     body = body.replaceAll("(?is)(</?(p|br)>)\\s*&nbsp;\\s*", "$1");
     body = body.replaceAll("(?is)\\s*&nbsp;\\s*(</?(p|br)>)", "$1");
+    return fixLinksAndTablesRegex(body);
+  }
+
+  /**
+   * Puts links around images back together, and makes sure tables are in paragraphs of their own.
+   */
+  static String fixLinksAndTables(String body) {
+    // Fix <p><a href="..."></p><p><img src="..."></p><p></a></p> => <p><a href="..."><img src="..."></a></p>
+    body = removeInnerParagraphs(body, OPEN_A, CLOSE_A, false, false);
+    body = removeInnerParagraphs(body, OPEN_TABLE, CLOSE_TABLE, true, false);
+    return fixCaptionedImages(body);
+  }
+
+  /**
+   * Original version of fixLinksAndTables, used by cleanBodyRegex.
+   */
+  static String fixLinksAndTablesRegex(String body) {
     // Fix <p><a href="..."></p><p><img src="..."></p><p></a></p> => <p><a href="..."><img src="..."></a></p>
-    body = removeInnerParagraphs(body, "a", false);
-    body = removeInnerParagraphs(body, "table", true);
+    body = removeInnerParagraphsRegex(body, "a", false);
+    body = removeInnerParagraphsRegex(body, "table", true);
+    return fixCaptionedImages(body);
+  }
+
+  /**
+   * Does the same as fixLinksAndTables, as long as the result would also be the start of what fixLinksAndTables would
+   * return for these paragraphs followed by more of them. That way a long body can be done a piece at a time.
+   * @param paragraphs - Output of SinglePassCleaner.cleanParagraphs for the first part of a body
+   * @return The fixed paragraphs, or null if it would take more of the body to tell how they come out
+   */
+  static String fixLinksAndTablesBeforeSplit(String paragraphs) {
+    String body = removeInnerParagraphs(paragraphs, OPEN_A, CLOSE_A, false, true);
+    if (body != null) {
+      body = removeInnerParagraphs(body, OPEN_TABLE, CLOSE_TABLE, true, true);
+    }
+    return body != null ? fixCaptionedImages(body) : null;
+  }
+
+  private static String fixCaptionedImages(String body) {
     body = body.replaceAll("<p>\\s*(<a [^>]*>)\\s*</p>\\s*<p>\\s*(<img[^>]*>)\\s*</p>\\s*<p>\\s*</a>\\s*</p>",
         "<p>$1$2</a></p>");
     body = body.replaceAll("<table[^>]*class=\"tr-caption-container\"[^>]*>",
@@ -69,10 +160,135 @@ public class HtmlCleaner {
     return body;
   }
 
+  private static final Pattern OPEN_A = Pattern.compile("(?i)<\\s*a[^>]*>");
+  private static final Pattern CLOSE_A = Pattern.compile("(?i)<\\s*/\\s*a\\s*>");
+  private static final Pattern OPEN_TABLE = Pattern.compile("(?i)<\\s*table[^>]*>");
+  private static final Pattern CLOSE_TABLE = Pattern.compile("(?i)<\\s*/\\s*table\\s*>");
+  private static final Pattern INNER_P_TAG = Pattern.compile("(?is)\\s*</?p[^>]*>\\s*");
+  private static final Pattern CLOSE_P = Pattern.compile("(?i)</\\s*p\\s*>");
+  // Without DOTALL, '.' doesn't match line terminators, so these only match text that is all on one line.
+  private static final Pattern ENDS_WITH_OPEN_P = Pattern.compile("(?i).*<p[^>]*>\\s*$");
+  private static final Pattern HAS_OPEN_P = Pattern.compile("(?i).*<\\s*p[^>]*>.*");
+
+  /**
+   * Removes paragraph tags that are inside the specified tag, and (if shouldSurroundWithP) ensures that there are
+   * &lt;p&gt; tags around the entire tag.
+   * Produces the same output as removeInnerParagraphsRegex, but only looks at the text near each tag, so the time
+   * is proportional to the length of the body rather than to the length times the number of tags.
+   * @param open - Pattern for the opening tag
+   * @param close - Pattern for the closing tag
+   * @param isBeforeSplit - True if more paragraphs follow, in which case the result is only returned if it's the same
+   *                        as the start of the result for the whole body. That's the case if every opening tag has a
+   *                        closing tag, the text after the last closing tag doesn't start with whitespace (which only
+   *                        gets trimmed at the end), and the "rest is on one line" check after it fails either way.
+   * @return The body with inner paragraph tags removed, or null if isBeforeSplit and the result could be different
+   */
+  private static String removeInnerParagraphs(String body, Pattern open, Pattern close, boolean shouldSurroundWithP, boolean isBeforeSplit) {
+    StringBuilder result = new StringBuilder(body.length() + 64);
+    Matcher openMatcher = open.matcher(body);
+    Matcher closeMatcher = close.matcher(body);
+    Matcher closePMatcher = CLOSE_P.matcher(body);
+    Matcher regionMatcher = ENDS_WITH_OPEN_P.matcher(body);
+    int trimmedEnd = trimmedEnd(body, 0, body.length());
+    // The regex version checked that the whole rest of the body, after a </p>, was on one line.
+    int lastLineTerminator = lastLineTerminator(body, trimmedEnd);
+    int nextClosingP = -1;
+    int lastEnd = 0;
+    while (openMatcher.find(lastEnd)) {
+      if (!closeMatcher.find(openMatcher.end())) {
+        if (isBeforeSplit) {
+          // The closing tag might come after the split.
+          return null;
+        }
+        // No closing tag after this one, so there won't be one after any later opening tag either.
+        break;
+      }
+      int start = openMatcher.start();
+      int end = closeMatcher.end();
+
+      if (shouldSurroundWithP) {
+        // Check if we need to add <p> before
+        int beforeStart = trimmedStart(body, lastEnd, start);
+        int beforeEnd = trimmedEnd(body, beforeStart, start);
+        boolean endsWithOpenP = body.startsWith("<p>", beforeEnd - 3) && beforeEnd - 3 >= beforeStart
+            || regionMatcher.usePattern(ENDS_WITH_OPEN_P).region(beforeStart, beforeEnd).matches();
+        result.append(body, lastEnd, start);
+        if (!endsWithOpenP) {
+          result.append("<p>");
+        }
+      } else {
+        result.append(body, lastEnd, start);
+      }
+
+      // Remove inner <p> and </p> tags from the matched tag content
+      result.append(INNER_P_TAG.matcher(CharBuffer.wrap(body, start, end)).replaceAll(""));
+
+      if (shouldSurroundWithP) {
+        int remainingStart = trimmedStart(body, end, trimmedEnd);
+        // Check if we need to add </p> after
+        boolean startsWithCloseP = body.regionMatches(true, remainingStart, "</p", 0, 3)
+            && body.indexOf('>', remainingStart) >= 0
+            || closePMatcher.region(remainingStart, trimmedEnd).lookingAt();
+        if (!startsWithCloseP || lastLineTerminator > body.indexOf('>', remainingStart)) {
+          result.append("</p>\n");
+        }
+        // Check if there's a </p> without a preceding <p> in the remaining string
+        if (nextClosingP < remainingStart) {
+          closePMatcher.reset();
+          nextClosingP = closePMatcher.find(remainingStart) ? closePMatcher.start() : trimmedEnd;
+        }
+        if (!regionMatcher.usePattern(HAS_OPEN_P).region(remainingStart, nextClosingP).matches()) {
+          // Insert <p> at the beginning of remaining string
+          result.append("<p>");
+        }
+      }
+      lastEnd = end;
+    }
+
+    if (isBeforeSplit && lastEnd > 0 && (lastEnd == body.length() || body.charAt(lastEnd) <= ' '
+        || shouldSurroundWithP && body.indexOf('>', trimmedStart(body, lastEnd, trimmedEnd)) >= lastLineTerminator)) {
+      return null;
+    }
+
+    // Add any remaining content after the last match
+    int tailStart = trimmedStart(body, lastEnd, body.length());
+    result.append(body, tailStart, trimmedEnd(body, tailStart, body.length()));
+
+    return result.toString().trim() + "\n";
+  }
+
+  private static int trimmedStart(String s, int start, int end) {
+    while (start < end && s.charAt(start) <= ' ') {
+      start++;
+    }
+    return start;
+  }
+
+  private static int trimmedEnd(String s, int start, int end) {
+    while (end > start && s.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  /**
+   * Returns the position of the last character before end that '.' in a regular expression doesn't match, or -1.
+   */
+  private static int lastLineTerminator(String s, int end) {
+    for (int i = end - 1; i >= 0; i--) {
+      char c = s.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
   /*
   Remove paragraph tags that are inside the specified tag, and ensure that there are <p> around the entire tag.
+  Original version of removeInnerParagraphs, used by cleanBodyRegex.
    */
-  private static String removeInnerParagraphs(String body, String tag, boolean shouldSurroundWithP) {
+  private static String removeInnerParagraphsRegex(String body, String tag, boolean shouldSurroundWithP) {
     Pattern tagPattern = Pattern.compile("(?is)(<\\s*" + tag + "[^>]*>.*?<\\s*/\\s*" + tag + "\\s*>)");
     Matcher matcher = tagPattern.matcher(body);
     StringBuilder result = new StringBuilder();
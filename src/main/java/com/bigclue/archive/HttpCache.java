@@ -0,0 +1,167 @@
+package com.bigclue.archive;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+
+/**
+ * Keeps a copy of each blog page that has been fetched, along with its ETag and Last-Modified headers, so that later
+ *   runs can send a conditional GET and use the copy when the server says the page hasn't changed. Old month
+ *   archive pages never change, so an incremental sync only has to download the pages of months with new posts.
+ * A page can also be marked complete once every post on it has been saved; if it still hasn't changed on the next
+ *   run, the crawler doesn't need to look at its posts at all.
+ * The cache is a directory with two files per URL, named after the URL's SHA-256 digest: the page itself (.html) and
+ *   its headers and completeness (.properties). Each URL's files are only written by the thread fetching that URL.
+ */
+class HttpCache {
+  static final String CACHE_DIR = ".http-cache";
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+  /**
+   * A fetched page.
+   * @param url - URL the page was fetched from
+   * @param body - Contents of the page
+   * @param isUnchanged - True if the server said the cached copy is still current
+   * @param isComplete - True if the page was marked complete, and hasn't changed since
+   */
+  record Page(String url, String body, boolean isUnchanged, boolean isComplete) {
+    Document document() {
+      return Jsoup.parse(body, url);
+    }
+  }
+
+  private final Path cacheDir;
+  private final HttpClient client = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicInteger unchangedCount = new AtomicInteger();
+
+  /**
+   * @param cacheDir - Directory to keep the pages in; created when the first page is stored
+   */
+  HttpCache(Path cacheDir) {
+    this.cacheDir = cacheDir;
+  }
+
+  int requestCount() {
+    return requestCount.get();
+  }
+
+  int unchangedCount() {
+    return unchangedCount.get();
+  }
+
+  String summary() {
+    return "Fetched " + requestCount.get() + " listing pages, " + unchangedCount.get() + " unchanged";
+  }
+
+  /**
+   * Fetches a page, sending If-None-Match and If-Modified-Since if there is a cached copy, and storing the new copy
+   * if the page has changed.
+   * @throws IOException - If the page can't be fetched, or the server responds with anything but 200 or 304
+   */
+  Page fetch(String url) throws IOException {
+    String key = keyOf(url);
+    Path bodyFile = cacheDir.resolve(key + ".html");
+    Path propsFile = cacheDir.resolve(key + ".properties");
+    Properties props = readProperties(propsFile);
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+        .header("User-Agent", "Mozilla/5.0")
+        .timeout(REQUEST_TIMEOUT);
+    boolean hasCopy = Files.exists(bodyFile);
+    if (hasCopy) {
+      String etag = props.getProperty("etag");
+      String lastModified = props.getProperty("lastModified");
+      if (etag != null) {
+        request.header("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        request.header("If-Modified-Since", lastModified);
+      }
+    }
+    HttpResponse<String> response;
+    try {
+      requestCount.incrementAndGet();
+      response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching " + url);
+    }
+    if (response.statusCode() == 304 && hasCopy) {
+      unchangedCount.incrementAndGet();
+      return new Page(url, Files.readString(bodyFile, StandardCharsets.UTF_8), true,
+          Boolean.parseBoolean(props.getProperty("complete")));
+    }
+    if (response.statusCode() != 200) {
+      throw new IOException("HTTP " + response.statusCode() + " fetching " + url);
+    }
+    Files.createDirectories(cacheDir);
+    // The page goes first, so the headers never describe a copy that isn't there.
+    writeFileCarefully(bodyFile, response.body());
+    Properties newProps = new Properties();
+    newProps.setProperty("url", url);
+    response.headers().firstValue("ETag").ifPresent(etag -> newProps.setProperty("etag", etag));
+    response.headers().firstValue("Last-Modified").ifPresent(lastModified -> newProps.setProperty("lastModified", lastModified));
+    writeProperties(propsFile, newProps);
+    return new Page(url, response.body(), false, false);
+  }
+
+  /**
+   * Records that everything on the page (as last fetched) has been dealt with.
+   */
+  void markComplete(String url) throws IOException {
+    Path propsFile = cacheDir.resolve(keyOf(url) + ".properties");
+    Properties props = readProperties(propsFile);
+    if (!props.isEmpty()) {
+      props.setProperty("complete", "true");
+      writeProperties(propsFile, props);
+    }
+  }
+
+  private static Properties readProperties(Path propsFile) throws IOException {
+    Properties props = new Properties();
+    if (Files.exists(propsFile)) {
+      try (Reader reader = Files.newBufferedReader(propsFile, StandardCharsets.UTF_8)) {
+        props.load(reader);
+      }
+    }
+    return props;
+  }
+
+  private static void writeProperties(Path propsFile, Properties props) throws IOException {
+    StringWriter writer = new StringWriter();
+    props.store(writer, "Cached page: url, etag, lastModified, complete");
+    writeFileCarefully(propsFile, writer.toString());
+  }
+
+  private static String keyOf(String url) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
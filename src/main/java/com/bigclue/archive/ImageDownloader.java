@@ -0,0 +1,246 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bigclue.archive.MailToHtml.log;
+import static com.bigclue.archive.MailToHtml.sanitizeFilename;
+
+/**
+ * Downloads a blog's images over one shared HttpClient, so connections are kept alive (and multiplexed, if the server
+ *   speaks HTTP/2) instead of being opened for every image.
+ * Downloads run on a fixed pool of worker threads shared by every post, and each post has at most maxPerPost of them
+ *   started at once, so one photo-heavy post can't hold up the others. A failed download is retried with backoff.
+ * An image's filename comes from its URL if that ends in one, and otherwise from the Content-Disposition or
+ *   Content-Type header of the same GET request that fetches it.
+ */
+class ImageDownloader implements AutoCloseable {
+  /** Default number of downloads to have in flight at once, across all posts. */
+  static final int DEFAULT_MAX_DOWNLOADS = 8;
+  /** Default number of downloads to have started at once for a single post. */
+  static final int DEFAULT_MAX_DOWNLOADS_PER_POST = 4;
+  /** Number of times to try a download before giving up. */
+  static final int MAX_ATTEMPTS = 4;
+  private static final Duration INITIAL_BACKOFF = Duration.ofMillis(500);
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+  /** Numbers the images that don't have a filename of their own; shared by all threads. */
+  private static final AtomicInteger imageCounter = new AtomicInteger(1);
+
+  private final HttpClient client;
+  private final ExecutorService executor;
+  private final int maxPerPost;
+  private final Duration initialBackoff;
+  /** Number of GET requests sent, including retries. */
+  private final AtomicInteger requestCount = new AtomicInteger();
+
+  ImageDownloader(int maxDownloads, int maxPerPost) {
+    this(maxDownloads, maxPerPost, INITIAL_BACKOFF);
+  }
+
+  ImageDownloader(int maxDownloads, int maxPerPost, Duration initialBackoff) {
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+    // Daemon threads, so a shared downloader doesn't keep the JVM running after main returns.
+    this.executor = Executors.newFixedThreadPool(maxDownloads, runnable -> {
+      Thread thread = new Thread(runnable, "image-downloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.maxPerPost = maxPerPost;
+    this.initialBackoff = initialBackoff;
+  }
+
+  int requestCount() {
+    return requestCount.get();
+  }
+
+  /** Lets downloads that have started finish, but doesn't start any more. */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  /** Starts a set of downloads for one post. */
+  PostDownloads forPost() {
+    return new PostDownloads();
+  }
+
+  /**
+   * The downloads for one post. Not thread-safe: meant to be used by the thread saving the post.
+   */
+  class PostDownloads {
+    private final Semaphore permits = new Semaphore(maxPerPost);
+    /** Download of each URL started so far, so an image that appears twice is only fetched once. */
+    private final Map<String, Future<String>> downloads = new HashMap<>();
+
+    /**
+     * Starts downloading an image into dir, waiting first if maxPerPost downloads for this post are already running.
+     * @param url - URL of the image, as it appears in the post
+     * @param dir - Directory to save it in
+     * @return The image's filename once it has been saved (or skipped, or given up on)
+     */
+    Future<String> download(String url, Path dir) throws InterruptedException {
+      String key = dir + " " + url;
+      Future<String> download = downloads.get(key);
+      if (download == null) {
+        permits.acquire();
+        try {
+          download = executor.submit(() -> {
+            try {
+              return ImageDownloader.this.download(url, dir);
+            } finally {
+              permits.release();
+            }
+          });
+        } catch (RuntimeException e) {
+          permits.release();
+          throw e;
+        }
+        downloads.put(key, download);
+      }
+      return download;
+    }
+  }
+
+  /** Where an image was saved, or tmpFile null if a file by that name already existed. */
+  private record Saved(String filename, Path tmpFile) {}
+
+  /**
+   * Downloads an image into dir with a single GET, retrying with backoff if it fails in a way that might not
+   * happen next time. Skips the request entirely if the URL names a file that already exists.
+   * @return The image's filename. If it couldn't be downloaded, the name it would have had, so the link still points
+   *   where the image belongs.
+   */
+  private String download(String url, Path dir) throws InterruptedException {
+    String knownFilename = filenameFromUrl(url);
+    if (knownFilename != null && Files.exists(dir.resolve(knownFilename))) {
+      log("  ## Skipping existing file: " + knownFilename);
+      return knownFilename;
+    }
+    HttpRequest request;
+    try {
+      request = HttpRequest.newBuilder(URI.create(reEncodeUrl(url)))
+          .header("User-Agent", "Mozilla/5.0")
+          .timeout(REQUEST_TIMEOUT)
+          .build();
+    } catch (IllegalArgumentException e) {
+      log("  ## Bad image URL " + url + ": " + e.getMessage());
+      return knownFilename != null ? knownFilename : "image" + imageCounter.getAndIncrement() + ".jpg";
+    }
+    Duration backoff = initialBackoff;
+    // The body handler runs on one of the client's threads, so name the tmp file after this one.
+    long workerId = Thread.currentThread().getId();
+    for (int attempt = 1; ; attempt++) {
+      String failure;
+      boolean isRetryable = true;
+      try {
+        requestCount.incrementAndGet();
+        HttpResponse<Saved> response = client.send(request, info -> {
+          if (info.statusCode() != 200) {
+            return HttpResponse.BodySubscribers.replacing(null);
+          }
+          String filename = knownFilename != null ? knownFilename : filenameFromHeaders(info.headers());
+          if (Files.exists(dir.resolve(filename))) {
+            log("  ## Skipping existing file: " + filename);
+            return HttpResponse.BodySubscribers.replacing(new Saved(filename, null));
+          }
+          Path tmpFile = dir.resolve("tmp." + filename + "." + workerId);
+          return HttpResponse.BodySubscribers.mapping(
+              HttpResponse.BodySubscribers.ofFile(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+              path -> new Saved(filename, path));
+        });
+        Saved saved = response.body();
+        if (saved != null) {
+          if (saved.tmpFile() != null) {
+            Files.move(saved.tmpFile(), dir.resolve(saved.filename()), StandardCopyOption.REPLACE_EXISTING);
+          }
+          return saved.filename();
+        }
+        int status = response.statusCode();
+        failure = "HTTP " + status;
+        // Only a server error or a request to slow down might go away when retried.
+        isRetryable = status == 429 || status >= 500;
+      } catch (IOException e) {
+        failure = e.toString();
+      }
+      if (!isRetryable || attempt >= MAX_ATTEMPTS) {
+        log("  ## Failed to download " + url + ": " + failure);
+        return knownFilename != null ? knownFilename : "image" + imageCounter.getAndIncrement() + ".jpg";
+      }
+      Thread.sleep(backoff.toMillis());
+      backoff = backoff.multipliedBy(2);
+    }
+  }
+
+  /**
+   * Returns the sanitized filename at the end of the URL, or null if it doesn't end in a normal image filename
+   * (a period followed by 3-4 letters).
+   */
+  static String filenameFromUrl(String url) {
+    int lastSlash = url.lastIndexOf('/');
+    if (lastSlash >= 0) {
+      String urlPart = url.substring(lastSlash + 1);
+      if (urlPart.matches(".*\\.[a-zA-Z]{3,4}$")) {
+        return sanitizeFilename(urlPart);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets a filename from the Content-Disposition header, or failing that, makes one up with the extension that
+   * goes with the Content-Type.
+   */
+  private static String filenameFromHeaders(HttpHeaders headers) {
+    String contentDisposition = headers.firstValue("Content-Disposition").orElse(null);
+    if (contentDisposition != null && contentDisposition.contains("filename=")) {
+      String filename = contentDisposition.substring(contentDisposition.indexOf("filename=") + 9);
+      filename = filename.replaceAll("(^\")|(\"$)", "");
+      return sanitizeFilename(filename);
+    }
+    return "image" + imageCounter.getAndIncrement() + getExtensionFromContentType(headers.firstValue("Content-Type").orElse(null));
+  }
+
+  private static String getExtensionFromContentType(String contentType) {
+    if (contentType != null) {
+      if (contentType.contains("png")) return ".png";
+      if (contentType.contains("gif")) return ".gif";
+      if (contentType.contains("webp")) return ".webp";
+    }
+    return ".jpg"; // default
+  }
+
+  // Re-encode URL to handle spaces and line breaks.
+  // In particular, remove line breaks, and make sure spaces are %20, not literal spaces.
+  private static String reEncodeUrl(String url) {
+    try {
+      // Remove line breaks but preserve spaces, then properly encode
+      String cleanUrl = url.trim().replaceAll("\\r?\\n", "");
+      URI uri = new URI(cleanUrl);
+      return uri.toASCIIString();
+    } catch (Exception e) {
+      // Fallback: remove all whitespace since spaces in URLs are usually unintentional
+      return url.trim().replaceAll("\\s+", "");
+    }
+  }
+}
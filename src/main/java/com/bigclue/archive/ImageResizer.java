@@ -0,0 +1,162 @@
+package com.bigclue.archive;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Makes the small version of a blog image from the full one that has already been downloaded, instead of downloading
+ *   the resized copy Blogger serves, which roughly halves the number of image requests and the bytes transferred.
+ * Resizes run on a fixed pool with one thread per core. A large photo is decoded with subsampling, at no more than
+ *   twice the size it's being shrunk to, and each resize reserves the memory for its pixels from
+ *   MemoryBudget.IMAGES before decoding, so the number of big photos being worked on at once is limited by memory
+ *   rather than by thread count.
+ */
+class ImageResizer implements AutoCloseable {
+  /** Largest width or height of a small image when the URL doesn't say how big it should be. */
+  static final int DEFAULT_MAX_SIZE = 400;
+  private static final int BYTES_PER_PIXEL = 4;
+  /** Blogger's size in an image URL: a path segment (or "=" suffix) like s320, s1600-h, or w400-h300. */
+  private static final Pattern URL_SIZE = Pattern.compile("[/=](?:s(\\d+)|w(\\d+)-h(\\d+))(?:-[a-z0-9]+)*(?:/|$)");
+
+  /**
+   * The box a small image has to fit in.
+   * @param maxWidth - Largest width in pixels
+   * @param maxHeight - Largest height in pixels
+   */
+  record Bounds(int maxWidth, int maxHeight) {
+    static final Bounds DEFAULT = new Bounds(DEFAULT_MAX_SIZE, DEFAULT_MAX_SIZE);
+  }
+
+  private final ExecutorService executor;
+  private final MemoryBudget budget;
+
+  ImageResizer(int threads, MemoryBudget budget) {
+    // Daemon threads, so a shared resizer doesn't keep the JVM running after main returns.
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "image-resizer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.budget = budget;
+  }
+
+  /**
+   * Starts making a small copy of an image, unless the target already exists.
+   * @param source - The full-size image
+   * @param target - Where to write the small one
+   * @param bounds - Box the small image has to fit in
+   * @return Completes once the small image has been written
+   */
+  Future<Void> resize(Path source, Path target, Bounds bounds) {
+    return executor.submit(() -> {
+      if (Files.exists(target)) {
+        MailToHtml.log("  ## Skipping existing file: " + target.getFileName());
+      } else {
+        resizeImage(source, target, bounds, budget);
+      }
+      return null;
+    });
+  }
+
+  /** Lets resizes that have started finish, but doesn't start any more. */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Returns the size Blogger was asked to scale an image to in its URL, or null if the URL doesn't have one.
+   * A plain size like s320 is the largest width or height; w400-h300 gives each separately.
+   */
+  static Bounds boundsFromUrl(String url) {
+    Matcher matcher = URL_SIZE.matcher(url);
+    Bounds bounds = null;
+    // The size is the last such segment, after the host and any path segments that happen to look like one.
+    while (matcher.find()) {
+      if (matcher.group(1) != null) {
+        int size = Integer.parseInt(matcher.group(1));
+        bounds = new Bounds(size, size);
+      } else {
+        bounds = new Bounds(Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+      }
+    }
+    return bounds;
+  }
+
+  /**
+   * Shrinks an image to fit within bounds, keeping its aspect ratio and format, and writes it to target.
+   * An image that already fits is copied as it is.
+   * @param budget - Budget to reserve the memory for the decoded pixels from
+   * @throws IOException - If the image can't be read, or its format can't be written
+   */
+  @SuppressWarnings("try")
+  static void resizeImage(Path source, Path target, Bounds bounds, MemoryBudget budget) throws IOException, InterruptedException {
+    Path tmpFile = target.resolveSibling("tmp." + target.getFileName());
+    try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+      Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+      if (readers == null || !readers.hasNext()) {
+        throw new IOException("Unsupported image format: " + source);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        double scale = Math.min((double) bounds.maxWidth() / width, (double) bounds.maxHeight() / height);
+        if (scale >= 1) {
+          Files.copy(source, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+          int targetWidth = Math.max(1, (int) Math.round(width * scale));
+          int targetHeight = Math.max(1, (int) Math.round(height * scale));
+          // Skip rows and columns while decoding, as long as that leaves at least twice the target size to scale down.
+          int subsampling = Math.max(1, (int) (1 / scale / 2));
+          long decodedPixels = (long) ((width + subsampling - 1) / subsampling) * ((height + subsampling - 1) / subsampling);
+          long pixels = decodedPixels + (long) targetWidth * targetHeight;
+          try (MemoryBudget.Reservation ignored = budget.reserve(pixels * BYTES_PER_PIXEL)) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage decoded = reader.read(0, param);
+            String format = reader.getFormatName();
+            BufferedImage small = scale(decoded, targetWidth, targetHeight, format.equalsIgnoreCase("jpeg"));
+            if (!ImageIO.write(small, format, tmpFile.toFile())) {
+              throw new IOException("Can't write " + format + " image: " + source);
+            }
+          }
+        }
+      } finally {
+        reader.dispose();
+      }
+      Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+  }
+
+  private static BufferedImage scale(BufferedImage image, int width, int height, boolean isOpaque) {
+    BufferedImage scaled = new BufferedImage(width, height, isOpaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return scaled;
+  }
+}
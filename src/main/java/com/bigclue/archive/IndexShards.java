@@ -0,0 +1,145 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.bigclue.archive.MailToHtml.writeFileIfChanged;
+
+/**
+ * The message list behind index.html, split up by year so the page only has to load and lay out the years that are
+ *   expanded. Like the search index, the files are JavaScript that calls back into the page (JSONP), since a page
+ *   opened from a file: URL can load scripts but can't fetch JSON.
+ * In the .index directory, years.js lists each year with its number of messages, and YYYY.js lists that year's
+ *   messages in date order, one per line: directory name and (already HTML-escaped) title.
+ */
+class IndexShards {
+  static final String INDEX_DIR = ".index";
+  static final String YEARS_FILE = "years.js";
+
+  private IndexShards() {
+    // Prevent instantiation
+  }
+
+  /**
+   * One message in the list.
+   * @param dirName - Name of the message's directory, which starts with its date
+   * @param escapedTitle - Title of the message, already HTML-escaped
+   */
+  record Row(String dirName, String escapedTitle) {}
+
+  /**
+   * Writes the list of years, if it has changed.
+   * @param counts - Number of messages in each year
+   * @return true if the file was written
+   */
+  static boolean writeYears(Path indexDir, Map<String, Integer> counts) throws IOException {
+    List<String> entries = new ArrayList<>();
+    for (Map.Entry<String, Integer> e : counts.entrySet()) {
+      entries.add("[" + jsString(e.getKey()) + "," + e.getValue() + "]");
+    }
+    return writeFileIfChanged(indexDir.resolve(YEARS_FILE), "indexYearsLoaded([\n" + String.join(",\n", entries) + "\n]);\n");
+  }
+
+  /** Reads the number of messages in each year, as written by writeYears. */
+  static Map<String, Integer> readYears(Path indexDir) throws IOException {
+    Map<String, Integer> counts = new TreeMap<>();
+    for (String line : Files.readAllLines(indexDir.resolve(YEARS_FILE))) {
+      if (line.startsWith("[")) {
+        int comma = line.indexOf("\",") + 1;
+        counts.put(parseStrings(line).get(0), Integer.parseInt(line.substring(comma + 1, line.indexOf(']', comma))));
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Writes the messages of one year, if they have changed.
+   * @return true if the file was written
+   */
+  static boolean writeYear(Path indexDir, String year, List<Row> rows) throws IOException {
+    List<String> entries = new ArrayList<>();
+    for (Row row : rows) {
+      entries.add("[" + jsString(row.dirName()) + "," + jsString(row.escapedTitle()) + "]");
+    }
+    String js = "indexYearLoaded(" + jsString(year) + ",[\n" + String.join(",\n", entries) + "\n]);\n";
+    return writeFileIfChanged(indexDir.resolve(yearFileName(year)), js);
+  }
+
+  /** Reads the messages of one year, as written by writeYear, or returns an empty list if there are none. */
+  static List<Row> readYear(Path indexDir, String year) throws IOException {
+    List<Row> rows = new ArrayList<>();
+    Path yearFile = indexDir.resolve(yearFileName(year));
+    if (Files.exists(yearFile)) {
+      for (String line : Files.readAllLines(yearFile)) {
+        if (line.startsWith("[")) {
+          List<String> fields = parseStrings(line);
+          rows.add(new Row(fields.get(0), fields.get(1)));
+        }
+      }
+    }
+    return rows;
+  }
+
+  /** Deletes the files of years that no longer have any messages. */
+  static void deleteStaleYears(Path indexDir, Set<String> years) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(indexDir, "*.js")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (!name.equals(YEARS_FILE) && !years.contains(name.substring(0, name.length() - 3))) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  private static String yearFileName(String year) {
+    return year + ".js";
+  }
+
+  /** Returns s as a double-quoted JavaScript string literal. */
+  static String jsString(String s) {
+    StringBuilder js = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        js.append('\\').append(c);
+      } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+        js.append(String.format("\\u%04x", (int) c));
+      } else {
+        js.append(c);
+      }
+    }
+    return js.append('"').toString();
+  }
+
+  /** Returns the values of the string literals written by jsString in a line, in order. */
+  private static List<String> parseStrings(String line) {
+    List<String> strings = new ArrayList<>();
+    int pos = line.indexOf('"');
+    while (pos >= 0) {
+      StringBuilder s = new StringBuilder();
+      int i = pos + 1;
+      for (; line.charAt(i) != '"'; i++) {
+        char c = line.charAt(i);
+        if (c != '\\') {
+          s.append(c);
+        } else if (line.charAt(++i) == 'u') {
+          s.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+          i += 4;
+        } else {
+          s.append(line.charAt(i));
+        }
+      }
+      strings.add(s.toString());
+      pos = line.indexOf('"', i + 1);
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,297 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the images saved from a message while its parts are processed, and then, in one pass over the finished
+ *   HTML, replaces each <img ... src="cid:CONTENT_ID" ...> tag with a tag pointing at the saved file.
+ * Images that no HTML part refers to are shown as their own paragraph, at the point in the message where the image
+ *   part appeared. Because nothing is replaced until the whole message has been processed, an image part may come
+ *   before or after the HTML part that refers to it.
+ * The HTML can either be in memory or in a file that is read through twice (once to find the tags, once to copy it
+ *   with the replacements made), in which case only one &lt;img&gt; tag at a time is held in memory.
+ */
+class InlineImages {
+  /**
+   * An image saved from the message.
+   * @param contentId - Content-ID without angle brackets, or null if the part didn't have one
+   * @param filename - Name of the saved image file
+   * @param offset - Position in the HTML where the image part was encountered
+   */
+  private record Image(String contentId, String filename, long offset) {}
+
+  /** A span of the HTML to replace. */
+  private record Replacement(long start, long end, String text) {}
+
+  private static final String IMG_TAG = "<img";
+
+  private final List<Image> images = new ArrayList<>();
+
+  /**
+   * Records an image saved from the message.
+   * @param contentIdHeader - Values of the part's Content-ID header, or null if it has none
+   * @param filename - Name of the saved image file
+   * @param offset - Current length of the HTML, where the image will be shown if nothing refers to it
+   */
+  void add(String[] contentIdHeader, String filename, long offset) {
+    String contentId = contentIdHeader != null && contentIdHeader.length > 0 ? stripAngleBrackets(contentIdHeader[0]) : null;
+    images.add(new Image(contentId, filename, offset));
+  }
+
+  /**
+   * Returns the HTML with cid: references replaced and unreferenced images inserted.
+   */
+  String applyTo(CharSequence html) {
+    Map<String, String> replacementsByCid = replacementsByCid();
+    Set<String> usedCids = new HashSet<>();
+    List<Replacement> replacements = withInsertions(findCidImageTags(html, replacementsByCid, usedCids), usedCids);
+    return applyReplacements(html, replacements);
+  }
+
+  /**
+   * Copies the HTML in the given UTF-8 file to out, with cid: references replaced and unreferenced images inserted.
+   * @param htmlFile - File holding the HTML, whose length in chars is what the image offsets were measured in
+   * @param out - Where to write the result
+   */
+  void applyTo(Path htmlFile, Writer out) throws IOException {
+    Map<String, String> replacementsByCid = replacementsByCid();
+    Set<String> usedCids = new HashSet<>();
+    List<Replacement> tagReplacements;
+    try (Reader in = Files.newBufferedReader(htmlFile, StandardCharsets.UTF_8)) {
+      tagReplacements = findCidImageTags(in, replacementsByCid, usedCids);
+    }
+    try (Reader in = Files.newBufferedReader(htmlFile, StandardCharsets.UTF_8)) {
+      applyReplacements(in, out, withInsertions(tagReplacements, usedCids));
+    }
+  }
+
+  private Map<String, String> replacementsByCid() {
+    Map<String, String> replacementsByCid = new HashMap<>();
+    for (Image image : images) {
+      if (image.contentId() != null) {
+        replacementsByCid.putIfAbsent(image.contentId(), "<img src=\"" + image.filename() + "\">");
+      }
+    }
+    return replacementsByCid;
+  }
+
+  /**
+   * Adds an insertion for each image that no tag refers to, at the point where the image part was encountered.
+   */
+  private List<Replacement> withInsertions(List<Replacement> tagReplacements, Set<String> usedCids) {
+    List<Replacement> replacements = new ArrayList<>();
+    for (Image image : images) {
+      if (image.contentId() == null || !usedCids.contains(image.contentId())) {
+        replacements.add(new Replacement(image.offset(), image.offset(), "\n<p><img src=\"" + image.filename() + "\"></p>\n"));
+      }
+    }
+    replacements.addAll(tagReplacements);
+    // Insertions and tag replacements are each in order already; a stable sort merges them, keeping an insertion
+    // ahead of a tag at the same offset, since the image part was processed before the HTML that follows it.
+    replacements.sort((a, b) -> Long.compare(a.start(), b.start()));
+    return replacements;
+  }
+
+  /**
+   * Replaces every <img ... src="cid:CONTENT_ID" ...> tag whose content ID has a replacement, in one pass.
+   * @param html - HTML to update in place
+   * @param replacementsByCid - Replacement tag for each content ID (without angle brackets)
+   * @return true if any tag was replaced
+   */
+  static boolean replaceCidImageTags(StringBuilder html, Map<String, String> replacementsByCid) {
+    List<Replacement> replacements = findCidImageTags(html, replacementsByCid, new HashSet<>());
+    if (replacements.isEmpty()) {
+      return false;
+    }
+    String result = applyReplacements(html, replacements);
+    html.setLength(0);
+    html.append(result);
+    return true;
+  }
+
+  static String stripAngleBrackets(String contentId) {
+    if (contentId.startsWith("<") && contentId.endsWith(">")) {
+      return contentId.substring(1, contentId.length() - 1);
+    }
+    return contentId;
+  }
+
+  private static List<Replacement> findCidImageTags(CharSequence html, Map<String, String> replacementsByCid, Set<String> usedCids) {
+    List<Replacement> replacements = new ArrayList<>();
+    if (replacementsByCid.isEmpty()) {
+      return replacements;
+    }
+    int pos = indexOf(html, "<img", 0);
+    while (pos >= 0) {
+      int tagEnd = findClosingBracket(html, pos);
+      if (tagEnd < 0) {
+        break;
+      }
+      String cid = findCid(html, pos, tagEnd);
+      String replacement = cid != null ? replacementsByCid.get(cid) : null;
+      if (replacement != null) {
+        replacements.add(new Replacement(pos, tagEnd + 1, replacement));
+        usedCids.add(cid);
+      }
+      pos = indexOf(html, "<img", tagEnd + 1);
+    }
+    return replacements;
+  }
+
+  /**
+   * Same as findCidImageTags(CharSequence, ...), but reads the HTML as it goes, holding only the current tag.
+   */
+  private static List<Replacement> findCidImageTags(Reader html, Map<String, String> replacementsByCid, Set<String> usedCids) throws IOException {
+    List<Replacement> replacements = new ArrayList<>();
+    if (replacementsByCid.isEmpty()) {
+      return replacements;
+    }
+    StringBuilder tag = null;
+    int matched = 0; // Number of characters of "<img" matched so far, when not in a tag
+    char quoteChar = 0; // Quote of the attribute value the tag is in, or 0 if it isn't in one
+    long pos = 0;
+    int c;
+    while ((c = html.read()) >= 0) {
+      if (tag == null) {
+        matched = c == '<' ? 1 : matched > 0 && c == IMG_TAG.charAt(matched) ? matched + 1 : 0;
+        if (matched == IMG_TAG.length()) {
+          tag = new StringBuilder(IMG_TAG);
+          matched = 0;
+        }
+      } else {
+        tag.append((char) c);
+        if (quoteChar != 0) {
+          if (c == quoteChar) {
+            quoteChar = 0;
+          }
+        } else if (c == '"' || c == '\'') {
+          quoteChar = (char) c;
+        } else if (c == '>') {
+          String cid = findCid(tag, 0, tag.length() - 1);
+          String replacement = cid != null ? replacementsByCid.get(cid) : null;
+          if (replacement != null) {
+            replacements.add(new Replacement(pos + 1 - tag.length(), pos + 1, replacement));
+            usedCids.add(cid);
+          }
+          tag = null;
+        }
+      }
+      pos++;
+    }
+    return replacements;
+  }
+
+  /**
+   * Returns the content ID in a src="cid:..." or src='cid:...' attribute within the tag, or null if there is none.
+   */
+  private static String findCid(CharSequence html, int tagStart, int tagEnd) {
+    for (int i = tagStart; i < tagEnd - 8; i++) {
+      if (regionMatches(html, i, "src=") && regionMatches(html, i + 5, "cid:")) {
+        char quote = html.charAt(i + 4);
+        if (quote == '"' || quote == '\'') {
+          int cidStart = i + 9;
+          for (int j = cidStart; j < tagEnd; j++) {
+            if (html.charAt(j) == quote) {
+              return html.subSequence(cidStart, j).toString();
+            }
+          }
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String applyReplacements(CharSequence html, List<Replacement> replacements) {
+    StringBuilder sb = new StringBuilder(html.length() + 64 * replacements.size());
+    int copied = 0;
+    for (Replacement replacement : replacements) {
+      sb.append(html, copied, (int) replacement.start()).append(replacement.text());
+      copied = (int) replacement.end();
+    }
+    sb.append(html, copied, html.length());
+    return sb.toString();
+  }
+
+  private static void applyReplacements(Reader in, Writer out, List<Replacement> replacements) throws IOException {
+    char[] buffer = new char[8192];
+    long copied = 0;
+    for (Replacement replacement : replacements) {
+      copy(in, out, buffer, replacement.start() - copied);
+      out.write(replacement.text());
+      copy(in, null, buffer, replacement.end() - replacement.start());
+      copied = replacement.end();
+    }
+    copy(in, out, buffer, Long.MAX_VALUE);
+  }
+
+  /**
+   * Copies count chars (or until the end of the input) from in to out, or skips them if out is null.
+   */
+  private static void copy(Reader in, Writer out, char[] buffer, long count) throws IOException {
+    while (count > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (read < 0) {
+        return;
+      }
+      if (out != null) {
+        out.write(buffer, 0, read);
+      }
+      count -= read;
+    }
+  }
+
+  /**
+   * Finds the '>' that closes the tag starting at tagStart, skipping any '>' inside quoted attribute values.
+   */
+  private static int findClosingBracket(CharSequence html, int tagStart) {
+    boolean inQuote = false;
+    char quoteChar = 0;
+    for (int i = tagStart; i < html.length(); i++) {
+      char c = html.charAt(i);
+      if (inQuote) {
+        if (c == quoteChar) {
+          inQuote = false;
+        }
+      } else if (c == '"' || c == '\'') {
+        inQuote = true;
+        quoteChar = c;
+      } else if (c == '>') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(CharSequence s, String target, int from) {
+    for (int i = from; i <= s.length() - target.length(); i++) {
+      if (regionMatches(s, i, target)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean regionMatches(CharSequence s, int offset, String target) {
+    if (offset + target.length() > s.length()) {
+      return false;
+    }
+    for (int i = 0; i < target.length(); i++) {
+      if (s.charAt(offset + i) != target.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,486 @@
+package com.bigclue.archive;
+
+import org.jsoup.Jsoup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * A binary full-text index of the journal with word positions, for phrase and date-range queries from Java or the
+ *   command line. The index file is memory-mapped and searched where it is, so opening it takes no time and no heap,
+ *   and a query only touches the dictionary entries and postings of its own words.
+ * Layout (big-endian; offsets are from the start of the file, which is mapped as one buffer, so at most 2 GB):
+ *   header: magic, version, docCount, termCount, docsOffset, dictOffset, postingsOffset, stringsOffset (all ints)
+ *   docs: per message, in directory name order: date (yyyyMMdd), time (HHmmss), nameOffset, nameLength
+ *   dictionary: per word, sorted by its UTF-8 bytes: termOffset, termLength, postingsOffset, docCount
+ *   postings: per word, for each message containing it: message number delta, number of positions, position deltas,
+ *     all as varints
+ *   strings: UTF-8 directory names and words
+ * Words are split and normalized the same way as for SearchIndex (see SearchIndex.words), but none are left out.
+ * The buffer is only read with absolute gets, so one JournalIndex can be queried from several threads at once.
+ */
+class JournalIndex implements AutoCloseable {
+  static final String INDEX_FILE = ".journal-index.bin";
+  private static final int MAGIC = 0x4A494458; // "JIDX"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+  private static final int DOC_ENTRY_SIZE = 16;
+  private static final int TERM_ENTRY_SIZE = 16;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer;
+  private final int docCount;
+  private final int termCount;
+  private final int docsOffset;
+  private final int dictOffset;
+  private final int postingsOffset;
+  private final int stringsOffset;
+
+  private JournalIndex(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+    this.channel = channel;
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a journal index (or an old version of one)");
+    }
+    this.docCount = buffer.getInt(8);
+    this.termCount = buffer.getInt(12);
+    this.docsOffset = buffer.getInt(16);
+    this.dictOffset = buffer.getInt(20);
+    this.postingsOffset = buffer.getInt(24);
+    this.stringsOffset = buffer.getInt(28);
+  }
+
+  /**
+   * Usage: JournalIndex -journalDir journal-directory [-build] [query]
+   * A query is a list of words and "quoted phrases" that must all appear, optionally with after:yyyy-MM-dd and
+   *   before:yyyy-MM-dd (both inclusive).
+   */
+  public static void main(String[] args) throws IOException {
+    String journalDir = null;
+    boolean shouldBuild = false;
+    StringBuilder query = new StringBuilder();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-journalDir" -> journalDir = args[++i];
+        case "-build" -> shouldBuild = true;
+        default -> query.append(query.isEmpty() ? "" : " ").append(args[i]);
+      }
+    }
+    if (journalDir == null || (!shouldBuild && query.isEmpty())) {
+      System.err.println("Usage: JournalIndex -journalDir journal-directory [-build] [words \"a phrase\" after:yyyy-MM-dd before:yyyy-MM-dd]");
+      return;
+    }
+    Path indexFile = Paths.get(journalDir, INDEX_FILE);
+    if (shouldBuild) {
+      long start = System.nanoTime();
+      int count = build(MailIndexer.getHtmlFiles(journalDir), indexFile);
+      log(String.format("Indexed %d messages in %.1f s (%,d bytes)", count, (System.nanoTime() - start) / 1e9, Files.size(indexFile)));
+    }
+    if (!query.isEmpty()) {
+      try (JournalIndex index = open(indexFile)) {
+        long start = System.nanoTime();
+        List<String> matches = index.search(Query.parse(query.toString()));
+        double millis = (System.nanoTime() - start) / 1e6;
+        matches.forEach(System.out::println);
+        log(String.format("%d matches in %.2f ms", matches.size(), millis));
+      }
+    }
+  }
+
+  /**
+   * What to search for.
+   * @param phrases - Phrases (lists of normalized words) that must all appear; a single word is a phrase of one
+   * @param from - Earliest date to include, or null
+   * @param to - Latest date to include, or null
+   */
+  record Query(List<List<String>> phrases, LocalDate from, LocalDate to) {
+    /**
+     * Parses words, "quoted phrases", after:yyyy-MM-dd and before:yyyy-MM-dd.
+     * @throws IllegalArgumentException - If a date can't be parsed
+     */
+    static Query parse(String query) {
+      List<List<String>> phrases = new ArrayList<>();
+      LocalDate from = null;
+      LocalDate to = null;
+      String[] quoted = query.split("\"", -1);
+      for (int i = 0; i < quoted.length; i++) {
+        if (i % 2 == 1) {
+          List<String> phrase = SearchIndex.words(quoted[i]);
+          if (!phrase.isEmpty()) {
+            phrases.add(phrase);
+          }
+          continue;
+        }
+        for (String part : quoted[i].trim().split("\\s+")) {
+          try {
+            if (part.startsWith("after:")) {
+              from = LocalDate.parse(part.substring(6));
+              continue;
+            } else if (part.startsWith("before:")) {
+              to = LocalDate.parse(part.substring(7));
+              continue;
+            }
+          } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Bad date in " + part + " (should be yyyy-MM-dd)", e);
+          }
+          for (String word : SearchIndex.words(part)) {
+            phrases.add(List.of(word));
+          }
+        }
+      }
+      return new Query(phrases, from, to);
+    }
+  }
+
+  /**
+   * Builds the index from the given message files and writes it to indexFile (through a temp file, so readers never
+   * see a partly written index).
+   * @param htmlFiles - Each message's HTML file, in directory name order (see MailIndexer.getHtmlFiles)
+   * @return Number of messages indexed
+   */
+  static int build(List<Path> htmlFiles, Path indexFile) throws IOException {
+    Map<String, TermPostings> postingsByTerm = new TreeMap<>();
+    List<String> dirNames = new ArrayList<>();
+    for (Path htmlFile : htmlFiles) {
+      int doc = dirNames.size();
+      dirNames.add(htmlFile.getParent().getFileName().toString());
+      List<String> words = SearchIndex.words(Jsoup.parse(htmlFile.toFile(), "UTF-8").text());
+      for (int pos = 0; pos < words.size(); pos++) {
+        postingsByTerm.computeIfAbsent(words.get(pos), key -> new TermPostings()).add(doc, pos);
+      }
+    }
+    // Sort by UTF-8 bytes, which is the order the dictionary is searched in.
+    List<byte[]> terms = new ArrayList<>();
+    for (String term : postingsByTerm.keySet()) {
+      terms.add(term.getBytes(StandardCharsets.UTF_8));
+    }
+    terms.sort(Arrays::compareUnsigned);
+
+    ByteArrayOutputStream strings = new ByteArrayOutputStream();
+    ByteArrayOutputStream postings = new ByteArrayOutputStream();
+    ByteBuffer docs = ByteBuffer.allocate(dirNames.size() * DOC_ENTRY_SIZE);
+    for (String dirName : dirNames) {
+      byte[] name = dirName.getBytes(StandardCharsets.UTF_8);
+      docs.putInt(dateOf(dirName)).putInt(timeOf(dirName)).putInt(strings.size()).putInt(name.length);
+      strings.write(name);
+    }
+    ByteBuffer dict = ByteBuffer.allocate(terms.size() * TERM_ENTRY_SIZE);
+    for (byte[] term : terms) {
+      TermPostings termPostings = postingsByTerm.get(new String(term, StandardCharsets.UTF_8));
+      dict.putInt(strings.size()).putInt(term.length).putInt(postings.size()).putInt(termPostings.docCount);
+      strings.write(term);
+      termPostings.writeTo(postings);
+    }
+    int docsOffset = HEADER_SIZE;
+    int dictOffset = docsOffset + docs.capacity();
+    int postingsOffset = dictOffset + dict.capacity();
+    long stringsOffset = (long) postingsOffset + postings.size();
+    if (stringsOffset + strings.size() > Integer.MAX_VALUE) {
+      throw new IOException("Journal index would be over 2 GB");
+    }
+    Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(dirNames.size());
+      out.writeInt(terms.size());
+      out.writeInt(docsOffset);
+      out.writeInt(dictOffset);
+      out.writeInt(postingsOffset);
+      out.writeInt((int) stringsOffset);
+      out.write(docs.array());
+      out.write(dict.array());
+      postings.writeTo(out);
+      strings.writeTo(out);
+    }
+    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return dirNames.size();
+  }
+
+  /** Postings of one word while building: for each message, its positions in the message. */
+  private static class TermPostings {
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private int[] pending = new int[4];
+    private int pendingCount = 0;
+    private int lastDoc = -1;
+    private int previousDoc = 0;
+    int docCount = 0;
+
+    void add(int doc, int pos) {
+      if (doc != lastDoc) {
+        flush();
+        lastDoc = doc;
+        docCount++;
+      }
+      if (pendingCount == pending.length) {
+        pending = Arrays.copyOf(pending, pendingCount * 2);
+      }
+      pending[pendingCount++] = pos;
+    }
+
+    /** Encodes the positions of the current message. */
+    private void flush() {
+      if (pendingCount == 0) {
+        return;
+      }
+      writeVarint(encoded, lastDoc - previousDoc);
+      previousDoc = lastDoc;
+      writeVarint(encoded, pendingCount);
+      int previousPos = 0;
+      for (int i = 0; i < pendingCount; i++) {
+        writeVarint(encoded, pending[i] - previousPos);
+        previousPos = pending[i];
+      }
+      pendingCount = 0;
+    }
+
+    void writeTo(ByteArrayOutputStream out) throws IOException {
+      flush();
+      encoded.writeTo(out);
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /** Returns the yyyyMMdd date at the start of a message directory name, or 0 if it doesn't start with one. */
+  private static int dateOf(String dirName) {
+    return dirName.matches("\\d{4}-\\d{2}-\\d{2}.*") ? Integer.parseInt(dirName.substring(0, 10).replace("-", "")) : 0;
+  }
+
+  /** Returns the HHmmss time after the date in a message directory name, or 0 if there isn't one. */
+  private static int timeOf(String dirName) {
+    return dirName.matches("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}.*") ? Integer.parseInt(dirName.substring(11, 19).replace("-", "")) : 0;
+  }
+
+  /**
+   * Maps an index file built by build.
+   * @throws IOException - If it can't be read, or isn't an index
+   */
+  static JournalIndex open(Path indexFile) throws IOException {
+    FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+    try {
+      return new JournalIndex(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  int docCount() {
+    return docCount;
+  }
+
+  /** Returns the directory name of the given message. */
+  String dirName(int doc) {
+    int entry = docsOffset + doc * DOC_ENTRY_SIZE;
+    return string(buffer.getInt(entry + 8), buffer.getInt(entry + 12));
+  }
+
+  /** Returns the date of the given message as yyyyMMdd, or 0 if its directory name doesn't start with one. */
+  int date(int doc) {
+    return buffer.getInt(docsOffset + doc * DOC_ENTRY_SIZE);
+  }
+
+  /**
+   * Finds the messages that contain every phrase of the query, within its dates.
+   * @return Names of the matching message directories, in date order
+   */
+  List<String> search(Query query) {
+    int firstDoc = query.from() != null ? firstDocOnOrAfter(toInt(query.from())) : 0;
+    int endDoc = query.to() != null ? firstDocOnOrAfter(toInt(query.to()) + 1) : docCount;
+    List<String> matches = new ArrayList<>();
+    if (query.phrases().isEmpty()) {
+      for (int doc = firstDoc; doc < endDoc; doc++) {
+        matches.add(dirName(doc));
+      }
+      return matches;
+    }
+    List<List<Postings>> phrasePostings = new ArrayList<>();
+    for (List<String> phrase : query.phrases()) {
+      List<Postings> wordPostings = new ArrayList<>();
+      for (String word : phrase) {
+        Postings postings = postings(word);
+        if (postings == null) {
+          return matches; // A word that appears nowhere
+        }
+        wordPostings.add(postings);
+      }
+      phrasePostings.add(wordPostings);
+    }
+    // Go through the messages of the rarest word, checking each against the others.
+    Postings rarest = phrasePostings.stream().flatMap(List::stream).min((a, b) -> Integer.compare(a.docs.length, b.docs.length)).orElseThrow();
+    for (int doc : rarest.docs) {
+      if (doc >= firstDoc && doc < endDoc && containsAll(phrasePostings, doc)) {
+        matches.add(dirName(doc));
+      }
+    }
+    return matches;
+  }
+
+  private static boolean containsAll(List<List<Postings>> phrasePostings, int doc) {
+    for (List<Postings> phrase : phrasePostings) {
+      int[][] positions = new int[phrase.size()][];
+      for (int i = 0; i < phrase.size(); i++) {
+        positions[i] = phrase.get(i).positionsIn(doc);
+        if (positions[i] == null) {
+          return false;
+        }
+      }
+      if (!containsPhrase(positions)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** True if there's a position p of the first word such that the i-th word is at p + i. */
+  private static boolean containsPhrase(int[][] positions) {
+    for (int start : positions[0]) {
+      boolean isMatch = true;
+      for (int i = 1; i < positions.length && isMatch; i++) {
+        isMatch = Arrays.binarySearch(positions[i], start + i) >= 0;
+      }
+      if (isMatch) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Decoded postings of one word. */
+  private static class Postings {
+    final int[] docs;
+    final int[][] positions;
+
+    Postings(int[] docs, int[][] positions) {
+      this.docs = docs;
+      this.positions = positions;
+    }
+
+    int[] positionsIn(int doc) {
+      int i = Arrays.binarySearch(docs, doc);
+      return i >= 0 ? positions[i] : null;
+    }
+  }
+
+  /**
+   * Looks a word up in the dictionary with a binary search and decodes its postings, or returns null if it isn't there.
+   */
+  private Postings postings(String word) {
+    byte[] target = word.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = termCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = dictOffset + middle * TERM_ENTRY_SIZE;
+      int cmp = compareUnsigned(buffer.getInt(entry), buffer.getInt(entry + 4), target);
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return decode(postingsOffset + buffer.getInt(entry + 8), buffer.getInt(entry + 12));
+      }
+    }
+    return null;
+  }
+
+  private Postings decode(int offset, int count) {
+    int[] docs = new int[count];
+    int[][] positions = new int[count][];
+    int[] pos = {offset};
+    int doc = 0;
+    for (int i = 0; i < count; i++) {
+      doc += readVarint(pos);
+      docs[i] = doc;
+      int[] docPositions = new int[readVarint(pos)];
+      int position = 0;
+      for (int j = 0; j < docPositions.length; j++) {
+        position += readVarint(pos);
+        docPositions[j] = position;
+      }
+      positions[i] = docPositions;
+    }
+    return new Postings(docs, positions);
+  }
+
+  /** Reads a varint at pos[0], and moves pos[0] past it. */
+  private int readVarint(int[] pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get(pos[0]++);
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  /** Compares the UTF-8 string at the given offset in the strings area with target, byte by byte (unsigned). */
+  private int compareUnsigned(int offset, int length, byte[] target) {
+    int start = stringsOffset + offset;
+    for (int i = 0; i < Math.min(length, target.length); i++) {
+      int cmp = Byte.compareUnsigned(buffer.get(start + i), target[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(length, target.length);
+  }
+
+  private String string(int offset, int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(stringsOffset + offset, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Returns the first message dated on or after the given yyyyMMdd date (docs are in date order). */
+  private int firstDocOnOrAfter(int date) {
+    int low = 0;
+    int high = docCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (date(middle) < date) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static int toInt(LocalDate date) {
+    return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+  }
+}
@@ -0,0 +1,554 @@
+package com.bigclue.archive;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MailDateFormat;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.SharedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Archives messages from local files instead of a mail server: an mbox file (such as a Google Takeout export), a
+ *   directory of them, or a Maildir directory. Reading many GB from disk is far faster than fetching it over IMAP.
+ * An mbox file is memory-mapped and split into messages on its "From " lines, and each message is parsed straight from
+ *   the mapped bytes: its parts are views of the file, so an attachment is only read when it's written out. Maildir
+ *   files are mapped the same way. Either way, messages are read with CRLF line endings (see CrlfInputStream).
+ * Messages are parsed and archived on several threads, while the calling thread finds the next ones, and go through
+ *   MailToHtml.archiveMessage like messages from the server. Each message's received date, which names its directory,
+ *   comes from where the mail server would get it: the date on an mbox "From " line (Gmail's internal date, in a
+ *   Takeout export), or a Maildir file's modification time (which Dovecot serves as the internal date).
+ */
+class LocalImporter {
+  /** Largest part of an mbox file mapped at once, since a MappedByteBuffer is indexed by int. */
+  static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+  /** Messages waiting to be archived, per thread, so that the thread finding messages doesn't get far ahead. */
+  private static final int QUEUED_MESSAGES_PER_THREAD = 4;
+  private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+  /** The date at the end of an mbox "From " line, in asctime format with an optional offset: Mon Jan  6 17:53:21 +0000 2014 */
+  private static final Pattern FROM_LINE_DATE =
+      Pattern.compile("[A-Z][a-z]{2} ([A-Z][a-z]{2}) +(\\d{1,2}) (\\d{1,2}):(\\d{2}):(\\d{2})(?: ([+-]\\d{4}))? (\\d{4})\\s*$");
+  private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+  private static final Session SESSION = Session.getInstance(new Properties());
+
+  private final String rootDir;
+  private final String label;
+  private final boolean shouldSkipExisting;
+  private final Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+  private final ExecutorService executor;
+  private final Semaphore queued;
+  private final AtomicInteger foundCount = new AtomicInteger();
+  private final AtomicInteger archivedCount = new AtomicInteger();
+  private volatile Exception failure;
+
+  private LocalImporter(String rootDir, String label, boolean shouldSkipExisting, int threads) {
+    this.rootDir = rootDir;
+    this.label = label;
+    this.shouldSkipExisting = shouldSkipExisting;
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.queued = new Semaphore(threads * QUEUED_MESSAGES_PER_THREAD);
+  }
+
+  /** Receives each message found in an mbox file. */
+  @FunctionalInterface
+  interface MboxConsumer {
+    /**
+     * @param offset - Position of the message's "From " line in the file
+     * @param fromLineDate - Date on the "From " line, or null if it has none
+     * @param content - The message, without its "From " line, with any ">From " lines still escaped
+     */
+    void accept(long offset, Date fromLineDate, ByteBuffer content) throws Exception;
+  }
+
+  /**
+   * Archives the messages in an mbox file, a directory of .mbox files, or a Maildir directory (one with cur and new
+   * subdirectories), and waits for them all to be done.
+   * @param source - File or directory to import
+   * @param rootDir - Journal directory that holds one subdirectory per message
+   * @param label - Only messages with this Gmail label are archived, like the mailbox of the same name over IMAP.
+   *                Messages without an X-Gmail-Labels header (not from Gmail) are always archived.
+   * @param shouldSkipExisting - true if messages whose directory already exists should be skipped
+   * @param threads - Number of threads parsing and archiving messages
+   * @return Number of messages archived (not counting skipped ones)
+   * @throws Exception - The first exception thrown while archiving a message, after all the threads have stopped
+   */
+  static int importMail(Path source, String rootDir, String label, boolean shouldSkipExisting, int threads) throws Exception {
+    LocalImporter importer = new LocalImporter(rootDir, label, shouldSkipExisting, threads);
+    try {
+      if (Files.isDirectory(source.resolve("cur")) || Files.isDirectory(source.resolve("new"))) {
+        importer.importMaildir(source);
+      } else if (Files.isDirectory(source)) {
+        for (Path file : list(source, "*.mbox")) {
+          importer.importMbox(file);
+        }
+      } else {
+        importer.importMbox(source);
+      }
+    } finally {
+      importer.executor.shutdown();
+      importer.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    importer.throwIfFailed();
+    log("Archived " + importer.archivedCount.get() + " of " + importer.foundCount.get() + " messages from " + source);
+    return importer.archivedCount.get();
+  }
+
+  private void importMbox(Path file) throws Exception {
+    log("Importing " + file);
+    splitMbox(file, MAX_WINDOW_SIZE, (offset, fromLineDate, content) -> {
+      String where = "byte " + offset + " of " + file;
+      submit(where, () -> importMessage(where, new ImportedMessage(new CrlfInputStream(unescapeFromLines(content)), fromLineDate)));
+    });
+  }
+
+  private void importMaildir(Path dir) throws Exception {
+    log("Importing Maildir " + dir);
+    // Maildir file names start with the delivery time, so this is roughly the order the messages arrived in.
+    List<Path> files = new ArrayList<>();
+    for (String subdir : List.of("cur", "new")) {
+      if (Files.isDirectory(dir.resolve(subdir))) {
+        files.addAll(list(dir.resolve(subdir), "*"));
+      }
+    }
+    files.sort(Comparator.comparing(Path::getFileName));
+    for (Path file : files) {
+      submit(file.toString(), () -> {
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+          content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        importMessage(file.toString(), new ImportedMessage(new CrlfInputStream(content), new Date(Files.getLastModifiedTime(file).toMillis())));
+      });
+    }
+  }
+
+  /** One message to parse and archive. */
+  @FunctionalInterface
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  /** Queues a message to be archived by one of the threads, waiting if too many are already queued. */
+  private void submit(String where, Task task) throws Exception {
+    throwIfFailed();
+    foundCount.incrementAndGet();
+    queued.acquire();
+    executor.execute(() -> {
+      try {
+        if (failure == null) {
+          task.run();
+        }
+      } catch (Exception e) {
+        log("  ## Failed to import the message at " + where + ": " + e);
+        synchronized (this) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      } finally {
+        queued.release();
+      }
+    });
+  }
+
+  private void throwIfFailed() throws Exception {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void importMessage(String where, ImportedMessage message) throws Exception {
+    if (!hasLabel(message, label)) {
+      return;
+    }
+    if (message.getReceivedDate() == null) {
+      log("  ## Skipping message with no date at " + where);
+      Metrics.count(Metrics.Counter.MESSAGES_SKIPPED, 1);
+      return;
+    }
+    if (MailToHtml.archiveMessage(message, rootDir, shouldSkipExisting, claimedDirs) != null) {
+      archivedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Finds the messages in an mbox file: each starts with a line like "From sender date", at the start of the file or
+   * right after a newline, and ends with the blank line before the next one. A "From " line without a date is taken
+   * to be part of a message whose writer didn't escape it.
+   * The file is mapped a window at a time, each window starting at a message.
+   * @param windowSize - Largest part of the file to map at once; each message, with the "From " line after it, has to
+   *                     fit in one window
+   * @throws IOException - If the file isn't an mbox file, or has a message bigger than windowSize
+   */
+  static void splitMbox(Path file, int windowSize, MboxConsumer consumer) throws Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long pos = 0;
+      while (pos < size) {
+        int mapSize = (int) Math.min(size - pos, windowSize);
+        ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapSize);
+        boolean isLastWindow = pos + mapSize == size;
+        if (pos == 0 && !startsWith(window, 0, FROM)) {
+          throw new IOException(file + " is not an mbox file");
+        }
+        int start = 0;
+        while (start < mapSize) {
+          int lineEnd = lineEnd(window, start, isLastWindow);
+          int next = lineEnd < 0 ? -1 : nextFromLine(window, lineEnd, isLastWindow);
+          if (next < 0 && !isLastWindow) {
+            // The message may go on past this window, so map the next window starting at it.
+            break;
+          }
+          int lineStart = start;
+          Date fromLineDate = Metrics.time(Metrics.Stage.PARSE, () -> fromLineDate(window, lineStart, lineEnd));
+          int end = next < 0 ? mapSize : next;
+          if (next < 0 && end - lineEnd > 2 && window.get(end - 1) == '\n' && window.get(end - 2) == '\n') {
+            end--; // The blank line after the last message
+          }
+          consumer.accept(pos + start, fromLineDate, window.slice(Math.min(lineEnd + 1, end), Math.max(0, end - lineEnd - 1)));
+          start = next < 0 ? mapSize : next + 1;
+        }
+        if (start == 0) {
+          throw new IOException("The message at byte " + pos + " of " + file + " is bigger than " + windowSize + " bytes");
+        }
+        pos += start;
+      }
+    }
+  }
+
+  /** Returns the position of the newline ending the line at start, or the end of the last window, or -1. */
+  private static int lineEnd(ByteBuffer window, int start, boolean isLastWindow) {
+    for (int i = start; i < window.limit(); i++) {
+      if (window.get(i) == '\n') {
+        return i;
+      }
+    }
+    return isLastWindow ? window.limit() : -1;
+  }
+
+  /**
+   * Returns the position of the newline before the next "From " line with a date after pos, or -1 if there's none
+   * in the window (or the last one found doesn't end in the window, so it can't be told apart from message text).
+   */
+  private static int nextFromLine(ByteBuffer window, int pos, boolean isLastWindow) {
+    return Metrics.time(Metrics.Stage.PARSE, () -> findFromLine(window, pos, isLastWindow));
+  }
+
+  private static int findFromLine(ByteBuffer window, int pos, boolean isLastWindow) {
+    for (int i = pos; i < window.limit() - FROM.length; i++) {
+      if (window.get(i) == '\n' && startsWith(window, i + 1, FROM)) {
+        int lineEnd = lineEnd(window, i + 1, isLastWindow);
+        if (lineEnd < 0) {
+          return -1;
+        }
+        if (fromLineDate(window, i + 1, lineEnd) != null) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(ByteBuffer window, int pos, byte[] prefix) {
+    if (pos + prefix.length > window.limit()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (window.get(pos + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the date at the end of the "From " line from start to lineEnd, or null if it doesn't have one. */
+  private static Date fromLineDate(ByteBuffer window, int start, int lineEnd) {
+    byte[] line = new byte[lineEnd - start];
+    window.get(start, line);
+    Matcher m = FROM_LINE_DATE.matcher(new String(line, StandardCharsets.ISO_8859_1));
+    int month = m.find() ? MONTHS.indexOf(m.group(1)) : -1;
+    if (month < 0 || month % 3 != 0) {
+      return null;
+    }
+    try {
+      LocalDateTime dateTime = LocalDateTime.of(Integer.parseInt(m.group(7)), month / 3 + 1, Integer.parseInt(m.group(2)),
+          Integer.parseInt(m.group(3)), Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)));
+      // Without an offset, the date is usually the mail server's local time, which is unknown, so UTC is as good a guess as any.
+      return Date.from(dateTime.toInstant(m.group(6) == null ? ZoneOffset.UTC : ZoneOffset.of(m.group(6))));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Undoes the escaping of lines in an mbox message that would otherwise look like "From " lines (mboxrd format):
+   * removes one '>' from each line that starts with one or more of them followed by "From ".
+   * @return content itself if it has no such lines, or else an unescaped copy
+   */
+  static ByteBuffer unescapeFromLines(ByteBuffer content) {
+    byte[] copy = null;
+    int copied = 0;
+    int length = 0;
+    for (int i = 0; i < content.limit(); i++) {
+      if ((i == 0 || content.get(i - 1) == '\n') && content.get(i) == '>') {
+        int j = i;
+        while (j < content.limit() && content.get(j) == '>') {
+          j++;
+        }
+        if (startsWith(content, j, FROM)) {
+          if (copy == null) {
+            copy = new byte[content.limit()];
+          }
+          content.get(copied, copy, length, i - copied);
+          length += i - copied;
+          copied = i + 1;
+        }
+      }
+    }
+    if (copy == null) {
+      return content;
+    }
+    content.get(copied, copy, length, content.limit() - copied);
+    length += content.limit() - copied;
+    return ByteBuffer.wrap(copy, 0, length).slice();
+  }
+
+  /**
+   * Returns true if label is null, the message has no X-Gmail-Labels header, or the header lists the label.
+   * Labels are compared ignoring case, since Gmail's "Inbox" label is the INBOX mailbox over IMAP.
+   */
+  static boolean hasLabel(MimeMessage message, String label) throws MessagingException {
+    String header = message.getHeader("X-Gmail-Labels", null);
+    if (label == null || header == null) {
+      return true;
+    }
+    try {
+      header = MimeUtility.decodeText(MimeUtility.unfold(header));
+    } catch (UnsupportedEncodingException e) {
+      // Compare the undecoded labels
+    }
+    // Labels are separated by commas, and quoted if they contain one.
+    StringBuilder current = new StringBuilder();
+    boolean isQuoted = false;
+    for (int i = 0; i <= header.length(); i++) {
+      char c = i < header.length() ? header.charAt(i) : ',';
+      if (c == '"') {
+        isQuoted = !isQuoted;
+      } else if (c == '\\' && isQuoted && i + 1 < header.length()) {
+        current.append(header.charAt(++i));
+      } else if (c == ',' && !isQuoted) {
+        if (current.toString().trim().equalsIgnoreCase(label)) {
+          return true;
+        }
+        current.setLength(0);
+      } else {
+        current.append(c);
+      }
+    }
+    return false;
+  }
+
+  private static List<Path> list(Path dir, String glob) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+      for (Path file : stream) {
+        if (Files.isRegularFile(file)) {
+          files.add(file);
+        }
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * A message parsed from a local file, with the received date that the mail server would have given it. Without a
+   * known one, it falls back on the date of the first Received header (the last one added, on delivery), then the Date header.
+   */
+  private static class ImportedMessage extends MimeMessage {
+    private final Date receivedDate;
+
+    ImportedMessage(InputStream in, Date receivedDate) throws MessagingException {
+      super(SESSION, in);
+      this.receivedDate = receivedDate != null ? receivedDate : headerDate(this);
+    }
+
+    @Override
+    protected void parse(InputStream is) throws MessagingException {
+      Metrics.time(Metrics.Stage.PARSE, () -> super.parse(is));
+    }
+
+    @Override
+    public Date getReceivedDate() {
+      return receivedDate;
+    }
+
+    private static Date headerDate(MimeMessage message) throws MessagingException {
+      String[] received = message.getHeader("Received");
+      if (received != null) {
+        String header = received[0];
+        try {
+          return new MailDateFormat().parse(MimeUtility.unfold(header.substring(header.lastIndexOf(';') + 1)).trim());
+        } catch (ParseException e) {
+          // Use the Date header
+        }
+      }
+      return message.getSentDate();
+    }
+  }
+
+  /**
+   * Reads a message from a buffer with CRLF line endings, as a mail server sends it. Local files usually have bare
+   *   LFs, which would give text parts different line endings than the same messages fetched over IMAP, so the stream
+   *   puts a CR before each bare LF as it reads, rather than copying the message to convert it.
+   * As a SharedInputStream, it lets MimeMessage and MimeMultipart keep each part as a view of the buffer, instead of
+   *   copying it onto the heap. Positions are counted in the converted message, CRs included.
+   */
+  static class CrlfInputStream extends InputStream implements SharedInputStream {
+    private final ByteBuffer buffer;
+    /** Where the added CRs are in the converted message, in order: the position of the i-th bare LF, plus i. */
+    private final int[] crs;
+    private final int start;
+    private final int end;
+    private int pos;
+    private int mark;
+
+    CrlfInputStream(ByteBuffer buffer) {
+      this(buffer, addedCrs(buffer), 0, -1);
+    }
+
+    private CrlfInputStream(ByteBuffer buffer, int[] crs, int start, int end) {
+      this.buffer = buffer;
+      this.crs = crs;
+      this.start = start;
+      this.end = end < 0 ? buffer.limit() + crs.length : end;
+      this.pos = start;
+      this.mark = start;
+    }
+
+    private static int[] addedCrs(ByteBuffer buffer) {
+      int[] crs = new int[16];
+      int count = 0;
+      for (int i = 0; i < buffer.limit(); i++) {
+        if (buffer.get(i) == '\n' && (i == 0 || buffer.get(i - 1) != '\r')) {
+          if (count == crs.length) {
+            crs = Arrays.copyOf(crs, count * 2);
+          }
+          crs[count] = i + count;
+          count++;
+        }
+      }
+      return Arrays.copyOf(crs, count);
+    }
+
+    /** Returns the number of added CRs before pos, which is also the index of the next one. */
+    private int crsBefore(int pos) {
+      int i = Arrays.binarySearch(crs, pos);
+      return i >= 0 ? i : -i - 1;
+    }
+
+    @Override
+    public int read() {
+      if (pos >= end) {
+        return -1;
+      }
+      int crCount = crsBefore(pos);
+      pos++;
+      return crCount < crs.length && crs[crCount] == pos - 1 ? '\r' : buffer.get(pos - 1 - crCount) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (pos >= end) {
+        return -1;
+      }
+      int count = 0;
+      int crCount = crsBefore(pos);
+      while (count < len && pos < end) {
+        if (crCount < crs.length && crs[crCount] == pos) {
+          b[off + count++] = '\r';
+          pos++;
+          crCount++;
+        } else {
+          // Copy up to the next added CR.
+          int n = Math.min(len - count, Math.min(end, crCount < crs.length ? crs[crCount] : end) - pos);
+          buffer.get(pos - crCount, b, off + count, n);
+          count += n;
+          pos += n;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, end - pos));
+      pos += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return end - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+      mark = pos;
+    }
+
+    @Override
+    public synchronized void reset() {
+      pos = mark;
+    }
+
+    @Override
+    public long getPosition() {
+      return pos - start;
+    }
+
+    @Override
+    public InputStream newStream(long start, long end) {
+      return new CrlfInputStream(buffer, crs, this.start + (int) start, end == -1 ? this.end : this.start + (int) end);
+    }
+  }
+}
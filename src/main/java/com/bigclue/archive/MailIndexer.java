@@ -1,15 +1,20 @@
 package com.bigclue.archive;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static com.bigclue.archive.MailToHtml.escapeHtml;
 import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+import static com.bigclue.archive.MailToHtml.writeFileIfChanged;
 import static java.nio.file.Files.readString;
 
 /**
@@ -24,194 +29,450 @@ public class MailIndexer {
     MailIndexer.createIndexHtml(inputDir, outputFile);
   }
 
+  /**
+   * Writes index.html listing every message directory under inputDir. The page itself is only a shell: the list of
+   * messages is written a year at a time to the .index directory (see IndexShards), and the page loads a year when
+   * it's expanded and only keeps the rows that can be seen in the document, so it opens quickly however long the
+   * journal is. Titles are taken from the TitleCache, so only new or changed message files are read, and only the
+   * years whose messages changed are rewritten.
+   * @param inputDir - Directory containing one subdirectory per email message
+   * @param outputFile - Index file, relative to inputDir
+   */
   public static void createIndexHtml(String inputDir, String outputFile) throws IOException {
     List<Path> htmlFiles = getHtmlFiles(inputDir);
+    TitleCache titleCache = TitleCache.load(Paths.get(inputDir));
     //MailIndexer.linkEpisodes(htmlFiles);
+    Map<String, List<IndexShards.Row>> rowsByYear = new TreeMap<>();
+    for (Path htmlFile : htmlFiles) {
+      String dirName = htmlFile.getParent().getFileName().toString();
+      String[] parts = dirName.split("_");
+      if (parts.length < 2) {
+        System.out.println("Could not parse message directory name: " + dirName);
+        continue;
+      }
+      String year = parts[0].substring(0, 4);
+      String escapedTitle = titleCache.escapedTitle(dirName, htmlFile, MailIndexer::readEscapedTitle);
+      rowsByYear.computeIfAbsent(year, key -> new ArrayList<>()).add(new IndexShards.Row(dirName, escapedTitle));
+    }
+    Path indexDir = Files.createDirectories(Paths.get(inputDir, IndexShards.INDEX_DIR));
+    Map<String, Integer> counts = new TreeMap<>();
+    int writtenCount = 0;
+    for (Map.Entry<String, List<IndexShards.Row>> e : rowsByYear.entrySet()) {
+      if (IndexShards.writeYear(indexDir, e.getKey(), e.getValue())) {
+        writtenCount++;
+      }
+      counts.put(e.getKey(), e.getValue().size());
+    }
+    IndexShards.writeYears(indexDir, counts);
+    IndexShards.deleteStaleYears(indexDir, counts.keySet());
+    writeFileIfChanged(Paths.get(inputDir, outputFile), indexPageHtml(inputDir));
+    titleCache.save();
+    System.out.println("Indexed " + htmlFiles.size() + " messages; read titles from " + titleCache.readCount()
+        + " of them; wrote " + writtenCount + " of " + counts.size() + " years");
+    updateSearchIndex(inputDir, htmlFiles);
+  }
+
+  private static void updateSearchIndex(String inputDir, List<Path> htmlFiles) throws IOException {
+    SearchIndex.Result result = SearchIndex.update(Paths.get(inputDir), htmlFiles);
+    System.out.println("Search index: tokenized " + result.tokenizedCount() + " of " + result.docCount()
+        + " messages; wrote " + result.writtenCount() + " files (" + result.shardCount() + " shards)");
+  }
+
+  /** Returns the index page, which is the same for every journal but for its heading. */
+  private static String indexPageHtml(String inputDir) {
     StringBuilder html = new StringBuilder();
+    html.append(INDEX_PAGE_HEAD);
+    html.append("<h2>").append(escapeHtml(inputDir)).append("</h2>\n");
+    html.append("<div class='search-box'><input id='search' type='search' placeholder='Search' oninput='runSearch()'>"
+        + " <span id='search-status'></span></div>\n");
     html.append("""
-        <html>
-        <head>
-          <meta charset="UTF-8">
-          <title>Email Index 1.3</title>
-          <style>
-            body { margin: 0; padding: 0; }
-            .container { display: flex; height: 100vh; }
-            .table-pane { flex-basis: 550px; flex-shrink: 0; flex-grow: 0; min-width: 200px; overflow-y: auto; }
-            .divider { width: 5px; background: #ccc; cursor: ew-resize; position: relative; z-index: 10; }
-            .iframe-pane { flex: 1 1 0; overflow-y: auto; }
-            .year-row { background: #eee; font-weight: bold; cursor: pointer; }
-            .width-keeper { visibility: collapse; height: 0 !important; padding: 0 !important; border: none !important; }
-            .hidden { display: none; }
-            .collapse-link { float: right; font-size: small; cursor: pointer; }
-            a { text-decoration: none; }
-            tr.selected { background: #d0eaff; }
-            .date-cell { width: 80px; white-space: nowrap; }
-          </style>
-          <script>
-            function toggleYear(year) {
-              var rows = document.querySelectorAll('.row-' + year);
-              var hidden = false;
-              for (var i = 0; i < rows.length; i++) {
-                if (!rows[i].classList.contains('hidden')) { hidden = true; break; }
+        <table>
+        <thead><tr><th class="date-cell">Date</th><th>Subject</th></tr></thead>
+        <tbody id='rows'></tbody>
+        </table>
+        </div>
+        <div id='divider' class='divider'></div>
+        <div class='iframe-pane'><iframe id='reading-pane' style='width:100%;height:100%;border:none;'></iframe></div>
+        </div>
+        <script src='.index/years.js'></script>
+        </body>
+        </html>
+        """);
+    return html.toString();
+  }
+
+  private static final String INDEX_PAGE_HEAD = """
+      <html>
+      <head>
+        <meta charset="UTF-8">
+        <title>Email Index 1.4</title>
+        <style>
+          body { margin: 0; padding: 0; }
+          .container { display: flex; height: 100vh; }
+          .table-pane { flex-basis: 550px; flex-shrink: 0; flex-grow: 0; min-width: 200px; overflow-y: auto; position: relative; }
+          .divider { width: 5px; background: #ccc; cursor: ew-resize; position: relative; z-index: 10; }
+          .iframe-pane { flex: 1 1 0; overflow-y: auto; }
+          table { width: 100%; table-layout: fixed; border-collapse: collapse; }
+          th, td { border: 1px solid #888; padding: 0 4px; height: 24px; white-space: nowrap; overflow: hidden; text-overflow: ellipsis; }
+          tr.spacer td { border: none; padding: 0; }
+          .year-row { background: #eee; font-weight: bold; cursor: pointer; }
+          .year-count { font-weight: normal; font-size: small; }
+          .collapse-link { float: right; font-size: small; cursor: pointer; }
+          a { text-decoration: none; }
+          tr.selected { background: #d0eaff; }
+          .date-cell { width: 80px; }
+          .search-box { margin: 0 4px 8px 4px; }
+          .search-box input { width: 60%; }
+        </style>
+        <script>
+          // The list of messages is loaded from .index a year at a time, when the year is expanded (or has search matches),
+          // and only the rows that can be seen (give or take OVERSCAN) are in the document. items is everything listed:
+          // a year string for a year's row, or [dirName, escapedTitle] for a message's.
+          var OVERSCAN = 20;
+          var years = [];
+          var yearRows = {};
+          var yearRequested = {};
+          var expanded = {};
+          var items = [];
+          var selectedDir = null;
+          var rowHeight = 26;
+          var rowHeightMeasured = false;
+          var renderPending = false;
+          function indexYearsLoaded(list) {
+            years = list;
+            // The latest year starts out expanded, so the newest messages are listed as soon as the page opens.
+            if (years.length > 0) {
+              expanded[years[years.length - 1][0]] = true;
+              loadYear(years[years.length - 1][0]);
+            }
+            updateItems();
+          }
+          function indexYearLoaded(year, rows) { yearRows[year] = rows; updateItems(); }
+          function loadYear(year) {
+            if (yearRequested[year]) return;
+            yearRequested[year] = true;
+            var script = document.createElement('script');
+            script.src = '.index/' + year + '.js';
+            document.head.appendChild(script);
+          }
+          function toggleYear(year) {
+            expanded[year] = !expanded[year];
+            if (expanded[year]) loadYear(year);
+            updateItems();
+          }
+          function collapseAll() {
+            expanded = {};
+            updateItems();
+          }
+          function expandAll() {
+            years.forEach(function(entry) { expanded[entry[0]] = true; loadYear(entry[0]); });
+            updateItems();
+          }
+          function updateItems() {
+            items = [];
+            years.forEach(function(entry) {
+              var year = entry[0];
+              var rows = yearRows[year] || [];
+              if (searchMatches) {
+                if (!searchYearCounts.has(year)) return;
+                rows = rows.filter(function(row) { return searchMatches.has(row[0]); });
+              } else if (!expanded[year]) {
+                rows = [];
               }
-              for (var i = 0; i < rows.length; i++) {
-                if (hidden) rows[i].classList.add('hidden'); else rows[i].classList.remove('hidden');
+              items.push(year);
+              for (var i = 0; i < rows.length; i++) items.push(rows[i]);
+            });
+            render();
+          }
+          function escapeHtml(s) {
+            return s.replace(/&/g, '&amp;').replace(/</g, '&lt;').replace(/>/g, '&gt;').replace(/"/g, '&quot;').replace(/'/g, '&#39;');
+          }
+          function htmlFileOf(dirName) { return dirName + '/' + dirName + '.html'; }
+          function rowHtml(item, isFirst) {
+            if (typeof item === 'string') {
+              // While searching, a year's count is of its matches.
+              var count = searchMatches ? searchYearCounts.get(item) : years.find(function(entry) { return entry[0] === item; })[1];
+              return "<tr class='year-row' data-year='" + escapeHtml(item) + "'><td colspan=2>" + escapeHtml(item)
+                  + " <span class='year-count'>(" + count + ")</span>"
+                  + (isFirst ? " <span class='collapse-link'><span onclick='event.stopPropagation();expandAll();'>Expand all</span> / "
+                      + "<span onclick='event.stopPropagation();collapseAll();'>Collapse all</span></span>" : '')
+                  + "</td></tr>";
+            }
+            return "<tr" + (item[0] === selectedDir ? " class='selected'" : '') + " data-dir='" + escapeHtml(item[0]) + "'>"
+                + "<td class='date-cell'>" + escapeHtml(item[0].split('_')[0]) + "</td>"
+                + "<td><a href='" + escapeHtml(htmlFileOf(item[0])) + "' target='_blank'>" + item[1] + "</a></td></tr>";
+          }
+          function spacerHtml(height) {
+            return height > 0 ? "<tr class='spacer'><td colspan=2 style='height:" + height + "px'></td></tr>" : '';
+          }
+          // Top of the first row, in the table pane's scrolling coordinates.
+          function listTop() {
+            var table = document.querySelector('.table-pane table');
+            return table.offsetTop + table.tHead.offsetHeight;
+          }
+          function render() {
+            renderPending = false;
+            var pane = document.querySelector('.table-pane');
+            var tbody = document.getElementById('rows');
+            var first = Math.max(0, Math.min(items.length, Math.floor((pane.scrollTop - listTop()) / rowHeight)) - OVERSCAN);
+            var last = Math.min(items.length, first + Math.ceil(pane.clientHeight / rowHeight) + 2 * OVERSCAN);
+            var html = [spacerHtml(first * rowHeight)];
+            for (var i = first; i < last; i++) html.push(rowHtml(items[i], i === 0));
+            html.push(spacerHtml((items.length - last) * rowHeight));
+            tbody.innerHTML = html.join('');
+            var row = tbody.querySelector('tr[data-dir], tr.year-row');
+            if (!rowHeightMeasured && row && row.offsetHeight > 0) {
+              // Now that there's a row to measure, lay them out again if they turned out to be a different height than guessed.
+              rowHeightMeasured = true;
+              if (row.offsetHeight !== rowHeight) {
+                rowHeight = row.offsetHeight;
+                render();
               }
             }
-            function collapseAll() {
-              var years = document.querySelectorAll('.year-row');
-              years.forEach(function(row) {
-                var year = row.getAttribute('data-year');
-                var rows = document.querySelectorAll('.row-' + year);
-                rows.forEach(function(r) { r.classList.add('hidden'); });
-              });
+          }
+          function scheduleRender() {
+            if (renderPending) return;
+            renderPending = true;
+            window.requestAnimationFrame(render);
+          }
+          function selectRow(dirName) {
+            selectedDir = dirName;
+            document.getElementById('reading-pane').src = htmlFileOf(dirName);
+            render();
+          }
+          // Scrolls the table pane just far enough for the given item to be seen.
+          function scrollToItem(index) {
+            var pane = document.querySelector('.table-pane');
+            var top = listTop() + index * rowHeight;
+            if (top < pane.scrollTop) {
+              pane.scrollTop = top;
+            } else if (top + rowHeight > pane.scrollTop + pane.clientHeight) {
+              pane.scrollTop = top + rowHeight - pane.clientHeight;
             }
-            function expandAll() {
-              var years = document.querySelectorAll('.year-row');
-              years.forEach(function(row) {
-                var year = row.getAttribute('data-year');
-                var rows = document.querySelectorAll('.row-' + year);
-                rows.forEach(function(r) { r.classList.remove('hidden'); });
-              });
+            render();
+          }
+          // Search: the index in .search is loaded a piece at a time, only once there is something to search for.
+          // While searching, searchMatches has the matching directory names, and searchYearCounts the number in each year.
+          var searchDocs = null;
+          var searchShards = {};
+          var searchRequested = {};
+          var searchMatches = null;
+          var searchYearCounts = null;
+          function searchDocsLoaded(docs) { searchDocs = docs; runSearch(); }
+          function searchShardLoaded(shard, postings) { searchShards[shard] = postings; runSearch(); }
+          function loadSearchScript(file, onError) {
+            if (searchRequested[file]) return;
+            searchRequested[file] = true;
+            var script = document.createElement('script');
+            script.src = '.search/' + file;
+            script.onerror = onError;
+            document.head.appendChild(script);
+          }
+          function searchTerms(query) {
+            return query.normalize('NFD').replace(/\\p{M}+/gu, '').toLowerCase().split(/[^\\p{L}\\p{N}]+/u)
+                .filter(function(term) { return term.length >= 2 && term.length <= 40; });
+          }
+          function shardOf(term) {
+            var shard = '';
+            for (var i = 0; i < Math.min(2, term.length); i++) {
+              var c = term.charAt(i);
+              shard += /[a-z0-9]/.test(c) ? c : '_' + c.charCodeAt(0).toString(16);
             }
-            function selectRow(row, htmlFile) {
-              // Remove selection from other rows
-              var selected = document.querySelector('tr.selected');
-              if (selected) selected.classList.remove('selected');
-              row.classList.add('selected');
-      
-              // Load content in iframe using relative path
-              var iframe = document.getElementById('reading-pane');
-              iframe.src = htmlFile;
+            return shard;
+          }
+          function runSearch() {
+            var status = document.getElementById('search-status');
+            var terms = searchTerms(document.getElementById('search').value);
+            if (terms.length === 0) {
+              searchMatches = null;
+              status.textContent = '';
+              updateItems();
+              return;
+            }
+            if (!searchDocs) { loadSearchScript('docs.js'); return; }
+            var matches = null;
+            for (var i = 0; i < terms.length; i++) {
+              var shard = shardOf(terms[i]);
+              if (!(shard in searchShards)) {
+                loadSearchScript('t-' + shard + '.js', function() { searchShards[shard] = {}; runSearch(); });
+                return;
+              }
+              var docs = new Set();
+              var deltas = searchShards[shard][terms[i]] || [];
+              for (var j = 0, doc = 0; j < deltas.length; j++) { doc += deltas[j]; docs.add(doc); }
+              matches = matches === null ? docs : new Set(Array.from(matches).filter(function(d) { return docs.has(d); }));
             }
+            searchMatches = new Set(Array.from(matches).map(function(doc) { return searchDocs[doc]; }));
+            searchYearCounts = new Map();
+            searchMatches.forEach(function(dirName) {
+              var year = dirName.substring(0, 4);
+              searchYearCounts.set(year, (searchYearCounts.get(year) || 0) + 1);
+            });
+            searchYearCounts.forEach(function(count, year) { loadYear(year); });
+            status.textContent = searchMatches.size + (searchMatches.size === 1 ? ' match' : ' matches');
+            updateItems();
+          }
+          window.onload = function() {
+            var divider = document.getElementById('divider');
+            var container = document.querySelector('.container');
+            var tablePane = document.querySelector('.table-pane');
+            tablePane.addEventListener('scroll', scheduleRender);
+            window.addEventListener('resize', scheduleRender);
+            // Rows come and go as the list scrolls, so their clicks are handled here.
+            document.getElementById('rows').addEventListener('click', function(e) {
+              var row = e.target.closest('tr');
+              if (!row) return;
+              if (row.hasAttribute('data-year')) toggleYear(row.getAttribute('data-year'));
+              else if (row.hasAttribute('data-dir')) selectRow(row.getAttribute('data-dir'));
+            });
             // Divider drag logic
-            window.onload = function() {
-              var divider = document.getElementById('divider');
-              var container = document.querySelector('.container');
-              var tablePane = document.querySelector('.table-pane');
-              var isDragging = false;
-              var startX, startWidth;
-              var overlay = document.createElement('div');
-              overlay.style.position = 'fixed';
-              overlay.style.top = '0';
-              overlay.style.left = '0';
-              overlay.style.width = '100vw';
-              overlay.style.height = '100vh';
-              overlay.style.zIndex = '9999';
-              overlay.style.cursor = 'ew-resize';
-              overlay.style.background = 'rgba(0,0,0,0)';
-              divider.addEventListener('mousedown', function(e) {
-                isDragging = true;
-                document.body.style.cursor = 'ew-resize';
-                startX = e.clientX;
-                startWidth = tablePane.offsetWidth;
-                document.body.appendChild(overlay);
+            var isDragging = false;
+            var startX, startWidth;
+            var overlay = document.createElement('div');
+            overlay.style.position = 'fixed';
+            overlay.style.top = '0';
+            overlay.style.left = '0';
+            overlay.style.width = '100vw';
+            overlay.style.height = '100vh';
+            overlay.style.zIndex = '9999';
+            overlay.style.cursor = 'ew-resize';
+            overlay.style.background = 'rgba(0,0,0,0)';
+            divider.addEventListener('mousedown', function(e) {
+              isDragging = true;
+              document.body.style.cursor = 'ew-resize';
+              startX = e.clientX;
+              startWidth = tablePane.offsetWidth;
+              document.body.appendChild(overlay);
+              e.preventDefault();
+            });
+            document.addEventListener('mousemove', function(e) {
+              if (!isDragging) return;
+              var minWidth = 200;
+              var maxWidth = container.offsetWidth - minWidth;
+              var delta = e.clientX - startX;
+              var newWidth = Math.min(Math.max(startWidth + delta, minWidth), maxWidth);
+              tablePane.style.flexBasis = newWidth + 'px';
+            });
+            document.addEventListener('mouseup', function(e) {
+              if (isDragging) {
+                isDragging = false;
+                document.body.style.cursor = '';
+                if (overlay.parentNode) overlay.parentNode.removeChild(overlay);
+              }
+            });
+            // Keyboard navigation and escape
+            document.addEventListener('keydown', function(e) {
+              var iframe = document.getElementById('reading-pane');
+              if (e.key === 'Escape') {
+                selectedDir = null;
+                iframe.src = '';
+                render();
+              } else if (e.key === 'ArrowUp' || e.key === 'ArrowDown') {
+                if (selectedDir === null) return;
                 e.preventDefault();
-              });
-              document.addEventListener('mousemove', function(e) {
-                if (!isDragging) return;
-                var minWidth = 200;
-                var maxWidth = container.offsetWidth - minWidth;
-                var delta = e.clientX - startX;
-                var newWidth = Math.min(Math.max(startWidth + delta, minWidth), maxWidth);
-                tablePane.style.flexBasis = newWidth + 'px';
-              });
-              document.addEventListener('mouseup', function(e) {
-                if (isDragging) {
-                  isDragging = false;
-                  document.body.style.cursor = '';
-                  if (overlay.parentNode) overlay.parentNode.removeChild(overlay);
-                }
-              });
-              // Keyboard navigation and escape
-              document.addEventListener('keydown', function(e) {
-                var selected = document.querySelector('tr.selected');
-                var iframe = document.getElementById('reading-pane');
-                if (e.key === 'Escape') {
-                  if (selected) selected.classList.remove('selected');
-                  iframe.src = '';
-                } else if (e.key === 'ArrowUp' || e.key === 'ArrowDown') {
-                  if (!selected) return;
-                  e.preventDefault();
-                  e.stopPropagation();
-                  var rows = Array.from(document.querySelectorAll('tr[class^="row-"]'));
-                  var currentIndex = rows.indexOf(selected);
-                  var nextIndex = currentIndex;
-                  if (e.key === 'ArrowUp') {
-                    for (var i = currentIndex - 1; i >= 0; i--) {
-                      if (rows[i]) { nextIndex = i; break; }
-                    }
-                  } else {
-                    for (var i = currentIndex + 1; i < rows.length; i++) {
-                      if (rows[i]) { nextIndex = i; break; }
-                    }
-                  }
-                  if (nextIndex !== currentIndex) {
-                    selected.classList.remove('selected');
-                    var nextRow = rows[nextIndex];
-                    nextRow.classList.add('selected');
-                    var htmlFile = nextRow.getAttribute('onclick').match(/'([^']+)'/)[1];
-                    iframe.src = htmlFile;
-                    nextRow.scrollIntoView({block: 'nearest'});
+                e.stopPropagation();
+                var current = items.findIndex(function(item) { return typeof item !== 'string' && item[0] === selectedDir; });
+                var step = e.key === 'ArrowUp' ? -1 : 1;
+                for (var i = current + step; current >= 0 && i >= 0 && i < items.length; i += step) {
+                  if (typeof items[i] !== 'string') {
+                    selectRow(items[i][0]);
+                    scrollToItem(i);
+                    break;
                   }
                 }
-              });
-            };
-          </script>
-        </head>
-        <body>
-        <div class='container'>
-          <div class='table-pane'>
-        """);
-    html.append("<h2>").append(escapeHtml(inputDir)).append("</h2>\n");
-    html.append("""
-        <table border=1 cellpadding=4 cellspacing=0 style='width:100%'>
-        <tr><th class="date-cell">Date</th><th>Subject</th></tr>
-        <tr class='width-keeper'><td class="date-cell">2000-01-01</td><td>The world didn't end when Y2K hit.</td></tr>
-        """);
-    String lastYear = null;
-    boolean firstYearRow = true;
-    for (Path htmlFile : htmlFiles) {
-      String dirName = htmlFile.getParent().getFileName().toString();
-      String[] parts = dirName.split("_");
-      if (parts.length < 2) {
-        System.out.println("Could not parse message directory name: " + dirName);
-        continue;
-      }
-      String date = parts[0];
-      String year = date.substring(0, 4);
-      if (!year.equals(lastYear)) {
-        html.append("<tr class='year-row' data-year='").append(year).append("' onclick='toggleYear(\"").append(year).append("\")'>");
-        html.append("<td colspan=2>").append(year);
-        if (firstYearRow) {
-          html.append(" <span class='collapse-link'>");
-          html.append("<span onclick='event.stopPropagation();expandAll();'>Expand all</span> / ");
-          html.append("<span onclick='event.stopPropagation();collapseAll();'>Collapse all</span>");
-          html.append("</span>");
-          firstYearRow = false;
-        }
-        html.append("</td></tr>\n");
-        lastYear = year;
+              }
+            });
+          };
+        </script>
+      </head>
+      <body>
+      <div class='container'>
+        <div class='table-pane'>
+      """;
+
+  /** The title is in the head, so there's no need to read further than this into a message file to find it. */
+  private static final int MAX_TITLE_PREFIX = 64 * 1024;
+
+  /**
+   * Returns the (already HTML-escaped) title of a message's HTML file, reading only as much of the file as it takes
+   * to find the end of the title (up to MAX_TITLE_PREFIX characters).
+   */
+  static String readEscapedTitle(Path htmlFile) {
+    String escapedTitle = "";
+    try {
+      String fileHtml = readPrefix(htmlFile, "</title>", MAX_TITLE_PREFIX);
+      int titleStartPos = fileHtml.indexOf("<title>");
+      int titleEndPos = fileHtml.indexOf("</title>");
+      if (titleStartPos >= 0 && titleEndPos > titleStartPos) {
+        escapedTitle = fileHtml.substring(titleStartPos + 7, titleEndPos).trim();
       }
-      String escapedTitle = ""; // Already HTML escaped
-      try {
-        String fileHtml = Files.readString(htmlFile);
-        int titleStartPos = fileHtml.indexOf("<title>");
-        int titleEndPos = fileHtml.indexOf("</title>");
-        if (titleStartPos >= 0 && titleEndPos > titleStartPos) {
-          escapedTitle = fileHtml.substring(titleStartPos + 7, titleEndPos).trim();
+    } catch (IOException e) {
+      escapedTitle = "<Error reading title>";
+    }
+    return escapedTitle;
+  }
+
+  /**
+   * Reads the start of a UTF-8 file, stopping once it contains the given marker or has reached maxChars characters.
+   */
+  private static String readPrefix(Path file, String marker, int maxChars) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[4096];
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      int count;
+      while (sb.length() < maxChars && (count = reader.read(buffer, 0, Math.min(buffer.length, maxChars - sb.length()))) > 0) {
+        // Back up far enough that a marker split across two reads is still found.
+        int searchFrom = Math.max(0, sb.length() - marker.length());
+        sb.append(buffer, 0, count);
+        if (sb.indexOf(marker, searchFrom) >= 0) {
+          break;
         }
-      } catch (IOException e) {
-        escapedTitle = "<Error reading title>";
       }
-      html.append("<tr class='row-").append(year).append("' onclick=\"selectRow(this, '").append(dirName).append("/").append(dirName).append(".html')\">");
-      html.append("<td class=\"date-cell\">").append(date).append("</td>");
-      html.append("<td><a href='")
-          .append(dirName).append("/").append(dirName).append(".html' target='_blank'>")
-          .append(escapedTitle).append("</a></td></tr>\n");
     }
-    html.append("</table>\n</div>\n<div id='divider' class='divider'></div>\n<div class='iframe-pane'><iframe id='reading-pane' style='width:100%;height:100%;border:none;'></iframe></div>\n</div>\n</body>\n</html>\n");
-    writeFileCarefully(Paths.get(inputDir, outputFile), html.toString());
+    return sb.toString();
+  }
+
+  /**
+   * Adds one newly archived message to an existing index, in date order. Only the list of its year (and the list of
+   * years) is rewritten, and only the search index files that the new message's words are in; the rest of the index,
+   * and the other messages, are left as they are.
+   * If there is no index yet, or it was written before the list was split up by year, it's created from scratch.
+   * @param inputDir - Directory containing one subdirectory per email message
+   * @param outputFile - Index file, relative to inputDir
+   * @param dirName - Name of the new message's directory
+   */
+  public static void addToIndexHtml(String inputDir, String outputFile, String dirName) throws IOException {
+    Path indexDir = Paths.get(inputDir, IndexShards.INDEX_DIR);
+    if (!Files.exists(Paths.get(inputDir, outputFile)) || !Files.exists(indexDir.resolve(IndexShards.YEARS_FILE))) {
+      createIndexHtml(inputDir, outputFile);
+      return;
+    }
+    String[] parts = dirName.split("_");
+    if (parts.length < 2) {
+      System.out.println("Could not parse message directory name: " + dirName);
+      return;
+    }
+    String year = parts[0].substring(0, 4);
+    List<IndexShards.Row> rows = IndexShards.readYear(indexDir, year);
+    // Find the first row of a later message; the new row goes before it.
+    int insertPos = 0;
+    while (insertPos < rows.size() && rows.get(insertPos).dirName().compareTo(dirName) < 0) {
+      insertPos++;
+    }
+    if (insertPos < rows.size() && rows.get(insertPos).dirName().equals(dirName)) {
+      return; // Already listed
+    }
+    rows.add(insertPos, new IndexShards.Row(dirName, readEscapedTitle(Paths.get(inputDir, dirName, dirName + ".html"))));
+    IndexShards.writeYear(indexDir, year, rows);
+    Map<String, Integer> counts = IndexShards.readYears(indexDir);
+    counts.put(year, rows.size());
+    IndexShards.writeYears(indexDir, counts);
+    int writtenCount = SearchIndex.add(Paths.get(inputDir), Paths.get(inputDir, dirName, dirName + ".html"));
+    if (writtenCount < 0) {
+      updateSearchIndex(inputDir, getHtmlFiles(inputDir));
+    } else {
+      System.out.println("Search index: added " + dirName + "; wrote " + writtenCount + " files");
+    }
   }
 
   /**
@@ -273,13 +534,20 @@ public class MailIndexer {
     return "<No Title>";
   }
 
-  private static List<Path> getHtmlFiles(String inputDir) {
+  /**
+   * Returns the HTML file of each message directory under inputDir, in directory name (and so date) order, skipping
+   * hidden directories.
+   */
+  static List<Path> getHtmlFiles(String inputDir) {
     Path dir = Paths.get(inputDir);
     List<Path> htmlFiles = new ArrayList<>();
     try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(dir, Files::isDirectory)) {
       List<Path> sortedSubdirs = new ArrayList<>();
       for (Path subdir : subdirs) {
-        sortedSubdirs.add(subdir);
+        // Skip hidden directories, such as the attachment BlobStore
+        if (!subdir.getFileName().toString().startsWith(".")) {
+          sortedSubdirs.add(subdir);
+        }
       }
       sortedSubdirs.sort(Path::compareTo);
       for (Path subdir : sortedSubdirs) {
@@ -7,14 +7,23 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
-
-import static java.nio.file.Files.writeString;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class to archive a Gmail mailbox to a directory. For each message, create a directory with a name based on
@@ -24,6 +33,9 @@ import static java.nio.file.Files.writeString;
  */
 @SuppressWarnings({"java:S106", "java:S112", "java:S110", "java:S1148", "java:S1192"})
 public class MailToHtml {
+  private static final DateTimeFormatter DIR_DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss").withZone(ZoneId.systemDefault());
+
   public static void main(String[] args) {
     try {
       String email = null;
@@ -31,6 +43,13 @@ public class MailToHtml {
       String journalDir = "Documents/Journal";
       String mailbox = "What's Up";
       boolean shouldSkipExisting = true;
+      int threads = 1;
+      int fetchWindow = Prefetcher.DEFAULT_WINDOW_SIZE;
+      boolean shouldWatch = false;
+      boolean shouldReclean = false;
+      Path metricsFile = null;
+      Path jobsFile = null;
+      Path importPath = null;
       for (int i = 0; i < args.length; i++) {
         switch (args[i]) {
           case "-email" -> email = args[++i];
@@ -38,119 +57,301 @@ public class MailToHtml {
           case "-mailbox" -> mailbox = args[++i];
           case "-journalDir" -> journalDir = args[++i];
           case "-redo" -> shouldSkipExisting = false;
+          case "-threads" -> threads = Integer.parseInt(args[++i]);
+          case "-fetchWindow" -> fetchWindow = Integer.parseInt(args[++i]);
+          case "-watch" -> shouldWatch = true;
+          case "-reclean" -> shouldReclean = true;
+          case "-metrics" -> metricsFile = Paths.get(args[++i]);
+          case "-jobs" -> jobsFile = Paths.get(args[++i]);
+          case "-import" -> importPath = Paths.get(args[++i]);
           default -> {
-            System.err.println("Usage: MailToHtml [-email your-email] [-password app-specific-password] [-mailbox mailbox-name] [-journalDir journal-directory] [-redo]");
+            System.err.println("Usage: MailToHtml [-email your-email] [-password app-specific-password] [-mailbox mailbox-name] [-journalDir journal-directory] [-redo] [-threads n] [-fetchWindow n] [-watch] [-reclean] [-metrics summary.json] [-jobs jobs.properties] [-import mbox-or-maildir]");
             return;
           }
         }
       }
-      Store store = getStore(email, appPassword);
-      String rootDir = System.getProperty("user.home") + "/" + journalDir + "/" + subjectToDirName(journalDir);
-      Folder folder = store.getFolder(mailbox);
-      folder.open(Folder.READ_ONLY);
-
-      java.text.SimpleDateFormat dateTimeFormat = new java.text.SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
-      Message[] messages = folder.getMessages();
-      for (Message message : messages) {
-        String receivedDate = dateTimeFormat.format(message.getReceivedDate());
-        String subject = message.getSubject();
-        if (subject == null || subject.trim().isEmpty()) {
-          subject = "No Subject";
-        }
-        String dirName = receivedDate + "_" + subjectToDirName(subject);
-        String path = rootDir + File.separator + dirName;
-        System.out.println(path + "    <=    " + subject);
-        if (shouldSkipExisting && new File(path).exists()) {
-          continue; // Skip if directory already exists
-        }
-        String tempPath = path + ".tmp";
-        File tempPathFile = new File(tempPath);
-        if (!tempPathFile.exists()) {
-          tempPathFile.mkdirs(); 
-        }
-        saveMessageAsHtmlWithAttachments(message, tempPathFile.toPath(), dirName, subject);
-        if (!new File(tempPath).renameTo(new File(path))) {
-          throw new IOException("Failed to rename " + tempPath + " to " + path);
+      if (jobsFile != null && shouldWatch) {
+        System.err.println("-watch watches the one mailbox given by -email and -mailbox, so it can't be used with -jobs");
+        return;
+      }
+      String rootDir = rootDirOf(journalDir);
+      if (metricsFile != null) {
+        Metrics.enable();
+      }
+      if (jobsFile != null) {
+        // Archive every mailbox listed in the jobs file, instead of the one given by -email and -mailbox.
+        MultiArchiver.archive(MultiArchiver.loadJobs(jobsFile), threads, fetchWindow, shouldSkipExisting, metricsFile);
+        return;
+      }
+      if (importPath != null) {
+        // Archive the messages in a local mbox file or Maildir directory, such as a Google Takeout export, instead of
+        // fetching them from the mail server. -mailbox picks out the messages with that Gmail label.
+        updateIndex(rootDir, LocalImporter.importMail(importPath, rootDir, mailbox, shouldSkipExisting, threads));
+        writeMetrics(metricsFile);
+        return;
+      }
+      if (shouldReclean) {
+        // Re-render the archive from the saved .orig.html files, without connecting to the mail server.
+        Recleaner.recleanArchive(rootDir);
+        writeMetrics(metricsFile);
+        return;
+      }
+      String finalEmail = email;
+      String finalPassword = appPassword;
+      String finalMailbox = mailbox;
+      ParallelArchiver.FolderOpener opener = () -> openFolder(finalEmail, finalPassword, finalMailbox);
+      Folder folder = opener.open();
+      long uidValidity = ((UIDFolder) folder).getUIDValidity();
+      // With -redo, ignore the checkpoint so that every message is looked at again.
+      SyncState.Checkpoint checkpoint = shouldSkipExisting ? SyncState.load(rootDir, email, mailbox) : null;
+      long[] uids = SyncState.uidsToArchive(folder, checkpoint);
+      log("Found " + uids.length + " messages to look at");
+      Prefetcher prefetcher = new Prefetcher(fetchWindow);
+      int archivedCount;
+      if (threads > 1) {
+        folder.close(false);
+        folder.getStore().close();
+        archivedCount = ParallelArchiver.archive(opener, uids, rootDir, shouldSkipExisting, threads, prefetcher);
+      } else {
+        archivedCount = archiveUids(folder, uids, rootDir, shouldSkipExisting, ConcurrentHashMap.newKeySet(), prefetcher);
+        folder.close(false);
+        folder.getStore().close();
+      }
+      log(prefetcher.summary());
+      // Only move the checkpoint once every message up to it has been archived successfully.
+      if (uids.length > 0) {
+        SyncState.save(rootDir, email, mailbox, new SyncState.Checkpoint(uidValidity, uids[uids.length - 1]));
+      }
+      updateIndex(rootDir, archivedCount);
+      writeMetrics(metricsFile);
+      if (shouldWatch) {
+        new MailWatcher(opener, rootDir, email, mailbox, prefetcher).watch();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Returns the directory that holds one subdirectory per message for a journal directory (relative to the home
+   * directory), such as ~/Documents/Journal/DocumentsJournal for Documents/Journal.
+   */
+  static String rootDirOf(String journalDir) {
+    return System.getProperty("user.home") + "/" + journalDir + "/" + subjectToDirName(journalDir);
+  }
+
+  /** Rebuilds index.html, unless no messages were archived and it already exists. */
+  private static void updateIndex(String rootDir, int archivedCount) throws IOException {
+    if (archivedCount == 0 && new File(rootDir, "index.html").exists()) {
+      log("No new messages; index.html is up to date");
+    } else {
+      MailIndexer.createIndexHtml(rootDir, "index.html");
+    }
+  }
+
+  /** Logs the metrics of the run and writes them to metricsFile, if there is one. */
+  private static void writeMetrics(Path metricsFile) throws IOException {
+    if (metricsFile != null) {
+      log(Metrics.summary());
+      Metrics.writeSummary(metricsFile);
+    }
+  }
+
+  /**
+   * Connects to the mail server and opens the given mailbox read-only. Each call opens a new connection,
+   * so the caller is responsible for closing both the folder and its store.
+   */
+  static Folder openFolder(String email, String appPassword, String mailbox) throws MessagingException {
+    Store store = getStore(email, appPassword);
+    Folder folder = store.getFolder(mailbox);
+    folder.open(Folder.READ_ONLY);
+    return folder;
+  }
+
+  /**
+   * Archives the messages with the given UIDs from an open folder, prefetching their metadata a window at a time.
+   * @return Number of messages archived (not counting skipped ones)
+   */
+  static int archiveUids(Folder folder, long[] uids, String rootDir, boolean shouldSkipExisting, Set<String> claimedDirs, Prefetcher prefetcher) throws Exception {
+    Message[] messages = Metrics.time(Metrics.Stage.FETCH, () -> ((UIDFolder) folder).getMessagesByUID(uids));
+    int archivedCount = 0;
+    for (int start = 0; start < messages.length; start += prefetcher.windowSize()) {
+      for (Message message : prefetcher.prefetch(folder, messages, start)) {
+        if (archiveMessage(message, rootDir, shouldSkipExisting, claimedDirs) != null) {
+          archivedCount++;
         }
       }
+    }
+    return archivedCount;
+  }
 
-      folder.close(false);
-      store.close();
-      MailIndexer.createIndexHtml(rootDir, rootDir + File.separator + "index.html");
+  /**
+   * Archives one message into a directory under rootDir named after its received date and subject.
+   * The message is written into a ".tmp" directory that is renamed once complete, so a partially written
+   * message never looks archived. Safe to call from several threads at once.
+   * @param message - Message to archive
+   * @param rootDir - Journal directory that holds one subdirectory per message
+   * @param shouldSkipExisting - true if messages whose directory already exists should be skipped
+   * @param claimedDirs - Directory names already taken during this run, so that two messages with the same
+   *                      date and subject don't write into the same directory at the same time
+   * @return Name of the directory the message was archived to, or null if it was skipped
+   * @throws Exception - If an exception occurs
+   */
+  static String archiveMessage(Message message, String rootDir, boolean shouldSkipExisting, Set<String> claimedDirs) throws Exception {
+    String receivedDate = DIR_DATE_FORMAT.format(message.getReceivedDate().toInstant());
+    String subject = message.getSubject();
+    if (subject == null || subject.trim().isEmpty()) {
+      subject = "No Subject";
+    }
+    String dirName = receivedDate + "_" + subjectToDirName(subject);
+    String path = rootDir + File.separator + dirName;
+    System.out.println(path + "    <=    " + subject);
+    if (shouldSkipExisting && new File(path).exists()) {
+      Metrics.count(Metrics.Counter.MESSAGES_SKIPPED, 1);
+      return null; // Skip if directory already exists
+    }
+    if (!claimedDirs.add(dirName)) {
+      log("  ## Skipping message with the same date and subject as another: " + dirName);
+      Metrics.count(Metrics.Counter.MESSAGES_SKIPPED, 1);
+      return null;
+    }
+    Metrics.MessageEvent event = new Metrics.MessageEvent();
+    event.begin();
+    String tempPath = path + ".tmp";
+    File tempPathFile = new File(tempPath);
+    if (!tempPathFile.exists()) {
+      tempPathFile.mkdirs();
+    }
+    try {
+      saveMessageAsHtmlWithAttachments(message, tempPathFile.toPath(), dirName, subject);
+      if (!new File(tempPath).renameTo(new File(path))) {
+        throw new IOException("Failed to rename " + tempPath + " to " + path);
+      }
     } catch (Exception e) {
-      e.printStackTrace();
+      // Let a retry (such as MailWatcher's after reconnecting) archive the message, rather than skip it as claimed.
+      claimedDirs.remove(dirName);
+      throw e;
+    }
+    Metrics.count(Metrics.Counter.MESSAGES_ARCHIVED, 1);
+    if (event.shouldCommit()) {
+      recordSizes(event, Paths.get(path), dirName);
+      event.commit();
+    }
+    return dirName;
+  }
+
+  /** Fills in the sizes of an archived message's files, for its flight recorder event. */
+  private static void recordSizes(Metrics.MessageEvent event, Path dir, String dirName) throws IOException {
+    event.dirName = dirName;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.equals(dirName + ".orig.html")) {
+          event.origHtmlBytes = Files.size(file);
+        } else if (name.equals(dirName + ".html")) {
+          event.htmlBytes = Files.size(file);
+        } else {
+          event.attachmentCount++;
+          event.attachmentBytes += Files.size(file);
+        }
+      }
     }
   }
 
   /**
    * Saves the message as an HTML file in the given directory, downloads all attachments (images),
    * and links to them in the HTML. Handles filename collisions. Text is formatted with <p>, <b>, <i>.
+   * The message is written out part by part, so only one part at a time is held in memory. Cleaning streams too, but
+   * can need the whole body at once for an unusual message, so it waits for room in the MemoryBudget.CLEANING budget.
    */
   public static void saveMessageAsHtmlWithAttachments(Message message, Path dir, String entryName, String subject) throws Exception {
     Path origHtmlFile = dir.resolve(entryName + ".orig.html");
     Path htmlFile = dir.resolve(entryName + ".html");
-    String origHtml;
-    if (Files.exists(origHtmlFile)) {
-      // If original HTML file exists, read it and reformat rather than re-downloading the message's parts.
-      origHtml = Files.readString(origHtmlFile);
+    // If original HTML file exists, reformat it rather than re-downloading the message's parts.
+    if (!Files.exists(origHtmlFile)) {
+      writeOrigHtml(message, dir, subject, origHtmlFile);
     }
-    else {
-      StringBuilder htmlSb = new StringBuilder();
-      String title = subject.replaceAll("(?i)what'?s up:?", "").trim();
-      htmlSb.append("<html>\n<head>\n  <meta charset=\"UTF-8\">\n  <title>").append(escapeHtml(title)).append("</title>\n</head>\n<body>\n");
-      processPart(message, dir, htmlSb);
-      htmlSb.append("</body>\n</html>\n");
-      origHtml = htmlSb.toString();
-      writeFileCarefully(origHtmlFile, origHtml);
-    }
-
-    String cleanHtml = HtmlCleaner.cleanHtml(origHtml);
-    writeFileCarefully(htmlFile, cleanHtml);
+    cleanHtmlFile(origHtmlFile, htmlFile);
   }
 
+  /**
+   * Writes the message's parts to origHtmlFile as one HTML document, saving its attachments in dir.
+   * The parts are first written to a temporary file, since inline images can only be linked once every part has been
+   * seen, and then copied to origHtmlFile with the links filled in.
+   */
+  private static void writeOrigHtml(Message message, Path dir, String subject, Path origHtmlFile) throws Exception {
+    InlineImages inlineImages = new InlineImages();
+    Path partsFile = Files.createTempFile("parts", ".html");
+    try {
+      Metrics.time(Metrics.Stage.DECODE, () -> {
+        try (CountingWriter html = new CountingWriter(Files.newBufferedWriter(partsFile, StandardCharsets.UTF_8))) {
+          String title = subject.replaceAll("(?i)what'?s up:?", "").trim();
+          html.append("<html>\n<head>\n  <meta charset=\"UTF-8\">\n  <title>").append(escapeHtml(title)).append("</title>\n</head>\n<body>\n");
+          processPart(message, dir, html, inlineImages);
+          html.append("</body>\n</html>\n");
+        }
+        writeFileCarefully(origHtmlFile, out -> inlineImages.applyTo(partsFile, out));
+      });
+    } finally {
+      Files.deleteIfExists(partsFile);
+    }
+  }
 
+  /**
+   * Cleans origHtmlFile into htmlFile, once there is room in the cleaning memory budget for a message of its size.
+   */
+  @SuppressWarnings("try")
+  static void cleanHtmlFile(Path origHtmlFile, Path htmlFile) throws IOException, InterruptedException {
+    try (MemoryBudget.Reservation ignored = MemoryBudget.CLEANING.reserve(Files.size(origHtmlFile) * MemoryBudget.CLEANING_BYTES_PER_BYTE)) {
+      Metrics.time(Metrics.Stage.CLEAN, () -> writeFileCarefully(htmlFile, out -> {
+        try (Reader in = Files.newBufferedReader(origHtmlFile, StandardCharsets.UTF_8)) {
+          HtmlCleaner.clean(in, out);
+        }
+      }));
+    }
+  }
 
-  private static String getHtmlBody(String htmlText) {
+  static CharSequence getHtmlBody(String htmlText) {
     if (htmlText == null) {
       return "";
     }
-    // Remove <head>...</head>
-    String body = htmlText.replaceAll("(?is)<head[^>]*>.*?</head>", "");
-    // Remove <html> and </html>
-    body = body.replaceAll("(?is)<html[^>]*>", "");
-    body = body.replaceAll("(?is)</html>", "");
-    // Remove <body> and </body> (with any attributes)
-    body = body.replaceAll("(?is)<body[^>]*>", "");
-    body = body.replaceAll("(?is)</body>", "");
-    return body.trim();
+    // Just the contents of the body, without <html>, <head> or <body> tags. Anything between the head and the body,
+    // or after the body (such as a footer added after </html>), is kept too, with the same tags taken out.
+    HtmlBoundaries boundaries = HtmlBoundaries.scan(htmlText);
+    String beforeBody = HtmlBoundaries.withoutDocumentTags(boundaries.beforeBody());
+    String afterBody = HtmlBoundaries.withoutDocumentTags(boundaries.afterBody());
+    if (beforeBody.isBlank() && afterBody.isBlank()) {
+      return HtmlBoundaries.trim(boundaries.body());
+    }
+    return HtmlBoundaries.trim(new StringBuilder(beforeBody).append(boundaries.body()).append(afterBody));
   }
 
   // Recursively process a Part (Message or BodyPart)
-  private static void processPart(Part part, Path dir, StringBuilder html) throws Exception {
+  private static void processPart(Part part, Path dir, CountingWriter html, InlineImages inlineImages) throws Exception {
     if (part.isMimeType("text/plain")) {
       String text = (String) part.getContent();
       html.append(textToHtml(text));
     } else if (part.isMimeType("text/html")) {
       String htmlText = (String) part.getContent();
-      String sanitizedHtml = getHtmlBody(htmlText);
+      CharSequence sanitizedHtml = getHtmlBody(htmlText);
       html.append(sanitizedHtml);
-      log(sanitizedHtml);
+      log(sanitizedHtml.toString());
     } else if (part.isMimeType("multipart/alternative")) {
-      processAlternatives(part, dir, html);
+      processAlternatives(part, dir, html, inlineImages);
     } else if (part.isMimeType("multipart/*")) {
       Multipart mp = (Multipart) part.getContent();
       for (int i = 0; i < mp.getCount(); i++) {
-        processPart(mp.getBodyPart(i), dir, html);
+        processPart(mp.getBodyPart(i), dir, html, inlineImages);
       }
     } else if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null) {
-      saveAttachment(part, dir, html);
+      saveAttachment(part, dir, html, inlineImages);
     } else {
       // Unknown part type, ignore or log
       System.out.println("Ignoring unknown part of type: " + part.getContentType());
     }
   }
 
-  private static void processAlternatives(Part part, Path dir, StringBuilder html) throws Exception {
+  private static void processAlternatives(Part part, Path dir, CountingWriter html, InlineImages inlineImages) throws Exception {
     // For alternative parts, prefer HTML over plain text, but also handle multipart/mixed or other multiparts
     Multipart mp = (Multipart) part.getContent();
     Part htmlPart = null;
@@ -170,103 +371,38 @@ public class MailToHtml {
     }
     // Prefer multipart (e.g., mixed) over HTML, then plain text
     if (multipartPart != null) {
-      processPart(multipartPart, dir, html);
+      processPart(multipartPart, dir, html, inlineImages);
     } else if (htmlPart != null) {
-      processPart(htmlPart, dir, html);
+      processPart(htmlPart, dir, html, inlineImages);
     } else if (textPart != null) {
-      processPart(textPart, dir, html);
+      processPart(textPart, dir, html, inlineImages);
     }
   }
 
-  private static void saveAttachment(Part part, Path dir, StringBuilder html) throws Exception {
+  private static void saveAttachment(Part part, Path dir, CountingWriter html, InlineImages inlineImages) throws Exception {
     // Save attachment
     String filename = part.getFileName();
     if (filename == null) {
       filename = "attachment";
     }
-    filename = sanitizeFilename(filename);
-    filename = writeFile((MimeBodyPart) part, dir, filename);
+    String sanitizedFilename = sanitizeFilename(filename);
+    filename = Metrics.time(Metrics.Stage.ATTACHMENT, () -> writeFile((MimeBodyPart) part, dir, sanitizedFilename));
+    Metrics.count(Metrics.Counter.ATTACHMENTS, 1);
     if (isImage(part)) {
       log("  ## Image: " + filename);
-      if (!replaceInlineImage(part.getHeader("Content-ID"), filename, html)) {
-        html.append("\n<p><img src=\"").append(filename).append("\"></p>\n");
-      }
+      // Link to the image from wherever the HTML refers to its Content-ID, or else show it here.
+      inlineImages.add(part.getHeader("Content-ID"), filename, html.count());
     } else {
       log("  ## Attachment: " + filename);
       html.append("\n<p><a href=\"").append(filename).append("\">Attachment: ").append(filename).append("</a></p>>\n");
     }
   }
 
-  private static boolean replaceInlineImage(String[] header, String filename, StringBuilder html) {
-    if (header != null && header.length > 0) {
-      String contentId = header[0];
-      String replacement = "<img src=\"" + filename + "\">";
-      return replaceInlineImageTag(html, contentId, replacement);
-    }
-    return false;
-  }
-
   /**
    * Replaces the <img ... src="cid:TARGET_ID" ...> tag with replacementString, handling quoted attributes robustly.
    */
   public static boolean replaceInlineImageTag(StringBuilder html, String contentId, String replacementString) {
-    if (contentId.startsWith("<") && contentId.endsWith(">")) {
-      // Remove surrounding angle brackets, if present
-      contentId = contentId.substring(1, contentId.length() - 1);
-    }
-    int srcPos = findSrcPosition(html, contentId);
-    if (srcPos < 0) {
-      return false;
-    }
-    // Find last <img before srcPos
-    int imgPos = html.lastIndexOf("<img", srcPos);
-    if (imgPos < 0) {
-      return false;
-    }
-    // Scan forward from imgPos to find closing '>', skipping any > inside quotes
-    int closingBracketPos = findClosingBracket(html, imgPos);
-    if (closingBracketPos > srcPos) {
-      // Found end of tag
-      String before = html.substring(0, imgPos);
-      String after = html.substring(closingBracketPos + 1);
-      html.setLength(0);
-      html.append(before).append(replacementString).append(after);
-      return true;
-    }
-    return false;
-  }
-
-  private static int findSrcPosition(StringBuilder html, String targetId) {
-    String srcPattern1 = "src=\"cid:" + targetId + "\"";
-    int srcPos = html.indexOf(srcPattern1);
-    if (srcPos < 0) {
-      String srcPattern2 = "src='cid:" + targetId + "'";
-      srcPos = html.indexOf(srcPattern2);
-    }
-    return srcPos;
-  }
-
-  private static int findClosingBracket(StringBuilder html, int imgPos) {
-    int i = imgPos;
-    boolean inQuote = false;
-    char quoteChar = 0;
-    while (i < html.length()) {
-      char c = html.charAt(i);
-      if (inQuote) {
-        if (c == quoteChar) {
-          inQuote = false;
-        }
-      } else {
-        if (c == '"' || c == '\'') {
-          inQuote = true;
-          quoteChar = c;
-        } else if (c == '>') {
-          return i;
-        }
-      }
-      i++;
-    }
-    return -1;
+    return InlineImages.replaceCidImageTags(html, Map.of(InlineImages.stripAngleBrackets(contentId), replacementString));
   }
 
   /**
@@ -279,53 +415,101 @@ public class MailToHtml {
    * @throws Exception - If an exception occurs
    */
   private static String writeFile(MimeBodyPart part, Path dir, String filename) throws Exception {
-    // Stream the MimeBodyPart to a byte array, in case it needs to be compared with an existing file of the same name
+    // Stream the MimeBodyPart to a temp file while computing its digest, in case it needs to be compared with an
+    // existing file of the same name. Attachments can be hundreds of MB, so they never go through a byte array.
     if (filename.toLowerCase().endsWith(".tif") || filename.toLowerCase().endsWith(".tiff")) {
       // Convert TIFF to JPEG
-      byte[] tiffBytes;
+      Path tiffFile = dir.resolve("tmp." + filename);
       try (InputStream partStream = part.getInputStream()) {
-        tiffBytes = partStream.readAllBytes();
+        Files.copy(partStream, tiffFile, StandardCopyOption.REPLACE_EXISTING);
       }
-      byte[] jpegBytes = convertTiffToJpeg(tiffBytes);
       String newFilename = filename.replaceAll("(?i)\\.tiff?$", ".jpg");
-      return writeFileUnlessDuplicate(dir, newFilename, jpegBytes);
+      StreamedFile jpegFile;
+      try {
+        jpegFile = Metrics.time(Metrics.Stage.TIFF, () -> convertTiffToJpeg(tiffFile, dir.resolve("tmp." + newFilename)));
+      } finally {
+        Files.deleteIfExists(tiffFile);
+      }
+      Metrics.count(Metrics.Counter.TIFF_IMAGES, 1);
+      Metrics.count(Metrics.Counter.ATTACHMENT_BYTES, jpegFile.size());
+      return writeFileUnlessDuplicate(dir, newFilename, jpegFile);
     }
 
     if (Files.exists(dir.resolve(filename))) {
       log("  ## Skipping existing file: " + filename);
       return filename;
     }
-    byte[] partBytes;
+    StreamedFile partFile;
     try (InputStream partStream = part.getInputStream()) {
-      partBytes = partStream.readAllBytes();
+      partFile = streamToFile(partStream, dir.resolve("tmp." + filename));
+    }
+    Metrics.count(Metrics.Counter.ATTACHMENT_BYTES, partFile.size());
+    return writeFileUnlessDuplicate(dir, filename, partFile);
+  }
+
+  /**
+   * A file that has been written to disk, along with its size and SHA-256 digest.
+   */
+  record StreamedFile(Path file, long size, String digest) {}
+
+  /**
+   * Copies the stream to the given file (creating or truncating it), computing its digest along the way.
+   */
+  static StreamedFile streamToFile(InputStream in, Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    long size;
+    try (OutputStream out = new DigestOutputStream(Files.newOutputStream(file), digest)) {
+      size = in.transferTo(out);
+    }
+    return new StreamedFile(file, size, HexFormat.of().formatHex(digest.digest()));
+  }
+
+  /**
+   * Computes the SHA-256 digest of a file without reading it all into memory.
+   */
+  static String digestOf(Path file) throws IOException {
+    MessageDigest digest = newDigest();
+    try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+      in.transferTo(OutputStream.nullOutputStream());
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
     }
-    return writeFileUnlessDuplicate(dir, filename, partBytes);
   }
 
-  private static String writeFileUnlessDuplicate(Path dir, String filename, byte[] partBytes) throws IOException {
+  /**
+   * Stores the temp file's content in the archive-wide BlobStore and links it into dir as filename, unless a different
+   * file already has that name (in which case it's renamed with _2, _3, etc.), or an identical file already has that
+   * name (in which case the temp file is discarded).
+   * Message directories live directly in the journal root, so the blob store is in dir's parent directory.
+   * @return The filename the content ended up under.
+   */
+  private static String writeFileUnlessDuplicate(Path dir, String filename, StreamedFile tempFile) throws IOException {
     String newFilename = resolveFilenameCollision(dir, filename);
     if (!newFilename.equals(filename)) {
-      if (sameAsExistingFile(dir, filename, partBytes)) {
+      if (sameAsExistingFile(dir.resolve(filename), tempFile)) {
         // Same file, so skip writing
         log("  ## Skipping identical attachment: " + filename);
+        Files.delete(tempFile.file());
         return filename;
       } else {
         log("  ## Renaming attachment due to collision: " + filename + " => " + newFilename);
       }
     }
-    writeBytes(dir, newFilename, partBytes);
+    Path blob = BlobStore.store(dir.toAbsolutePath().getParent(), tempFile);
+    BlobStore.link(blob, dir.resolve(newFilename));
     return newFilename;
   }
 
-  private static void writeBytes(Path dir, String imageFilename, byte[] jpegBytes) throws IOException {
-    Path tempFile = dir.resolve("tmp." + imageFilename);
-    Files.write(tempFile, jpegBytes); // Create or truncate
-    Files.move(tempFile, dir.resolve(imageFilename), StandardCopyOption.REPLACE_EXISTING);
-  }
-
-  private static boolean sameAsExistingFile(Path dir, String filename, byte[] partBytes) throws IOException {
-    byte[] existingBytes = Files.readAllBytes(dir.resolve(filename));
-    return java.util.Arrays.equals(partBytes, existingBytes);
+  private static boolean sameAsExistingFile(Path existingFile, StreamedFile tempFile) throws IOException {
+    // Comparing sizes first avoids reading the existing file at all in the common case.
+    return Files.size(existingFile) == tempFile.size() && digestOf(existingFile).equals(tempFile.digest());
   }
 
   static void log(String message) {
@@ -518,10 +702,16 @@ public class MailToHtml {
     if (emailAddress != null && appSpecificPassword != null) {
       return new Credentials(emailAddress, appSpecificPassword);
     }
-    String home = System.getProperty("user.home");
-    String path = home + "/data/db/keys/gm";
+    return readCredentials(Paths.get(System.getProperty("user.home"), "data/db/keys/gm"));
+  }
+
+  /**
+   * Reads credentials from a file with the email address on the first line and the (mapped) app-specific password
+   * on the second.
+   */
+  static Credentials readCredentials(Path file) {
     try {
-      java.util.List<String> lines = Files.readAllLines(Paths.get(path));
+      java.util.List<String> lines = Files.readAllLines(file);
       if (lines.size() < 2) throw new IOException("Not enough lines in credentials file");
       return new Credentials(lines.get(0).trim(), unmap(lines.get(1).trim()));
     } catch (IOException e) {
@@ -532,21 +722,18 @@ public class MailToHtml {
   public record Credentials(String email, String password) {}
 
   /**
-   * Converts a TIFF image byte array to a JPEG image byte array.
+   * Converts a TIFF image file to a JPEG image file.
    * Requires TwelveMonkeys ImageIO plugin for TIFF support.
    * Handles alpha channel by converting to TYPE_INT_RGB.
    */
-  private static byte[] convertTiffToJpeg(byte[] tiffBytes) throws IOException {
-    try (ByteArrayInputStream bais = new ByteArrayInputStream(tiffBytes)) {
-      BufferedImage image = ImageIO.read(bais);
-      if (image == null) throw new IOException("Could not read TIFF image");
-      // Convert to TYPE_INT_RGB to remove alpha channel if present
-      BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-      rgbImage.getGraphics().drawImage(image, 0, 0, null);
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ImageIO.write(rgbImage, "jpg", baos);
-      return baos.toByteArray();
-    }
+  private static StreamedFile convertTiffToJpeg(Path tiffFile, Path jpegFile) throws IOException {
+    BufferedImage image = ImageIO.read(tiffFile.toFile());
+    if (image == null) throw new IOException("Could not read TIFF image");
+    // Convert to TYPE_INT_RGB to remove alpha channel if present
+    BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    rgbImage.getGraphics().drawImage(image, 0, 0, null);
+    if (!ImageIO.write(rgbImage, "jpg", jpegFile.toFile())) throw new IOException("No JPEG writer available");
+    return new StreamedFile(jpegFile, Files.size(jpegFile), digestOf(jpegFile));
   }
 
   /**
@@ -556,9 +743,47 @@ public class MailToHtml {
    * @throws IOException - If an I/O error occurs
    */
   static void writeFileCarefully(Path file, String content) throws IOException {
+    writeFileCarefully(file, out -> out.write(content));
+  }
+
+  /**
+   * Writes a file carefully (see above), unless it already has the given content, so that unchanged files keep their
+   * modification times.
+   * @return true if the file was written
+   */
+  static boolean writeFileIfChanged(Path file, String content) throws IOException {
+    if (Files.exists(file) && Files.readString(file).equals(content)) {
+      return false;
+    }
+    writeFileCarefully(file, content);
+    return true;
+  }
+
+  /** Writes the contents of a file. */
+  @FunctionalInterface
+  interface ContentWriter {
+    void writeTo(Writer out) throws IOException;
+  }
+
+  /**
+   * Writes a file carefully by first writing to a temp file (through a buffered UTF-8 Writer) and then moving it to the
+   * target location, so the content never has to be in memory all at once.
+   * @param file - Target file path
+   * @param content - Writes the content
+   * @throws IOException - If an I/O error occurs
+   */
+  static void writeFileCarefully(Path file, ContentWriter content) throws IOException {
     Path tempFile = Files.createTempFile("temp", ".html");
-    writeString(tempFile, content, StandardCharsets.UTF_8);
-    Files.move(tempFile, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    try {
+      // Same as Files.newBufferedWriter, but with the writes timed when metrics are on.
+      OutputStream stream = Metrics.timeWrites(Files.newOutputStream(tempFile));
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8.newEncoder()))) {
+        content.writeTo(out);
+      }
+      Metrics.time(Metrics.Stage.WRITE, () -> Files.move(tempFile, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING));
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
   }
 
 
@@ -0,0 +1,168 @@
+package com.bigclue.archive;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.StoreClosedException;
+import jakarta.mail.UIDFolder;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Keeps a mailbox open and archives each new message as soon as it arrives, adding it to index.html without
+ *   regenerating the rest of the index.
+ * Uses IMAP IDLE to be told about new messages when the server supports it, and otherwise polls with NOOP.
+ *   Either way, the notification is only used as a wake-up call: new messages are found by asking for UIDs above
+ *   the mailbox's checkpoint, so nothing is missed if a notification is lost or the connection drops.
+ */
+class MailWatcher {
+  /** Servers drop IDLE connections after about 30 minutes, so re-issue IDLE well before that. */
+  private static final long IDLE_RENEW_MINUTES = 20;
+  private static final long POLL_INTERVAL_SECONDS = 60;
+  private static final long MAX_RECONNECT_DELAY_SECONDS = 300;
+
+  private final ParallelArchiver.FolderOpener opener;
+  private final String rootDir;
+  private final String email;
+  private final String mailbox;
+  private final Prefetcher prefetcher;
+  private final Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService keepAlive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "idle-keepalive");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  MailWatcher(ParallelArchiver.FolderOpener opener, String rootDir, String email, String mailbox, Prefetcher prefetcher) {
+    this.opener = opener;
+    this.rootDir = rootDir;
+    this.email = email;
+    this.mailbox = mailbox;
+    this.prefetcher = prefetcher;
+  }
+
+  /**
+   * Watches the mailbox until the thread is interrupted, reconnecting (with increasing delays) whenever the
+   * connection is lost.
+   */
+  void watch() throws InterruptedException {
+    long reconnectDelay = 1;
+    while (!Thread.currentThread().isInterrupted()) {
+      Folder folder = null;
+      try {
+        folder = opener.open();
+        reconnectDelay = 1;
+        listen(folder);
+      } catch (FolderClosedException | StoreClosedException e) {
+        log("Connection to " + mailbox + " lost: " + e.getMessage());
+      } catch (MessagingException | IOException e) {
+        log("Error watching " + mailbox + ": " + e);
+      } finally {
+        close(folder);
+      }
+      log("Reconnecting in " + reconnectDelay + " seconds");
+      TimeUnit.SECONDS.sleep(reconnectDelay);
+      reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_SECONDS);
+    }
+  }
+
+  private void listen(Folder folder) throws MessagingException, IOException, InterruptedException {
+    boolean canIdle = folder instanceof IMAPFolder && ((IMAPStore) folder.getStore()).hasCapability("IDLE");
+    log("Watching " + mailbox + (canIdle ? " using IDLE" : " by polling every " + POLL_INTERVAL_SECONDS + " seconds"));
+    while (folder.isOpen()) {
+      // Catch up first, which also covers anything that arrived while disconnected.
+      archiveNewMessages(folder);
+      if (canIdle) {
+        idle((IMAPFolder) folder);
+      } else {
+        TimeUnit.SECONDS.sleep(POLL_INTERVAL_SECONDS);
+        noop(folder);
+      }
+    }
+  }
+
+  /**
+   * Waits for the server to report a change to the folder, such as a new message.
+   */
+  private void idle(IMAPFolder folder) throws MessagingException {
+    // Any command sent from another thread ends the IDLE, so a NOOP every so often keeps the connection alive.
+    ScheduledFuture<?> renewal = keepAlive.schedule(() -> {
+      try {
+        noop(folder);
+      } catch (MessagingException e) {
+        log("Keep-alive NOOP failed: " + e.getMessage());
+      }
+    }, IDLE_RENEW_MINUTES, TimeUnit.MINUTES);
+    try {
+      folder.idle(true);
+    } finally {
+      renewal.cancel(false);
+    }
+  }
+
+  private static void noop(Folder folder) throws MessagingException {
+    if (folder instanceof IMAPFolder imapFolder) {
+      imapFolder.doCommand(protocol -> {
+        protocol.noop();
+        return null;
+      });
+    } else {
+      folder.getMessageCount();
+    }
+  }
+
+  /**
+   * Archives any messages above the mailbox's checkpoint, adds each to index.html as it's archived, and then moves
+   * the checkpoint past them.
+   */
+  void archiveNewMessages(Folder folder) throws MessagingException, IOException {
+    long uidValidity = ((UIDFolder) folder).getUIDValidity();
+    long[] uids = SyncState.uidsToArchive(folder, SyncState.load(rootDir, email, mailbox));
+    if (uids.length == 0) {
+      return;
+    }
+    log("Archiving " + uids.length + " new messages");
+    Message[] messages = ((UIDFolder) folder).getMessagesByUID(uids);
+    for (int start = 0; start < messages.length; start += prefetcher.windowSize()) {
+      for (Message message : prefetcher.prefetch(folder, messages, start)) {
+        String dirName;
+        try {
+          dirName = MailToHtml.archiveMessage(message, rootDir, true, claimedDirs);
+        } catch (MessagingException | IOException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException("Failed to archive message " + message.getMessageNumber(), e);
+        }
+        if (dirName != null) {
+          MailIndexer.addToIndexHtml(rootDir, "index.html", dirName);
+        }
+      }
+    }
+    SyncState.save(rootDir, email, mailbox, new SyncState.Checkpoint(uidValidity, uids[uids.length - 1]));
+  }
+
+  private static void close(Folder folder) {
+    if (folder == null) {
+      return;
+    }
+    try {
+      if (folder.isOpen()) {
+        folder.close(false);
+      }
+      folder.getStore().close();
+    } catch (MessagingException e) {
+      log("Error closing connection: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.bigclue.archive;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how much heap the threads of a run can use at once for work whose memory use is proportional to the size of
+ *   a message or an image, like cleaning its HTML or decoding a photo. A thread reserves what it expects to need
+ *   before starting, and waits if other threads already hold too much of the budget. A reservation bigger than the
+ *   whole budget is reduced to the whole budget, so a pathological message still gets processed, just with the heap
+ *   to itself.
+ */
+class MemoryBudget {
+  /** Reservations are counted in units of this many bytes, so that budgets over 2 GB fit in a Semaphore. */
+  private static final long UNIT = 1024;
+  /**
+   * Roughly how many bytes of heap cleaning takes per byte of .orig.html: the String (up to two bytes per char),
+   * the body view's copies, and the output, with some to spare.
+   */
+  static final int CLEANING_BYTES_PER_BYTE = 8;
+
+  /** Budget shared by everything that cleans messages: half of the maximum heap. */
+  static final MemoryBudget CLEANING = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+
+  /** Budget shared by everything that decodes images: a quarter of the maximum heap. */
+  static final MemoryBudget IMAGES = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+  private final Semaphore permits;
+  private final int totalUnits;
+
+  /**
+   * @param bytes - Total number of bytes that may be reserved at once
+   */
+  MemoryBudget(long bytes) {
+    this.totalUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / UNIT));
+    this.permits = new Semaphore(totalUnits, true);
+  }
+
+  /** A reservation, to be closed (in a try-with-resources) once the memory is no longer needed. */
+  interface Reservation extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * Waits until the given number of bytes can be reserved, and reserves them.
+   * @param bytes - Number of bytes expected to be needed
+   * @return Reservation to close when done
+   * @throws InterruptedException - If interrupted while waiting
+   */
+  Reservation reserve(long bytes) throws InterruptedException {
+    int units = (int) Math.min(totalUnits, Math.max(1, (bytes + UNIT - 1) / UNIT));
+    permits.acquire(units);
+    return () -> permits.release(units);
+  }
+
+  /**
+   * Returns the number of bytes not currently reserved.
+   */
+  long available() {
+    return permits.availablePermits() * UNIT;
+  }
+}
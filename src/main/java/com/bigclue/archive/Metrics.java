@@ -0,0 +1,438 @@
+package com.bigclue.archive;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+
+/**
+ * Times the stages of archiving and counts what goes through them, so a slow run shows where its time went.
+ * Each stage has a histogram of how long each run of it took, and its total "self" time, which leaves out the
+ *   stages nested inside it (such as the disk writes while cleaning), so the self times add up to the time spent.
+ * Metrics are off unless enable() is called (MailToHtml -metrics); until then time() returns a shared Timer that
+ *   does nothing and count() returns right away, so the instrumented code costs a volatile read per call.
+ * A part of a run, such as one mailbox of several, can have metrics of its own as well: see newScope().
+ * Separately, each archived message is a MessageEvent for Java Flight Recorder, which costs next to nothing unless
+ *   a recording is running (java -XX:StartFlightRecording ...).
+ */
+class Metrics {
+  enum Stage {
+    /** Fetching message metadata from the mail server (see Prefetcher). */
+    FETCH,
+    /** Splitting a local mbox file into messages and parsing their headers (see LocalImporter). */
+    PARSE,
+    /**
+     * Decoding a message's MIME parts and writing them out as .orig.html. With IMAP, this includes downloading the
+     * parts, which JavaMail does lazily as they are read.
+     */
+    DECODE,
+    /** Saving an attachment. */
+    ATTACHMENT,
+    /** Converting a TIFF image to JPEG. */
+    TIFF,
+    /** Cleaning .orig.html into the message's HTML file. */
+    CLEAN,
+    /** Writing files to disk in writeFileCarefully. */
+    WRITE
+  }
+
+  enum Counter {
+    MESSAGES_ARCHIVED,
+    MESSAGES_SKIPPED,
+    ATTACHMENTS,
+    ATTACHMENT_BYTES,
+    TIFF_IMAGES,
+    BYTES_WRITTEN
+  }
+
+  /** Everything recorded since enable() was called, or in one scope since it was created. */
+  static final class Stats {
+    final long startNanos = System.nanoTime();
+    final Histogram[] histograms = new Histogram[Stage.values().length];
+    final LongAdder[] selfNanos = new LongAdder[Stage.values().length];
+    final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    Stats() {
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = new Histogram();
+        selfNanos[i] = new LongAdder();
+      }
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = new LongAdder();
+      }
+    }
+
+    void record(Stage stage, long nanos, long selfNanos) {
+      histograms[stage.ordinal()].record(nanos / 1000);
+      this.selfNanos[stage.ordinal()].add(selfNanos);
+    }
+  }
+
+  /** Null while metrics are off. */
+  private static volatile Stats stats = null;
+  /** The innermost Timer running on each thread, whose self time pauses while a nested stage runs. */
+  private static final ThreadLocal<Timer> CURRENT = new ThreadLocal<>();
+  /** The scope each thread is working in, if any, which gets everything recorded on it as well. */
+  private static final ThreadLocal<Stats> SCOPE = new ThreadLocal<>();
+
+  private Metrics() {
+    // Prevent instantiation
+  }
+
+  /** Turns metrics on, starting over from zero. */
+  static void enable() {
+    stats = new Stats();
+  }
+
+  /** Turns metrics off. */
+  static void disable() {
+    stats = null;
+  }
+
+  static boolean isEnabled() {
+    return stats != null;
+  }
+
+  /** Scope entered by enterScope, to be closed (in a try-with-resources) to leave it. */
+  interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /** Returns new, empty metrics for one part of a run, or null if metrics are off. */
+  static Stats newScope() {
+    return isEnabled() ? new Stats() : null;
+  }
+
+  /**
+   * Records what this thread does into the given scope (as well as into the run's metrics) until the returned Scope
+   * is closed.
+   * @param scope - From newScope; null records nothing extra
+   */
+  static Scope enterScope(Stats scope) {
+    Stats previous = SCOPE.get();
+    SCOPE.set(scope);
+    return () -> SCOPE.set(previous);
+  }
+
+  /**
+   * Starts timing a run of a stage. Close the Timer on the same thread when it's done, or use time(Stage, Timed).
+   */
+  static Timer time(Stage stage) {
+    Stats current = stats;
+    if (current == null) {
+      return Timer.NOOP;
+    }
+    Timer timer = new Timer(current, SCOPE.get(), stage, CURRENT.get());
+    CURRENT.set(timer);
+    return timer;
+  }
+
+  /** Code that a run of a stage is timed around, and its result. */
+  @FunctionalInterface
+  interface Timed<T, E extends Exception> {
+    T call() throws E;
+  }
+
+  /** Code that a run of a stage is timed around, with no result. */
+  @FunctionalInterface
+  interface TimedRun<E extends Exception> {
+    void run() throws E;
+  }
+
+  /** Times a run of a stage around the given code, and returns its result. */
+  static <T, E extends Exception> T time(Stage stage, Timed<T, E> code) throws E {
+    Timer timer = time(stage);
+    try {
+      return code.call();
+    } finally {
+      timer.close();
+    }
+  }
+
+  /** Times a run of a stage around the given code. */
+  static <E extends Exception> void time(Stage stage, TimedRun<E> code) throws E {
+    Timer timer = time(stage);
+    try {
+      code.run();
+    } finally {
+      timer.close();
+    }
+  }
+
+  /** Adds to a counter. */
+  static void count(Counter counter, long amount) {
+    Stats current = stats;
+    if (current != null) {
+      current.counters[counter.ordinal()].add(amount);
+      Stats scope = SCOPE.get();
+      if (scope != null) {
+        scope.counters[counter.ordinal()].add(amount);
+      }
+    }
+  }
+
+  /**
+   * Wraps a stream so that writing to it is timed as the WRITE stage and counted as BYTES_WRITTEN, if metrics are on.
+   */
+  static OutputStream timeWrites(OutputStream out) {
+    if (!isEnabled()) {
+      return out;
+    }
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        time(Stage.WRITE, () -> out.write(b));
+        count(Counter.BYTES_WRITTEN, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        time(Stage.WRITE, () -> out.write(b, off, len));
+        count(Counter.BYTES_WRITTEN, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        time(Stage.WRITE, () -> out.flush());
+      }
+
+      @Override
+      public void close() throws IOException {
+        time(Stage.WRITE, () -> out.close());
+      }
+    };
+  }
+
+  /** One run of a stage. */
+  static class Timer implements AutoCloseable {
+    private static final Timer NOOP = new Timer(null, null, null, null);
+    private final Stats stats;
+    private final Stats scope;
+    private final Stage stage;
+    private final Timer parent;
+    private final long startNanos;
+    private long childNanos = 0;
+
+    private Timer(Stats stats, Stats scope, Stage stage, Timer parent) {
+      this.stats = stats;
+      this.scope = scope;
+      this.stage = stage;
+      this.parent = parent;
+      this.startNanos = stats == null ? 0 : System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+      if (stats == null) {
+        return;
+      }
+      long nanos = System.nanoTime() - startNanos;
+      CURRENT.set(parent);
+      if (parent != null) {
+        parent.childNanos += nanos;
+      }
+      stats.record(stage, nanos, nanos - childNanos);
+      if (scope != null) {
+        scope.record(stage, nanos, nanos - childNanos);
+      }
+    }
+  }
+
+  /**
+   * Counts of durations in microseconds, in buckets that are exact up to 8 and then split each power of two into 8,
+   * so percentiles are within about 12%.
+   */
+  static class Histogram {
+    private static final int SUB_BUCKETS = 8;
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long micros) {
+      buckets.incrementAndGet(bucketOf(micros));
+      count.increment();
+      sum.add(micros);
+      max.accumulate(micros);
+    }
+
+    long count() {
+      return count.sum();
+    }
+
+    long sum() {
+      return sum.sum();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns the smallest value of the bucket that holds the given percentile of the recorded values.
+     * @param percentile - 0 to 100
+     */
+    long percentile(double percentile) {
+      long rank = (long) Math.ceil(count() * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return Math.min(lowestValueOf(i), max());
+        }
+      }
+      return 0;
+    }
+
+    private static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+      return (exponent - 2) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowestValueOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + 2;
+      return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+    }
+  }
+
+  /** Returns what has been recorded so far, one line per stage that ran and then the counters. */
+  static String summary() {
+    return summary(stats);
+  }
+
+  /** Returns what has been recorded so far in the given metrics (or scope), as for summary(). */
+  static String summary(Stats current) {
+    if (current == null) {
+      return "Metrics are off";
+    }
+    StringBuilder summary = new StringBuilder("Metrics after " + (System.nanoTime() - current.startNanos) / 1_000_000 + " ms:");
+    for (Stage stage : Stage.values()) {
+      Histogram histogram = current.histograms[stage.ordinal()];
+      if (histogram.count() > 0) {
+        summary.append(String.format(Locale.ROOT, "%n  %-10s %6d runs, %8d ms total, %8d ms self, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+            stage.name().toLowerCase(Locale.ROOT), histogram.count(), histogram.sum() / 1000,
+            current.selfNanos[stage.ordinal()].sum() / 1_000_000, histogram.percentile(50) / 1000.0,
+            histogram.percentile(99) / 1000.0, histogram.max() / 1000.0));
+      }
+    }
+    for (Counter counter : Counter.values()) {
+      summary.append(String.format(Locale.ROOT, "%n  %-18s %d", counter.name().toLowerCase(Locale.ROOT), current.counters[counter.ordinal()].sum()));
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Returns what has been recorded so far as JSON: elapsedMillis, then for each stage its runs and times in
+   * milliseconds, then each counter.
+   */
+  static String summaryJson() {
+    return json(stats, "") + "\n";
+  }
+
+  /**
+   * Writes the run's metrics to a file as JSON, along with those of each of its scopes: {"all": summaryJson(),
+   * "scopes": {name: same for the scope, ...}}.
+   */
+  static void writeSummary(Path file, Map<String, Stats> scopes) throws IOException {
+    StringBuilder json = new StringBuilder("{\n  \"all\": ").append(json(stats, "  ")).append(",\n  \"scopes\": {");
+    String separator = "\n";
+    for (Map.Entry<String, Stats> e : scopes.entrySet()) {
+      json.append(separator).append("    ").append(IndexShards.jsString(e.getKey())).append(": ").append(json(e.getValue(), "    "));
+      separator = ",\n";
+    }
+    writeFileCarefully(file, json.append("\n  }\n}\n").toString());
+  }
+
+  /** Returns the JSON for summaryJson, with every line after the first indented by the given amount. */
+  private static String json(Stats current, String indent) {
+    if (current == null) {
+      return "{}";
+    }
+    StringBuilder json = new StringBuilder("{\n  \"elapsedMillis\": ").append((System.nanoTime() - current.startNanos) / 1_000_000);
+    json.append(",\n  \"stages\": {");
+    for (Stage stage : Stage.values()) {
+      Histogram histogram = current.histograms[stage.ordinal()];
+      json.append(stage.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(stage.name().toLowerCase(Locale.ROOT)).append("\": {")
+          .append("\"count\": ").append(histogram.count())
+          .append(", \"totalMillis\": ").append(millis(histogram.sum()))
+          .append(", \"selfMillis\": ").append(millis(current.selfNanos[stage.ordinal()].sum() / 1000))
+          .append(", \"meanMillis\": ").append(millis(histogram.count() == 0 ? 0 : histogram.sum() / histogram.count()))
+          .append(", \"p50Millis\": ").append(millis(histogram.percentile(50)))
+          .append(", \"p90Millis\": ").append(millis(histogram.percentile(90)))
+          .append(", \"p99Millis\": ").append(millis(histogram.percentile(99)))
+          .append(", \"maxMillis\": ").append(millis(histogram.max()))
+          .append('}');
+    }
+    json.append("\n  },\n  \"counters\": {");
+    for (Counter counter : Counter.values()) {
+      json.append(counter.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(counterName(counter)).append("\": ")
+          .append(current.counters[counter.ordinal()].sum());
+    }
+    return json.append("\n  }\n}").toString().replace("\n", "\n" + indent);
+  }
+
+  /** Writes summaryJson() to a file. */
+  static void writeSummary(Path file) throws IOException {
+    writeFileCarefully(file, summaryJson());
+  }
+
+  private static String millis(long micros) {
+    return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+  }
+
+  /** Returns the counter's name in camel case, like "attachmentBytes". */
+  private static String counterName(Counter counter) {
+    StringBuilder name = new StringBuilder();
+    for (String word : counter.name().toLowerCase(Locale.ROOT).split("_")) {
+      name.append(name.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+    }
+    return name.toString();
+  }
+
+  /** A message that was archived, for Java Flight Recorder. */
+  @Name("com.bigclue.archive.Message")
+  @Label("Archive Message")
+  @Category("Archive")
+  @Description("A message archived to HTML")
+  static class MessageEvent extends Event {
+    @Label("Directory")
+    String dirName;
+
+    @Label("Original HTML Size")
+    @DataAmount
+    long origHtmlBytes;
+
+    @Label("HTML Size")
+    @DataAmount
+    long htmlBytes;
+
+    @Label("Attachments")
+    int attachmentCount;
+
+    @Label("Attachment Size")
+    @DataAmount
+    long attachmentBytes;
+  }
+}
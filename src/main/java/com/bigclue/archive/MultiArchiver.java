@@ -0,0 +1,453 @@
+package com.bigclue.archive;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+import jakarta.mail.UIDFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Archives several mailboxes, of one or more accounts, in one process: the jobs listed in a jobs file (see loadJobs).
+ * All the jobs share one set of worker threads, and each account has a cap on the connections open to it at once,
+ *   across all of its jobs. Work is handed out a batch of messages (one prefetch window) at a time, taking the jobs in
+ *   turn, so a mailbox with thousands of new messages can't hold up the others: they each get a batch done for every
+ *   batch of the big one.
+ * A connection is kept open between batches of the same job. When a job needs a connection and its account is at the
+ *   cap, it takes over one that another job of the same account has left idle.
+ * Each job saves its own checkpoint (under its account and mailbox), rebuilds its own index and reports its own
+ *   progress and metrics. A job that fails stops without moving its checkpoint, while the others go on.
+ */
+class MultiArchiver {
+  private static final String DEFAULT_MAILBOX = "What's Up";
+  private static final Set<String> SETTINGS = Set.of("email", "mailbox", "journalDir", "credentials");
+
+  private MultiArchiver() {
+    // Prevent instantiation
+  }
+
+  /**
+   * One mailbox to archive.
+   * @param name - Name of the job, for progress reports
+   * @param email - Account to connect to; jobs with the same email share its connections
+   * @param mailbox - Mailbox to archive
+   * @param journalDir - Journal directory, relative to the home directory (as for MailToHtml -journalDir)
+   * @param credentialsFile - File with the account's app-specific password (see MailToHtml.readCredentials), or null
+   *                          for the default one
+   */
+  record Job(String name, String email, String mailbox, String journalDir, Path credentialsFile) {}
+
+  /**
+   * Reads a jobs file: a properties file with each job's settings prefixed by the job's name, like
+   * <pre>
+   * alice.email = alice@example.com
+   * alice.mailbox = What's Up
+   * alice.journalDir = Documents/Journal/Alice
+   * alice.credentials = /home/me/keys/alice
+   * </pre>
+   * email and journalDir are required. mailbox defaults to "What's Up", and credentials to the default credentials
+   * file.
+   * @return The jobs, in name order
+   * @throws IllegalArgumentException - If a setting is unknown or missing
+   */
+  static List<Job> loadJobs(Path jobsFile) throws IOException {
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(jobsFile, StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    Map<String, Map<String, String>> settingsByJob = new TreeMap<>();
+    for (String key : props.stringPropertyNames()) {
+      int dot = key.lastIndexOf('.');
+      if (dot <= 0 || !SETTINGS.contains(key.substring(dot + 1))) {
+        throw new IllegalArgumentException("Unknown setting in " + jobsFile + ": " + key);
+      }
+      settingsByJob.computeIfAbsent(key.substring(0, dot), name -> new HashMap<>()).put(key.substring(dot + 1), props.getProperty(key).trim());
+    }
+    List<Job> jobs = new ArrayList<>();
+    for (Map.Entry<String, Map<String, String>> e : settingsByJob.entrySet()) {
+      String name = e.getKey();
+      Map<String, String> settings = e.getValue();
+      for (String required : List.of("email", "journalDir")) {
+        if (!settings.containsKey(required)) {
+          throw new IllegalArgumentException("Missing setting in " + jobsFile + ": " + name + "." + required);
+        }
+      }
+      String credentials = settings.get("credentials");
+      jobs.add(new Job(name, settings.get("email"), settings.getOrDefault("mailbox", DEFAULT_MAILBOX),
+          settings.get("journalDir"), credentials == null ? null : Paths.get(credentials)));
+    }
+    return jobs;
+  }
+
+  /** Opens a new connection to a job's mailbox. */
+  @FunctionalInterface
+  interface JobOpener {
+    Folder open(Job job) throws MessagingException;
+  }
+
+  /** Connects to the mail server and opens the job's mailbox read-only. */
+  static Folder openFolder(Job job) throws MessagingException {
+    MailToHtml.Credentials credentials = job.credentialsFile() == null
+        ? MailToHtml.readCredentials(null, null) : MailToHtml.readCredentials(job.credentialsFile());
+    return MailToHtml.openFolder(job.email(), credentials.password(), job.mailbox());
+  }
+
+  /**
+   * Archives every job's new messages, and waits for all of the jobs to finish.
+   * @param jobs - Jobs to run
+   * @param threads - Number of worker threads, shared by all the jobs. Each account gets at most this many
+   *                  connections, and never more than ParallelArchiver.MAX_CONNECTIONS.
+   * @param windowSize - Number of messages in a batch, which are prefetched in one round trip
+   * @param shouldSkipExisting - true if messages whose directory already exists should be skipped
+   * @param metricsFile - File to write the metrics of the run and of each job to, or null if metrics are off
+   * @throws Exception - The first exception thrown by any job, after all of the jobs have stopped
+   */
+  static void archive(List<Job> jobs, int threads, int windowSize, boolean shouldSkipExisting, Path metricsFile) throws Exception {
+    archive(jobs, MultiArchiver::openFolder, threads, windowSize, shouldSkipExisting, metricsFile);
+  }
+
+  /**
+   * Archives every job's new messages as above, opening connections with the given opener.
+   */
+  static void archive(List<Job> jobs, JobOpener opener, int threads, int windowSize, boolean shouldSkipExisting, Path metricsFile) throws Exception {
+    Scheduler scheduler = new Scheduler(jobs, Math.min(threads, ParallelArchiver.MAX_CONNECTIONS), windowSize, shouldSkipExisting);
+    log("Archiving " + jobs.size() + " mailboxes using " + threads + " threads");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executor.submit(() -> {
+          for (Unit unit; (unit = scheduler.next()) != null; ) {
+            scheduler.done(unit, run(unit, opener));
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Exception firstFailure = null;
+    int archivedCount = 0;
+    Map<String, Metrics.Stats> metrics = new TreeMap<>();
+    for (JobState job : scheduler.jobs) {
+      archivedCount += job.archivedCount.get();
+      metrics.put(job.job.name(), job.metrics);
+      if (firstFailure == null) {
+        firstFailure = job.failure;
+      }
+    }
+    log("Archived " + archivedCount + " messages from " + jobs.size() + " mailboxes"
+        + (firstFailure == null ? "" : "; some mailboxes failed"));
+    if (metricsFile != null) {
+      log(Metrics.summary());
+      Metrics.writeSummary(metricsFile, metrics);
+    }
+    if (firstFailure != null) {
+      throw firstFailure;
+    }
+  }
+
+  /** What a job has to do next. */
+  private enum Kind {
+    /** Find the UIDs of the messages to archive. */
+    PLAN,
+    /** Archive one batch of messages. */
+    BATCH,
+    /** Save the checkpoint, update the index and report. */
+    FINISH
+  }
+
+  /**
+   * One piece of work for a worker thread.
+   * @param folder - Connection to use, or null to open a new one (except for FINISH, which needs none)
+   * @param toClose - Connections to close first, which are no longer needed
+   */
+  private record Unit(JobState job, Kind kind, int start, Folder folder, List<Folder> toClose) {}
+
+  /** A journal directory, which more than one job may archive into. */
+  private record Journal(String rootDir, Set<String> claimedDirs) {}
+
+  /** A connection that isn't being used, and the job whose mailbox it has open. */
+  private record Idle(JobState job, Folder folder) {}
+
+  /** The connections to one account, across all of its jobs. Guarded by the Scheduler. */
+  private static class Account {
+    int openCount = 0;
+    final Deque<Idle> idle = new ArrayDeque<>();
+  }
+
+  /** Where a job is up to. The fields not set when it's created are guarded by the Scheduler. */
+  private static class JobState {
+    final Job job;
+    final Account account;
+    final Journal journal;
+    final Prefetcher prefetcher;
+    final boolean shouldSkipExisting;
+    final Metrics.Stats metrics = Metrics.newScope();
+    final long startNanos = System.nanoTime();
+    final AtomicInteger archivedCount = new AtomicInteger();
+    final AtomicInteger lookedAtCount = new AtomicInteger();
+    long uidValidity;
+    long[] uids = null;
+    boolean isPlanning = false;
+    int nextIndex = 0;
+    int runningCount = 0;
+    boolean isFinishing = false;
+    boolean isFinished = false;
+    Exception failure = null;
+
+    JobState(Job job, Account account, Journal journal, int windowSize, boolean shouldSkipExisting) {
+      this.job = job;
+      this.account = account;
+      this.journal = journal;
+      this.prefetcher = new Prefetcher(windowSize);
+      this.shouldSkipExisting = shouldSkipExisting;
+    }
+
+    void log(String message) {
+      MailToHtml.log("[" + job.name() + "] " + message);
+    }
+  }
+
+  /** Hands out the jobs' work to the worker threads, a unit at a time, taking the jobs in turn. */
+  private static class Scheduler {
+    final List<JobState> jobs = new ArrayList<>();
+    final int connectionsPerAccount;
+    int nextJob = 0;
+
+    Scheduler(List<Job> jobs, int connectionsPerAccount, int windowSize, boolean shouldSkipExisting) {
+      this.connectionsPerAccount = Math.max(1, connectionsPerAccount);
+      Map<String, Account> accounts = new HashMap<>();
+      Map<String, Journal> journals = new HashMap<>();
+      for (Job job : jobs) {
+        String rootDir = MailToHtml.rootDirOf(job.journalDir());
+        this.jobs.add(new JobState(job, accounts.computeIfAbsent(job.email(), email -> new Account()),
+            journals.computeIfAbsent(rootDir, dir -> new Journal(dir, ConcurrentHashMap.newKeySet())), windowSize,
+            shouldSkipExisting));
+      }
+    }
+
+    /**
+     * Waits for the next unit of work, starting with the job after the one that got the last unit.
+     * @return The unit, or null once every job has finished
+     */
+    synchronized Unit next() throws InterruptedException {
+      while (true) {
+        boolean isAllFinished = true;
+        for (int i = 0; i < jobs.size(); i++) {
+          JobState job = jobs.get((nextJob + i) % jobs.size());
+          isAllFinished &= job.isFinished;
+          Unit unit = nextUnit(job);
+          if (unit != null) {
+            nextJob = (nextJob + i + 1) % jobs.size();
+            return unit;
+          }
+        }
+        if (isAllFinished) {
+          return null;
+        }
+        wait();
+      }
+    }
+
+    /** Returns the job's next unit of work, or null if it has none that can be started now. */
+    private Unit nextUnit(JobState job) {
+      if (job.isFinishing) {
+        return null;
+      }
+      boolean hasWork = job.failure == null && (job.uids == null ? !job.isPlanning : job.nextIndex < job.uids.length);
+      if (!hasWork) {
+        if (job.runningCount > 0 || job.isPlanning) {
+          return null;
+        }
+        job.isFinishing = true;
+        return new Unit(job, Kind.FINISH, 0, null, closeIdle(job));
+      }
+      Folder folder = null;
+      List<Folder> toClose = List.of();
+      for (Iterator<Idle> it = job.account.idle.iterator(); it.hasNext() && folder == null; ) {
+        Idle idle = it.next();
+        if (idle.job() == job) {
+          it.remove();
+          folder = idle.folder();
+        }
+      }
+      if (folder == null) {
+        if (job.account.openCount < connectionsPerAccount) {
+          job.account.openCount++;
+        } else if (!job.account.idle.isEmpty()) {
+          // Take over another job's idle connection.
+          toClose = List.of(job.account.idle.removeFirst().folder());
+        } else {
+          return null;
+        }
+      }
+      job.runningCount++;
+      if (job.uids == null) {
+        job.isPlanning = true;
+        return new Unit(job, Kind.PLAN, 0, folder, toClose);
+      }
+      int start = job.nextIndex;
+      job.nextIndex += job.prefetcher.windowSize();
+      return new Unit(job, Kind.BATCH, start, folder, toClose);
+    }
+
+    /** Takes the job's idle connections out of its account, to be closed. */
+    private List<Folder> closeIdle(JobState job) {
+      List<Folder> folders = new ArrayList<>();
+      for (Iterator<Idle> it = job.account.idle.iterator(); it.hasNext(); ) {
+        Idle idle = it.next();
+        if (idle.job() == job) {
+          it.remove();
+          folders.add(idle.folder());
+          job.account.openCount--;
+        }
+      }
+      return folders;
+    }
+
+    /**
+     * Records that a unit is done.
+     * @param folder - Connection the unit used, to be kept for the job's next batch (or null if it had none)
+     */
+    void done(Unit unit, Folder folder) {
+      boolean shouldClose;
+      synchronized (this) {
+        JobState job = unit.job();
+        if (unit.kind() == Kind.FINISH) {
+          job.isFinished = true;
+          shouldClose = false;
+        } else {
+          job.runningCount--;
+          job.isPlanning = false;
+          shouldClose = folder == null || job.failure != null;
+          if (shouldClose) {
+            job.account.openCount--;
+          } else {
+            job.account.idle.addLast(new Idle(job, folder));
+          }
+        }
+        notifyAll();
+      }
+      if (shouldClose && folder != null) {
+        close(folder);
+      }
+    }
+  }
+
+  /**
+   * Does a unit of work, recording any failure in its job.
+   * @return The connection it used, or null if it had none or couldn't open one
+   */
+  @SuppressWarnings("try")
+  private static Folder run(Unit unit, JobOpener opener) {
+    JobState job = unit.job();
+    Folder folder = unit.folder();
+    try (Metrics.Scope ignored = Metrics.enterScope(job.metrics)) {
+      unit.toClose().forEach(MultiArchiver::close);
+      if (unit.kind() != Kind.FINISH && folder == null) {
+        folder = opener.open(job.job);
+      }
+      switch (unit.kind()) {
+        case PLAN -> plan(job, folder);
+        case BATCH -> archiveBatch(job, folder, unit.start());
+        case FINISH -> finish(job);
+      }
+    } catch (Exception e) {
+      job.log("Failed: " + e);
+      synchronized (job) {
+        if (job.failure == null) {
+          job.failure = e;
+        }
+      }
+    }
+    return folder;
+  }
+
+  private static void plan(JobState job, Folder folder) throws Exception {
+    long uidValidity = ((UIDFolder) folder).getUIDValidity();
+    // With -redo, ignore the checkpoint so that every message is looked at again.
+    SyncState.Checkpoint checkpoint = job.shouldSkipExisting ? SyncState.load(job.journal.rootDir(), job.job.email(), job.job.mailbox()) : null;
+    long[] uids = SyncState.uidsToArchive(folder, checkpoint);
+    job.log("Found " + uids.length + " messages to look at");
+    job.uidValidity = uidValidity;
+    job.uids = uids;
+  }
+
+  private static void archiveBatch(JobState job, Folder folder, int start) throws Exception {
+    long[] batch = Arrays.copyOfRange(job.uids, start, Math.min(start + job.prefetcher.windowSize(), job.uids.length));
+    job.archivedCount.addAndGet(MailToHtml.archiveUids(folder, batch, job.journal.rootDir(), job.shouldSkipExisting,
+        job.journal.claimedDirs(), job.prefetcher));
+    job.log("Looked at " + job.lookedAtCount.addAndGet(batch.length) + " of " + job.uids.length + " messages; archived "
+        + job.archivedCount.get());
+  }
+
+  private static void finish(JobState job) throws Exception {
+    long seconds = (System.nanoTime() - job.startNanos) / 1_000_000_000;
+    if (job.failure != null) {
+      job.log("Stopped after " + seconds + " s, leaving the checkpoint where it was; archived " + job.archivedCount.get()
+          + " messages");
+      return;
+    }
+    // Only move the checkpoint once every message up to it has been archived successfully.
+    if (job.uids.length > 0) {
+      SyncState.save(job.journal.rootDir(), job.job.email(), job.job.mailbox(), new SyncState.Checkpoint(job.uidValidity, job.uids[job.uids.length - 1]));
+    }
+    // Other jobs may be archiving into the same journal, but only one at a time rebuilds its index.
+    synchronized (job.journal) {
+      if (job.archivedCount.get() == 0 && new File(job.journal.rootDir(), "index.html").exists()) {
+        job.log("No new messages; index.html is up to date");
+      } else {
+        MailIndexer.createIndexHtml(job.journal.rootDir(), "index.html");
+      }
+    }
+    job.log("Archived " + job.archivedCount.get() + " of " + job.uids.length + " messages in " + seconds + " s");
+    job.log(job.prefetcher.summary());
+    if (job.metrics != null) {
+      job.log(Metrics.summary(job.metrics));
+    }
+  }
+
+  private static void close(Folder folder) {
+    try {
+      if (folder.isOpen()) {
+        folder.close(false);
+      }
+      folder.getStore().close();
+    } catch (MessagingException e) {
+      log("Error closing connection: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.bigclue.archive;
+
+import jakarta.mail.Folder;
+import jakarta.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Archives a mailbox over several IMAP connections at once, since a single connection spends most of its time
+ *   waiting on round trips. Each worker thread opens its own Store and Folder, then repeatedly claims the next
+ *   batch of UIDs until there are none left, so a batch of photo-heavy messages only slows down
+ *   the one worker that drew it.
+ */
+class ParallelArchiver {
+  /** Gmail allows 15 simultaneous IMAP connections per account, so stay well below that. */
+  static final int MAX_CONNECTIONS = 8;
+
+  private ParallelArchiver() {
+    // Prevent instantiation
+  }
+
+  /** Opens a new connection to the mailbox being archived. */
+  @FunctionalInterface
+  interface FolderOpener {
+    Folder open() throws MessagingException;
+  }
+
+  /**
+   * Archives the given messages using up to 'threads' connections, and waits for all of them to finish.
+   * @param opener - Opens a new, independent connection to the mailbox
+   * @param uids - UIDs of the messages to archive
+   * @param rootDir - Journal directory that holds one subdirectory per message
+   * @param shouldSkipExisting - true if messages whose directory already exists should be skipped
+   * @param threads - Number of connections (and worker threads) to use
+   * @param prefetcher - Prefetches each batch of messages; its window size is also the batch size
+   * @return Number of messages archived (not counting skipped ones)
+   * @throws Exception - The first exception thrown by any worker, after all workers have stopped
+   */
+  static int archive(FolderOpener opener, long[] uids, String rootDir, boolean shouldSkipExisting, int threads, Prefetcher prefetcher) throws Exception {
+    int connections = Math.min(threads, MAX_CONNECTIONS);
+    if (connections < threads) {
+      log("Limiting to " + connections + " connections");
+    }
+    log("Archiving " + uids.length + " messages using " + connections + " connections");
+
+    int batchSize = prefetcher.windowSize();
+    AtomicInteger nextIndex = new AtomicInteger(0);
+    AtomicInteger archivedCount = new AtomicInteger();
+    AtomicBoolean failed = new AtomicBoolean();
+    Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(connections);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < connections; i++) {
+        futures.add(executor.submit(() -> {
+          Folder folder = opener.open();
+          try {
+            int start;
+            while (!failed.get() && (start = nextIndex.getAndAdd(batchSize)) < uids.length) {
+              long[] batch = Arrays.copyOfRange(uids, start, Math.min(start + batchSize, uids.length));
+              archivedCount.addAndGet(MailToHtml.archiveUids(folder, batch, rootDir, shouldSkipExisting, claimedDirs, prefetcher));
+            }
+          } catch (Exception e) {
+            failed.set(true);
+            throw e;
+          } finally {
+            close(folder);
+          }
+          return null;
+        }));
+      }
+      Exception firstFailure = null;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (firstFailure == null) {
+            firstFailure = e.getCause() instanceof Exception cause ? cause : e;
+          }
+        }
+      }
+      if (firstFailure != null) {
+        throw firstFailure;
+      }
+    } finally {
+      executor.shutdown();
+    }
+    log("Archived " + archivedCount.get() + " of " + uids.length + " messages");
+    return archivedCount.get();
+  }
+
+  private static void close(Folder folder) {
+    try {
+      if (folder.isOpen()) {
+        folder.close(false);
+      }
+      folder.getStore().close();
+    } catch (MessagingException e) {
+      log("Error closing connection: " + e.getMessage());
+    }
+  }
+}
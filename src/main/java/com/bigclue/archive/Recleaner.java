@@ -0,0 +1,153 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static com.bigclue.archive.MailToHtml.log;
+
+/**
+ * Re-renders every message in the archive from its saved &lt;entry&gt;.orig.html, without connecting to the mail
+ *   server, so that a change to HtmlCleaner can be applied to the whole archive at once.
+ * Messages are cleaned in parallel on a fork-join pool with one thread per core. A message's .html file is only
+ *   rewritten if its contents change, so the index's TitleCache still skips the ones that didn't.
+ */
+class Recleaner {
+  /** Number of messages a task cleans itself rather than splitting in half. */
+  private static final int BATCH_SIZE = 16;
+
+  private Recleaner() {
+    // Prevent instantiation
+  }
+
+  /** Totals for a run, or for the part of one handled by a single task. */
+  record Result(int cleanedCount, int changedCount, int failedCount, long bytes) {
+    static final Result NONE = new Result(0, 0, 0, 0);
+
+    Result plus(Result other) {
+      return new Result(cleanedCount + other.cleanedCount, changedCount + other.changedCount,
+          failedCount + other.failedCount, bytes + other.bytes);
+    }
+  }
+
+  /**
+   * Re-cleans every message under rootDir using one thread per core, then rebuilds index.html.
+   * @param rootDir - Journal directory that holds one subdirectory per message
+   * @return Totals for the run
+   */
+  static Result recleanArchive(String rootDir) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      return recleanArchive(rootDir, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Re-cleans every message under rootDir on the given pool, then rebuilds index.html.
+   * @param rootDir - Journal directory that holds one subdirectory per message
+   * @param pool - Pool to clean the messages on
+   * @return Totals for the run
+   */
+  static Result recleanArchive(String rootDir, ForkJoinPool pool) throws IOException {
+    long start = System.nanoTime();
+    List<Path> origFiles = getOrigHtmlFiles(Path.of(rootDir));
+    log("Re-cleaning " + origFiles.size() + " messages using " + pool.getParallelism() + " threads");
+    Result result = pool.invoke(new RecleanTask(origFiles, 0, origFiles.size()));
+    double seconds = (System.nanoTime() - start) / 1e9;
+    log(String.format("Re-cleaned %d messages in %.1f s (%.0f messages/s, %.1f MB/s): %d changed, %d failed",
+        result.cleanedCount(), seconds, result.cleanedCount() / seconds, result.bytes() / 1_048_576.0 / seconds,
+        result.changedCount(), result.failedCount()));
+    MailIndexer.createIndexHtml(rootDir, "index.html");
+    return result;
+  }
+
+  /**
+   * Re-cleans one message, writing its .html file only if the result differs from what's already there.
+   * Waits for room in the cleaning memory budget first, like MailToHtml.cleanHtmlFile.
+   * @param origFile - The message's &lt;entry&gt;.orig.html file
+   * @return True if the .html file was written
+   */
+  @SuppressWarnings("try")
+  static boolean recleanMessage(Path origFile) throws IOException, InterruptedException {
+    String fileName = origFile.getFileName().toString();
+    Path htmlFile = origFile.resolveSibling(fileName.substring(0, fileName.length() - ".orig.html".length()) + ".html");
+    try (MemoryBudget.Reservation ignored = MemoryBudget.CLEANING.reserve(Files.size(origFile) * MemoryBudget.CLEANING_BYTES_PER_BYTE)) {
+      String cleanHtml = HtmlCleaner.cleanHtml(Files.readString(origFile));
+      if (Files.exists(htmlFile) && Files.readString(htmlFile).equals(cleanHtml)) {
+        return false;
+      }
+      MailToHtml.writeFileCarefully(htmlFile, cleanHtml);
+      return true;
+    }
+  }
+
+  private static class RecleanTask extends RecursiveTask<Result> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Path> origFiles;
+    private final int start;
+    private final int end;
+
+    RecleanTask(List<Path> origFiles, int start, int end) {
+      this.origFiles = origFiles;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected Result compute() {
+      if (end - start > BATCH_SIZE) {
+        int middle = (start + end) >>> 1;
+        RecleanTask firstHalf = new RecleanTask(origFiles, start, middle);
+        firstHalf.fork();
+        Result secondHalf = new RecleanTask(origFiles, middle, end).compute();
+        return firstHalf.join().plus(secondHalf);
+      }
+      Result result = Result.NONE;
+      for (Path origFile : origFiles.subList(start, end)) {
+        try {
+          long bytes = Files.size(origFile);
+          boolean isChanged = recleanMessage(origFile);
+          result = result.plus(new Result(1, isChanged ? 1 : 0, 0, bytes));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return result.plus(new Result(0, 0, end - start - result.cleanedCount() - result.failedCount(), 0));
+        } catch (IOException | RuntimeException e) {
+          // One bad message shouldn't stop the rest from being re-cleaned.
+          log("  ## Failed to re-clean " + origFile + ": " + e);
+          result = result.plus(new Result(0, 0, 1, 0));
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Finds the &lt;entry&gt;.orig.html file of each message directory, skipping hidden directories (like the
+   * BlobStore) and ".tmp" directories of messages that are still being archived.
+   */
+  private static List<Path> getOrigHtmlFiles(Path rootDir) throws IOException {
+    List<Path> origFiles = new ArrayList<>();
+    try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(rootDir, Files::isDirectory)) {
+      for (Path subdir : subdirs) {
+        String dirName = subdir.getFileName().toString();
+        if (dirName.startsWith(".") || dirName.endsWith(".tmp")) {
+          continue;
+        }
+        Path origFile = subdir.resolve(dirName + ".orig.html");
+        if (Files.exists(origFile)) {
+          origFiles.add(origFile);
+        }
+      }
+    }
+    origFiles.sort(Path::compareTo);
+    return origFiles;
+  }
+}
@@ -0,0 +1,378 @@
+package com.bigclue.archive;
+
+import org.jsoup.Jsoup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+import static com.bigclue.archive.MailToHtml.writeFileIfChanged;
+
+/**
+ * Builds a full-text inverted index of the journal that index.html can search without a server: for each word, the
+ *   messages whose text contains it.
+ * The index is written to the .search directory as JavaScript files that call back into the page (JSONP), since a
+ *   page opened from a file: URL can load scripts but can't fetch JSON. docs.js lists the message directories in
+ *   index order, and each t-XX.js shard holds the words starting with the two characters XX, each with its list of
+ *   message numbers, delta-encoded. The page loads docs.js and the shards for the words being searched for only when
+ *   a search is made.
+ * Building is incremental: the words of each message are kept in .search-cache.tsv along with the size and
+ *   modification time of its HTML file, so only new or changed messages are read and tokenized. Only shards whose
+ *   contents change are rewritten. A single new message can also be added without looking at the others (see add).
+ */
+class SearchIndex {
+  static final String INDEX_DIR = ".search";
+  static final String CACHE_FILE = ".search-cache.tsv";
+  static final String DOCS_FILE = "docs.js";
+  /** Shorter words are too common to be worth indexing (and aren't searched for, either). */
+  static final int MIN_TERM_LENGTH = 2;
+  /** Longer "words" are usually encoded data or URLs. */
+  static final int MAX_TERM_LENGTH = 40;
+  private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+  private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+  private SearchIndex() {
+    // Prevent instantiation
+  }
+
+  /**
+   * Totals for a build.
+   * @param docCount - Number of messages in the index
+   * @param tokenizedCount - Number of messages that were new or changed, and so had to be read
+   * @param shardCount - Number of shard files
+   * @param writtenCount - Number of index files (shards and docs.js) that were written because they changed
+   */
+  record Result(int docCount, int tokenizedCount, int shardCount, int writtenCount) {}
+
+  /** The words of one message's HTML file, as of the given size and modification time. */
+  private record Entry(long mtime, long size, String[] terms) {}
+
+  /** Growable list of message numbers. */
+  private static class Postings {
+    int[] docs = new int[4];
+    int count = 0;
+
+    void add(int doc) {
+      if (count == docs.length) {
+        docs = Arrays.copyOf(docs, count * 2);
+      }
+      docs[count++] = doc;
+    }
+
+    /** Returns the message numbers as they're written in a shard: the first, then the difference from each to the next. */
+    String deltas() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+        sb.append(i == 0 ? "" : ",").append(i == 0 ? docs[0] : docs[i] - docs[i - 1]);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Brings the index in inputDir/.search up to date with the given message files.
+   * @param inputDir - Directory containing one subdirectory per email message
+   * @param htmlFiles - Each message's HTML file, in the order the index lists them
+   */
+  static Result update(Path inputDir, List<Path> htmlFiles) throws IOException {
+    Map<String, Entry> previous = loadCache(inputDir.resolve(CACHE_FILE));
+    Map<String, Entry> current = new TreeMap<>();
+    List<String> dirNames = new ArrayList<>();
+    Map<String, Postings> postingsByTerm = new TreeMap<>();
+    int tokenizedCount = 0;
+    for (Path htmlFile : htmlFiles) {
+      String dirName = htmlFile.getParent().getFileName().toString();
+      BasicFileAttributes attributes = Files.readAttributes(htmlFile, BasicFileAttributes.class);
+      long mtime = attributes.lastModifiedTime().toMillis();
+      Entry entry = previous.get(dirName);
+      if (entry == null || entry.mtime() != mtime || entry.size() != attributes.size()) {
+        String text = Jsoup.parse(htmlFile.toFile(), "UTF-8").text();
+        entry = new Entry(mtime, attributes.size(), tokenize(text).toArray(new String[0]));
+        tokenizedCount++;
+      }
+      current.put(dirName, entry);
+      int doc = dirNames.size();
+      dirNames.add(dirName);
+      for (String term : entry.terms()) {
+        postingsByTerm.computeIfAbsent(term, key -> new Postings()).add(doc);
+      }
+    }
+
+    Path indexDir = Files.createDirectories(inputDir.resolve(INDEX_DIR));
+    int writtenCount = writeFileIfChanged(indexDir.resolve(DOCS_FILE), docsJs(dirNames)) ? 1 : 0;
+    Map<String, Map<String, String>> shards = new TreeMap<>();
+    for (Map.Entry<String, Postings> e : postingsByTerm.entrySet()) {
+      shards.computeIfAbsent(shardOf(e.getKey()), key -> new TreeMap<>()).put(e.getKey(), e.getValue().deltas());
+    }
+    for (Map.Entry<String, Map<String, String>> e : shards.entrySet()) {
+      if (writeFileIfChanged(indexDir.resolve(shardFileName(e.getKey())), shardJs(e.getKey(), e.getValue()))) {
+        writtenCount++;
+      }
+    }
+    deleteStaleShards(indexDir, shards.keySet());
+    if (tokenizedCount > 0 || !current.keySet().equals(previous.keySet())) {
+      saveCache(inputDir.resolve(CACHE_FILE), current);
+    }
+    return new Result(dirNames.size(), tokenizedCount, shards.size(), writtenCount);
+  }
+
+  /**
+   * Adds one new message to the index, reading no other message and rewriting only docs.js and the shards of the new
+   * message's words, which is what keeps archiving as messages arrive from costing as much as indexing the whole
+   * journal each time. The message is numbered after every message already in the index, rather than in date order
+   * (which would renumber every later message in every shard); the next update puts the numbers back in order.
+   * @param inputDir - Directory containing one subdirectory per email message
+   * @param htmlFile - The new message's HTML file
+   * @return Number of index files written, or -1 if there's no index yet or the message is already in it, in which
+   *         case nothing was done and update should be used instead
+   */
+  static int add(Path inputDir, Path htmlFile) throws IOException {
+    Path indexDir = inputDir.resolve(INDEX_DIR);
+    Path docsFile = indexDir.resolve(DOCS_FILE);
+    String dirName = htmlFile.getParent().getFileName().toString();
+    if (!Files.exists(docsFile)) {
+      return -1;
+    }
+    List<String> dirNames = parseList(Files.readString(docsFile));
+    if (dirNames.contains(dirName)) {
+      return -1;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(htmlFile, BasicFileAttributes.class);
+    String text = Jsoup.parse(htmlFile.toFile(), "UTF-8").text();
+    Entry entry = new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), tokenize(text).toArray(new String[0]));
+    int doc = dirNames.size();
+    dirNames.add(dirName);
+    // docs.js first: if the shards weren't all written, the message is just missing from some searches until the
+    // next update, whereas a shard naming a message that docs.js doesn't list would give its number to the next one.
+    writeFileCarefully(docsFile, docsJs(dirNames));
+    int writtenCount = 1;
+    Map<String, List<String>> termsByShard = new TreeMap<>();
+    for (String term : entry.terms()) {
+      termsByShard.computeIfAbsent(shardOf(term), key -> new ArrayList<>()).add(term);
+    }
+    for (Map.Entry<String, List<String>> e : termsByShard.entrySet()) {
+      Path shardFile = indexDir.resolve(shardFileName(e.getKey()));
+      Map<String, String> postings = Files.exists(shardFile) ? parseShard(Files.readString(shardFile)) : new TreeMap<>();
+      for (String term : e.getValue()) {
+        String deltas = postings.get(term);
+        postings.put(term, deltas == null ? Integer.toString(doc) : deltas + "," + (doc - lastDoc(deltas)));
+      }
+      writeFileCarefully(shardFile, shardJs(e.getKey(), postings));
+      writtenCount++;
+    }
+    Files.writeString(inputDir.resolve(CACHE_FILE), cacheLine(dirName, entry), StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    return writtenCount;
+  }
+
+  /**
+   * Splits text into the distinct words to index: lowercase, with accents removed, split at anything that isn't a
+   * letter or digit. The page does the same to the words being searched for.
+   */
+  static Set<String> tokenize(String text) {
+    Set<String> terms = new TreeSet<>();
+    for (String term : words(text)) {
+      if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+        terms.add(term);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Splits text into words, in order and with repeats, normalized the same way as by tokenize but without leaving
+   * any out.
+   */
+  static List<String> words(String text) {
+    String normalized = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    List<String> words = new ArrayList<>();
+    for (String word : NON_WORD.split(normalized)) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Returns the name of the shard a word goes in: its first two characters, with any that aren't a-z or 0-9 written
+   * as "_" and their hex code, so the name is safe in a file name.
+   */
+  static String shardOf(String term) {
+    StringBuilder shard = new StringBuilder();
+    for (int i = 0; i < Math.min(2, term.length()); i++) {
+      char c = term.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+        shard.append(c);
+      } else {
+        shard.append('_').append(Integer.toHexString(c));
+      }
+    }
+    return shard.toString();
+  }
+
+  /**
+   * Finds the messages that contain every word of the query, the same way the page's search box does.
+   * @return Names of the matching message directories, in date order
+   */
+  static List<String> search(Path inputDir, String query) throws IOException {
+    Path indexDir = inputDir.resolve(INDEX_DIR);
+    List<String> dirNames = parseList(Files.readString(indexDir.resolve(DOCS_FILE)));
+    Set<Integer> matches = null;
+    for (String term : tokenize(query)) {
+      Set<Integer> docs = new TreeSet<>();
+      Path shardFile = indexDir.resolve(shardFileName(shardOf(term)));
+      if (Files.exists(shardFile)) {
+        String shard = Files.readString(shardFile);
+        int pos = shard.indexOf("\"" + term + "\":[");
+        if (pos >= 0) {
+          int start = pos + term.length() + 4;
+          int doc = 0;
+          for (String delta : shard.substring(start, shard.indexOf(']', start)).split(",")) {
+            doc += Integer.parseInt(delta);
+            docs.add(doc);
+          }
+        }
+      }
+      if (matches == null) {
+        matches = docs;
+      } else {
+        matches.retainAll(docs);
+      }
+    }
+    List<String> result = new ArrayList<>();
+    if (matches != null) {
+      for (int doc : matches) {
+        result.add(dirNames.get(doc));
+      }
+    }
+    // Messages added one at a time are numbered out of date order until the next update.
+    result.sort(null);
+    return result;
+  }
+
+  private static String shardFileName(String shard) {
+    return "t-" + shard + ".js";
+  }
+
+  private static String docsJs(List<String> dirNames) {
+    StringBuilder js = new StringBuilder("searchDocsLoaded([");
+    for (int i = 0; i < dirNames.size(); i++) {
+      js.append(i == 0 ? "" : ",").append('"').append(dirNames.get(i).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return js.append("]);\n").toString();
+  }
+
+  private static String shardJs(String shard, Map<String, String> deltasByTerm) {
+    StringBuilder js = new StringBuilder("searchShardLoaded(\"").append(shard).append("\",{");
+    boolean isFirst = true;
+    for (Map.Entry<String, String> e : deltasByTerm.entrySet()) {
+      js.append(isFirst ? "" : ",").append('"').append(e.getKey()).append("\":[").append(e.getValue()).append(']');
+      isFirst = false;
+    }
+    return js.append("});\n").toString();
+  }
+
+  /** Reads a shard as written by shardJs, into each word's message numbers as written there (delta-encoded). */
+  private static Map<String, String> parseShard(String shardJs) {
+    Map<String, String> deltasByTerm = new TreeMap<>();
+    int pos = shardJs.indexOf('{') + 1;
+    while (pos > 0 && shardJs.charAt(pos) == '"') {
+      // Words are only letters and digits, so there's nothing escaped.
+      int termEnd = shardJs.indexOf('"', pos + 1);
+      int listEnd = shardJs.indexOf(']', termEnd);
+      deltasByTerm.put(shardJs.substring(pos + 1, termEnd), shardJs.substring(termEnd + 3, listEnd));
+      pos = shardJs.charAt(listEnd + 1) == ',' ? listEnd + 2 : listEnd + 1;
+    }
+    return deltasByTerm;
+  }
+
+  /** Returns the last message number in a delta-encoded list. */
+  private static int lastDoc(String deltas) {
+    int doc = 0;
+    for (String delta : deltas.split(",")) {
+      doc += Integer.parseInt(delta);
+    }
+    return doc;
+  }
+
+  private static List<String> parseList(String docsJs) {
+    List<String> dirNames = new ArrayList<>();
+    int pos = docsJs.indexOf('"');
+    while (pos >= 0) {
+      StringBuilder dirName = new StringBuilder();
+      int i = pos + 1;
+      for (; docsJs.charAt(i) != '"'; i++) {
+        dirName.append(docsJs.charAt(i) == '\\' ? docsJs.charAt(++i) : docsJs.charAt(i));
+      }
+      dirNames.add(dirName.toString());
+      pos = docsJs.indexOf('"', i + 1);
+    }
+    return dirNames;
+  }
+
+  private static void deleteStaleShards(Path indexDir, Set<String> shards) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(indexDir, "t-*.js")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (!shards.contains(name.substring(2, name.length() - 3))) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the cache: one line per message directory with dirName, mtime (millis), size, and its words separated by
+   * spaces. A missing or unreadable cache just means every message is tokenized.
+   */
+  private static Map<String, Entry> loadCache(Path cacheFile) {
+    Map<String, Entry> entries = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 4);
+        if (fields.length == 4) {
+          String[] terms = fields[3].isEmpty() ? new String[0] : fields[3].split(" ");
+          entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), terms));
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // First build
+    } catch (IOException | NumberFormatException e) {
+      System.out.println("Ignoring unreadable search cache " + cacheFile + ": " + e);
+      entries.clear();
+    }
+    return entries;
+  }
+
+  private static void saveCache(Path cacheFile, Map<String, Entry> entries) throws IOException {
+    writeFileCarefully(cacheFile, out -> {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        out.write(cacheLine(e.getKey(), e.getValue()));
+      }
+    });
+  }
+
+  private static String cacheLine(String dirName, Entry entry) {
+    return dirName + "\t" + entry.mtime() + "\t" + entry.size() + "\t" + String.join(" ", entry.terms()) + "\n";
+  }
+}
@@ -0,0 +1,265 @@
+package com.bigclue.archive;
+
+/**
+ * Does the paragraph stage of HtmlCleaner.cleanBody in one forward scan of the body's tags and text, instead of a
+ *   series of full-document regular expression passes. The rules are the same:
+ * <ul>
+ *   <li>span, font and blockquote tags are dropped;</li>
+ *   <li>each image becomes a paragraph of its own;</li>
+ *   <li>a br between two pieces of text is kept as a line break (marked with &lt;ß&gt; while scanning);</li>
+ *   <li>any other br, p or div tag starts a new paragraph, and empty paragraphs are dropped;</li>
+ *   <li>one &amp;nbsp; is trimmed from each side of each paragraph and line break.</li>
+ * </ul>
+ * The output is the same as the regular expressions produce (see HtmlCleaner.cleanBodyRegex), including their
+ *   quirks: tag names are matched by prefix (so &lt;pre&gt; is a paragraph break), a br is only kept as a line break
+ *   if the character before it wasn't already used up by the previous line break, and so on. The one known
+ *   difference is a span, font or blockquote tag inside one of the other tags above (e.g., in an img's alt text),
+ *   which the regular expressions remove first.
+ */
+class SinglePassCleaner {
+  private static final String LINE_BREAK_MARKER = "<ß>";
+  private static final String PARAGRAPH_MARKER = "<¶>";
+  private static final String NBSP = "&nbsp;";
+
+  private enum TagType { REMOVE, IMAGE, LINE_BREAK, PARAGRAPH_BREAK, OTHER }
+
+  private final String body;
+  private final StringBuilder out;
+  private final StringBuilder paragraph = new StringBuilder();
+  /** True if the last non-space character so far is text that a following br could be a line break after. */
+  private boolean canBreakAfter = false;
+  /** True after a line break, until the text that follows it (which the line break "uses up"). */
+  private boolean isSkippingToText = false;
+  /** Position of the next '>' at or after the current position, or -1 if there isn't one. */
+  private int nextCloseBracket;
+
+  private SinglePassCleaner(String body) {
+    this.body = body;
+    this.out = new StringBuilder(body.length() + body.length() / 8);
+    this.nextCloseBracket = body.indexOf('>');
+  }
+
+  /**
+   * Turns the body into a list of paragraphs, one per line, each surrounded by &lt;p&gt; tags.
+   * @param body - Contents of the &lt;body&gt; element of a message
+   * @return Paragraphs, each followed by a newline (or just a newline if there are none)
+   */
+  static String cleanParagraphs(String body) {
+    return new SinglePassCleaner(body).scan();
+  }
+
+  private String scan() {
+    int pos = 0;
+    int length = body.length();
+    while (pos < length) {
+      char c = body.charAt(pos);
+      if (c == '<') {
+        TagType tagType = tagType(body, pos);
+        int tagEnd = tagType == TagType.OTHER ? -1 : closeBracketAfter(pos);
+        if (tagEnd >= 0) {
+          handleTag(tagType, pos, tagEnd + 1);
+          pos = tagEnd + 1;
+          continue;
+        }
+      }
+      // Other tags are copied a character at a time, just like text, since the rules only look at their brackets.
+      handleText(c);
+      pos++;
+    }
+    finishParagraph();
+    return out.append('\n').toString();
+  }
+
+  private int closeBracketAfter(int pos) {
+    if (nextCloseBracket >= 0 && nextCloseBracket < pos) {
+      nextCloseBracket = body.indexOf('>', pos);
+    }
+    return nextCloseBracket;
+  }
+
+  private void handleText(char c) {
+    if (isSkippingToText) {
+      if (isSpace(c)) {
+        return;
+      }
+      isSkippingToText = false;
+      paragraph.append(c);
+      canBreakAfter = false;
+      return;
+    }
+    paragraph.append(c);
+    if (!isSpace(c)) {
+      canBreakAfter = c != '>';
+    }
+  }
+
+  private void handleTag(TagType tagType, int start, int end) {
+    switch (tagType) {
+      case REMOVE -> {
+        // Dropped without a trace, so the text on either side is treated as adjacent.
+      }
+      case IMAGE -> {
+        finishParagraph();
+        paragraph.append(body, start, end);
+        finishParagraph();
+        canBreakAfter = false;
+      }
+      case LINE_BREAK -> {
+        if (canBreakAfter && isTextNext(end)) {
+          trimTrailingSpaces(paragraph);
+          paragraph.append(LINE_BREAK_MARKER);
+          isSkippingToText = true;
+        } else {
+          finishParagraph();
+          canBreakAfter = false;
+        }
+      }
+      default -> {
+        finishParagraph();
+        canBreakAfter = false;
+      }
+    }
+  }
+
+  /**
+   * Tells whether the first thing after pos, skipping spaces and dropped tags, is text (and not a tag).
+   */
+  private boolean isTextNext(int pos) {
+    while (pos < body.length()) {
+      char c = body.charAt(pos);
+      if (c == '<') {
+        int tagEnd = body.indexOf('>', pos);
+        if (tagEnd < 0 || tagType(body, pos) != TagType.REMOVE) {
+          return false;
+        }
+        pos = tagEnd + 1;
+      } else if (isSpace(c)) {
+        pos++;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tells whether the tag at pos always starts a new paragraph (p, div or &lt;/br&gt;, but not &lt;br&gt;, which may
+   * be a line break within one), assuming it has a closing '>'.
+   */
+  static boolean isParagraphBreakTag(CharSequence html, int pos) {
+    return tagType(html, pos) == TagType.PARAGRAPH_BREAK;
+  }
+
+  private static TagType tagType(CharSequence html, int tagStart) {
+    int pos = tagStart + 1;
+    boolean isClosing = pos < html.length() && html.charAt(pos) == '/';
+    if (isClosing) {
+      pos++;
+    }
+    if (startsWith(html, pos, "span") || startsWith(html, pos, "font") || startsWith(html, pos, "blockquote")) {
+      return TagType.REMOVE;
+    }
+    if (!isClosing && startsWith(html, pos, "img")) {
+      return TagType.IMAGE;
+    }
+    if (startsWith(html, pos, "br")) {
+      return isClosing ? TagType.PARAGRAPH_BREAK : TagType.LINE_BREAK;
+    }
+    if (startsWith(html, pos, "p") || startsWith(html, pos, "div") || startsWith(html, tagStart, PARAGRAPH_MARKER)) {
+      return TagType.PARAGRAPH_BREAK;
+    }
+    return TagType.OTHER;
+  }
+
+  /**
+   * Adds the paragraph collected so far to the output, unless it's empty.
+   */
+  private void finishParagraph() {
+    String text = paragraph.toString().trim();
+    paragraph.setLength(0);
+    if (text.isEmpty()) {
+      return;
+    }
+    if (!out.isEmpty()) {
+      out.append('\n');
+    }
+    out.append("<p>");
+    int segmentStart = 0;
+    while (true) {
+      int marker = text.indexOf(LINE_BREAK_MARKER, segmentStart);
+      appendSegment(text, segmentStart, marker < 0 ? text.length() : marker, segmentStart > 0);
+      if (marker < 0) {
+        break;
+      }
+      out.append("<br>");
+      segmentStart = marker + LINE_BREAK_MARKER.length();
+    }
+    out.append("</p>");
+  }
+
+  /**
+   * Appends the text between two tags (&lt;p&gt;, &lt;br&gt; or &lt;/p&gt;), trimming one &amp;nbsp; (and the spaces
+   * around it) from each end.
+   * @param isAfterLineBreak - True if the text follows a &lt;br&gt;, in which case it starts with a newline
+   */
+  private void appendSegment(String text, int start, int end, boolean isAfterLineBreak) {
+    boolean hasNewline = isAfterLineBreak;
+    int first = skipSpaces(text, start, end);
+    if (startsWith(text, first, NBSP) && first + NBSP.length() <= end) {
+      start = skipSpaces(text, first + NBSP.length(), end);
+      hasNewline = false;
+    }
+    int last = skipSpacesBackward(text, start, end);
+    if (last - NBSP.length() >= start && startsWith(text, last - NBSP.length(), NBSP)) {
+      end = skipSpacesBackward(text, start, last - NBSP.length());
+    }
+    if (hasNewline) {
+      out.append('\n');
+    }
+    out.append(text, start, end);
+  }
+
+  private static void trimTrailingSpaces(StringBuilder sb) {
+    int length = sb.length();
+    while (length > 0 && isSpace(sb.charAt(length - 1))) {
+      length--;
+    }
+    sb.setLength(length);
+  }
+
+  private static int skipSpaces(String s, int pos, int end) {
+    while (pos < end && isSpace(s.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int skipSpacesBackward(String s, int start, int end) {
+    while (end > start && isSpace(s.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  /** Same characters as \s in a regular expression. */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Tells whether s has the given lowercase ASCII text at pos, ignoring ASCII case (like (?i) in a regular expression).
+   */
+  private static boolean startsWith(CharSequence s, int pos, String lowercase) {
+    if (pos < 0 || pos + lowercase.length() > s.length()) {
+      return false;
+    }
+    for (int i = 0; i < lowercase.length(); i++) {
+      char c = s.charAt(pos + i);
+      char expected = lowercase.charAt(i);
+      if (c != expected && !(expected >= 'a' && expected <= 'z' && c == expected - 32)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,180 @@
+package com.bigclue.archive;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Cleans an HTML document (or just the contents of its body) as it is read, writing out the cleaned HTML a piece at a
+ *   time, so that neither the document nor the result has to be in memory all at once.
+ * The body is cleaned in segments that end just before a p or div tag. The output has to be the same as cleaning the
+ *   whole body at once, so a segment only ends where that is known to be true: not inside a link or a table, for
+ *   example (see HtmlCleaner.fixLinksAndTablesBeforeSplit). Ordinary messages have such places every few lines, so
+ *   only about a window's worth of the body is held at once. If there are none, the window keeps growing until there
+ *   is one, so memory use is bounded in practice, but not for every possible input.
+ * A document without a &lt;body&gt; tag can't be streamed, since its body is only known once all of it has been read,
+ *   so it is read in full and cleaned all at once.
+ */
+class StreamingHtmlCleaner {
+  /** Number of chars of the body to read before looking for a place to split it. */
+  static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+  /** Number of places to try splitting the window at before waiting for it to get bigger. */
+  private static final int MAX_SPLIT_TRIES = 4;
+
+  private final Reader in;
+  private final Writer out;
+  private final int windowSize;
+  /** Text that has been read but not yet written out. */
+  private final StringBuilder window = new StringBuilder();
+  private final char[] buffer = new char[8192];
+  private boolean isEndOfInput = false;
+  private boolean hasWrittenParagraphs = false;
+  /** Window length at which to next look for a place to split. */
+  private int nextSplitLength;
+
+  private StreamingHtmlCleaner(Reader in, Writer out, int windowSize) {
+    this.in = in;
+    this.out = out;
+    this.windowSize = windowSize;
+    this.nextSplitLength = windowSize;
+  }
+
+  /**
+   * Reads an HTML document and writes it out with its body cleaned, the same as HtmlCleaner.cleanHtml.
+   * @param windowSize - Number of chars of the body to read before looking for a place to split it
+   */
+  static void cleanHtml(Reader in, Writer out, int windowSize) throws IOException {
+    new StreamingHtmlCleaner(in, out, windowSize).cleanDocument();
+  }
+
+  /**
+   * Reads the contents of a body and writes them out cleaned, the same as HtmlCleaner.cleanBody.
+   * @param windowSize - Number of chars of the body to read before looking for a place to split it
+   */
+  static void cleanBody(Reader in, Writer out, int windowSize) throws IOException {
+    new StreamingHtmlCleaner(in, out, windowSize).cleanBody(null);
+  }
+
+  private void cleanDocument() throws IOException {
+    HtmlBoundaries boundaries;
+    int nextScanLength = 0;
+    while (true) {
+      read();
+      // Scan again each time the window doubles, so a big head doesn't take quadratic time.
+      if (window.length() >= nextScanLength || isEndOfInput) {
+        boundaries = HtmlBoundaries.scan(window);
+        if (boundaries.hasBodyTag()) {
+          break;
+        }
+        if (isEndOfInput) {
+          out.write(HtmlCleaner.cleanHtmlInMemory(window.toString()));
+          return;
+        }
+        nextScanLength = window.length() * 2;
+      }
+    }
+    // Everything before the body is copied as it is.
+    int bodyStart = boundaries.bodyStart();
+    out.append(window, 0, bodyStart);
+    window.delete(0, bodyStart);
+    cleanBody(new HtmlBoundaries.BodyEndFinder(boundaries));
+  }
+
+  /**
+   * Cleans the body, which starts at the beginning of the window.
+   * @param bodyEndFinder - Finds where the body ends, or null if the whole input is the body
+   */
+  private void cleanBody(HtmlBoundaries.BodyEndFinder bodyEndFinder) throws IOException {
+    while (true) {
+      int knownBodyLength = bodyEndFinder != null ? bodyEndFinder.scan(window, isEndOfInput) : window.length();
+      if (bodyEndFinder != null ? bodyEndFinder.bodyEnd() >= 0 : isEndOfInput) {
+        break;
+      }
+      int written;
+      while (window.length() >= nextSplitLength && (written = writeSegment(knownBodyLength)) > 0) {
+        knownBodyLength -= written;
+        if (bodyEndFinder != null) {
+          bodyEndFinder.drop(written);
+        }
+      }
+      read();
+    }
+    int bodyEnd = bodyEndFinder != null ? bodyEndFinder.bodyEnd() : window.length();
+    String paragraphs = SinglePassCleaner.cleanParagraphs(window.substring(0, bodyEnd));
+    // A body with no paragraphs comes out as a blank line, but the rest of a body doesn't add one.
+    if (!hasWrittenParagraphs || !paragraphs.isBlank()) {
+      out.write(HtmlCleaner.fixLinksAndTables(paragraphs));
+    }
+    if (bodyEndFinder != null) {
+      if (!bodyEndFinder.hasBodyEndTag()) {
+        out.write("</body>");
+      }
+      out.append(window, bodyEnd, window.length());
+      window.setLength(0);
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+      }
+    }
+  }
+
+  /**
+   * Cleans and writes out the start of the window, if there's a place to split it that doesn't change the output.
+   * @param knownBodyLength - Length of the start of the window that is known to be part of the body
+   * @return Number of chars dealt with (and dropped from the window), or 0 if no place to split was found
+   */
+  private int writeSegment(int knownBodyLength) throws IOException {
+    int split = knownBodyLength;
+    for (int tries = 0; tries < MAX_SPLIT_TRIES; tries++) {
+      split = previousSplit(split, knownBodyLength);
+      if (split <= 0) {
+        break;
+      }
+      String paragraphs = SinglePassCleaner.cleanParagraphs(window.substring(0, split));
+      if (paragraphs.isBlank()) {
+        // Nothing to write, and the rest of the body comes out the same without it.
+        window.delete(0, split);
+        nextSplitLength = windowSize;
+        return split;
+      }
+      String cleaned = HtmlCleaner.fixLinksAndTablesBeforeSplit(paragraphs);
+      if (cleaned != null) {
+        out.write(cleaned);
+        hasWrittenParagraphs = true;
+        window.delete(0, split);
+        nextSplitLength = windowSize;
+        return split;
+      }
+    }
+    // Wait for the window to double, so that the time spent trying stays proportional to the length of the body.
+    nextSplitLength = Math.max(windowSize, window.length() * 2);
+    return 0;
+  }
+
+  /**
+   * Finds the last place before 'before' where the paragraph stage could split the body: just before a complete
+   * paragraph tag that follows another tag. (After a tag, every '<' before it has had its '>', so none of the
+   * tags before the split depend on the text after it.)
+   * @return Position of the tag, or -1 if there isn't one
+   */
+  private int previousSplit(int before, int knownBodyLength) {
+    for (int pos = before - 1; pos > 0; pos--) {
+      if (window.charAt(pos) == '<' && window.charAt(pos - 1) == '>' && SinglePassCleaner.isParagraphBreakTag(window, pos)) {
+        int tagEnd = window.indexOf(">", pos);
+        if (tagEnd >= 0 && tagEnd < knownBodyLength) {
+          return pos;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private void read() throws IOException {
+    int count = in.read(buffer);
+    if (count < 0) {
+      isEndOfInput = true;
+    } else {
+      window.append(buffer, 0, count);
+    }
+  }
+}
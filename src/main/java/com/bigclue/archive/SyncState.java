@@ -0,0 +1,136 @@
+package com.bigclue.archive;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.UIDFolder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static com.bigclue.archive.MailToHtml.log;
+import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+
+/**
+ * Remembers, per mailbox, the highest IMAP UID that has been archived, so that the next run only has to look at
+ *   messages that arrived since then instead of asking the server about every message in the mailbox.
+ * Checkpoints are kept under the account as well as the mailbox, since mailboxes of the same name in different
+ *   accounts (like everyone's "What's Up") can be archived into one journal. Checkpoints written before that were
+ *   kept under the mailbox alone, and are still used until the account's own checkpoint replaces them.
+ * The checkpoint is only valid while the mailbox's UIDVALIDITY stays the same; if the server ever renumbers the
+ *   mailbox, we fall back to a full scan (which skips directories that already exist).
+ * The state is kept in a small properties file in the journal root directory.
+ */
+class SyncState {
+  static final String STATE_FILE = ".archive-state.properties";
+
+  private SyncState() {
+    // Prevent instantiation
+  }
+
+  /**
+   * Where a previous run left off in one mailbox.
+   * @param uidValidity - UIDVALIDITY of the mailbox when the checkpoint was written
+   * @param lastUid - Highest UID that had been archived (or skipped as already archived)
+   */
+  record Checkpoint(long uidValidity, long lastUid) {}
+
+  /**
+   * Reads the checkpoint for the given account's mailbox, or returns null if there is none.
+   */
+  static Checkpoint load(String rootDir, String email, String mailbox) throws IOException {
+    Properties props = readState(rootDir);
+    Checkpoint checkpoint = checkpoint(props, key(email, mailbox));
+    return checkpoint != null ? checkpoint : checkpoint(props, mailbox);
+  }
+
+  /**
+   * Records the checkpoint for the given account's mailbox, keeping the checkpoints of any other mailboxes in the same
+   * journal. A checkpoint of the mailbox from before checkpoints were kept by account is removed, so that it isn't
+   * taken up by some other account's mailbox of the same name.
+   */
+  static synchronized void save(String rootDir, String email, String mailbox, Checkpoint checkpoint) throws IOException {
+    Properties props = readState(rootDir);
+    String key = key(email, mailbox);
+    props.setProperty(key + ".uidValidity", Long.toString(checkpoint.uidValidity()));
+    props.setProperty(key + ".lastUid", Long.toString(checkpoint.lastUid()));
+    props.remove(mailbox + ".uidValidity");
+    props.remove(mailbox + ".lastUid");
+    StringWriter writer = new StringWriter();
+    props.store(writer, "Archive checkpoints: email/mailbox.uidValidity and email/mailbox.lastUid");
+    Files.createDirectories(Paths.get(rootDir));
+    writeFileCarefully(Paths.get(rootDir, STATE_FILE), writer.toString());
+  }
+
+  private static String key(String email, String mailbox) {
+    return email + "/" + mailbox;
+  }
+
+  private static Checkpoint checkpoint(Properties props, String key) {
+    String uidValidity = props.getProperty(key + ".uidValidity");
+    String lastUid = props.getProperty(key + ".lastUid");
+    if (uidValidity == null || lastUid == null) {
+      return null;
+    }
+    return new Checkpoint(Long.parseLong(uidValidity), Long.parseLong(lastUid));
+  }
+
+  private static Properties readState(String rootDir) throws IOException {
+    Properties props = new Properties();
+    Path stateFile = Paths.get(rootDir, STATE_FILE);
+    if (Files.exists(stateFile)) {
+      try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+        props.load(reader);
+      }
+    }
+    return props;
+  }
+
+  /**
+   * Returns the UIDs of the messages that need to be looked at, in ascending order.
+   * With a usable checkpoint, that is only the messages above the checkpoint's UID; otherwise it is every message
+   *   in the folder, fetched in a single round trip.
+   * @param folder - Open folder; must be a UIDFolder (as IMAP folders are)
+   * @param checkpoint - Checkpoint from a previous run, or null to scan the whole folder
+   * @return UIDs to archive
+   */
+  static long[] uidsToArchive(Folder folder, Checkpoint checkpoint) throws MessagingException {
+    UIDFolder uidFolder = (UIDFolder) folder;
+    long uidValidity = uidFolder.getUIDValidity();
+    Message[] messages;
+    long lastUid = 0;
+    if (checkpoint != null && checkpoint.uidValidity() == uidValidity) {
+      lastUid = checkpoint.lastUid();
+      log("Looking for messages after UID " + lastUid);
+      messages = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+    } else {
+      if (checkpoint != null) {
+        log("UIDVALIDITY changed from " + checkpoint.uidValidity() + " to " + uidValidity + "; scanning the whole mailbox");
+      }
+      messages = folder.getMessages();
+      FetchProfile fetchProfile = new FetchProfile();
+      fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+      folder.fetch(messages, fetchProfile);
+    }
+    long[] uids = new long[messages.length];
+    int count = 0;
+    for (Message message : messages) {
+      long uid = uidFolder.getUID(message);
+      // A UID range of "n:*" always includes the last message, even when its UID is below n, so check again.
+      if (uid > lastUid) {
+        uids[count++] = uid;
+      }
+    }
+    uids = Arrays.copyOf(uids, count);
+    Arrays.sort(uids);
+    return uids;
+  }
+}
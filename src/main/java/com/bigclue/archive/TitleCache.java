@@ -0,0 +1,132 @@
+package com.bigclue.archive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static com.bigclue.archive.MailToHtml.writeFileCarefully;
+
+/**
+ * Remembers the title of each message's HTML file, along with the file's size and modification time, so that
+ *   rebuilding index.html only has to read the files that are new or have changed since the last build.
+ * The cache is a tab-separated file in the journal root directory, one line per message directory:
+ *   dirName, mtime (millis), size, escaped title.
+ */
+class TitleCache {
+  static final String CACHE_FILE = ".index-cache.tsv";
+
+  private record Entry(long mtime, long size, String escapedTitle) {}
+
+  private final Path cacheFile;
+  private final Map<String, Entry> previous;
+  private final Map<String, Entry> current = new TreeMap<>();
+  private int readCount = 0;
+
+  private TitleCache(Path cacheFile, Map<String, Entry> previous) {
+    this.cacheFile = cacheFile;
+    this.previous = previous;
+  }
+
+  /**
+   * Loads the cache from the given journal directory. A missing or unreadable cache just means every title is read.
+   */
+  static TitleCache load(Path inputDir) {
+    Path cacheFile = inputDir.resolve(CACHE_FILE);
+    Map<String, Entry> entries = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 4);
+        if (fields.length == 4) {
+          entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), unescape(fields[3])));
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // First build
+    } catch (IOException | NumberFormatException e) {
+      System.out.println("Ignoring unreadable title cache " + cacheFile + ": " + e);
+      entries.clear();
+    }
+    return new TitleCache(cacheFile, entries);
+  }
+
+  /**
+   * Returns the escaped title for the given message HTML file, using the cached title if the file's size and
+   * modification time haven't changed, and otherwise reading it with titleReader.
+   */
+  String escapedTitle(String dirName, Path htmlFile, Function<Path, String> titleReader) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(htmlFile, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return titleReader.apply(htmlFile);
+    }
+    long mtime = attributes.lastModifiedTime().toMillis();
+    long size = attributes.size();
+    Entry entry = previous.get(dirName);
+    if (entry == null || entry.mtime() != mtime || entry.size() != size) {
+      entry = new Entry(mtime, size, titleReader.apply(htmlFile));
+      readCount++;
+    }
+    current.put(dirName, entry);
+    return entry.escapedTitle();
+  }
+
+  /**
+   * Number of files whose title had to be read because they were new or changed.
+   */
+  int readCount() {
+    return readCount;
+  }
+
+  /**
+   * Writes the entries looked up since loading, dropping any directories that have gone away.
+   * Does nothing if nothing has changed.
+   */
+  void save() throws IOException {
+    if (readCount == 0 && current.keySet().equals(previous.keySet())) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Entry> e : current.entrySet()) {
+      Entry entry = e.getValue();
+      sb.append(e.getKey()).append('\t').append(entry.mtime()).append('\t').append(entry.size()).append('\t')
+          .append(escape(entry.escapedTitle())).append('\n');
+    }
+    writeFileCarefully(cacheFile, sb.toString());
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static String unescape(String s) {
+    if (s.indexOf('\\') < 0) {
+      return s;
+    }
+    StringBuilder sb = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        sb.append(switch (next) {
+          case 't' -> '\t';
+          case 'n' -> '\n';
+          case 'r' -> '\r';
+          default -> next;
+        });
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,39 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobStoreTest {
+  @TempDir
+  Path journalRoot;
+
+  @Test
+  void testSameContentIsStoredOnce() throws Exception {
+    Path dir1 = Files.createDirectories(journalRoot.resolve("2024-01-01_00-00-00_First"));
+    Path dir2 = Files.createDirectories(journalRoot.resolve("2024-01-02_00-00-00_Second"));
+    byte[] photo = "pretend this is a photo".getBytes(StandardCharsets.UTF_8);
+
+    Path blob1 = storeAndLink(dir1, "photo.jpg", photo);
+    Path blob2 = storeAndLink(dir2, "forwarded.jpg", photo);
+
+    assertThat(blob2).isEqualTo(blob1);
+    assertThat(Files.isSameFile(dir1.resolve("photo.jpg"), dir2.resolve("forwarded.jpg"))).isTrue();
+    assertThat(Files.readAllBytes(dir2.resolve("forwarded.jpg"))).isEqualTo(photo);
+    assertThat(dir1.resolve("tmp.photo.jpg")).doesNotExist();
+    assertThat(dir2.resolve("tmp.forwarded.jpg")).doesNotExist();
+  }
+
+  private Path storeAndLink(Path dir, String filename, byte[] content) throws Exception {
+    MailToHtml.StreamedFile tempFile = MailToHtml.streamToFile(new ByteArrayInputStream(content), dir.resolve("tmp." + filename));
+    Path blob = BlobStore.store(journalRoot, tempFile);
+    BlobStore.link(blob, dir.resolve(filename));
+    return blob;
+  }
+}
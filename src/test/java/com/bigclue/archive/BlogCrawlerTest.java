@@ -0,0 +1,147 @@
+package com.bigclue.archive;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BlogCrawlerTest {
+  @TempDir
+  Path outputDir;
+
+  private TestHttpServer server;
+  private String baseUrl;
+  private final Map<String, String> pages = new ConcurrentHashMap<>();
+  private final Map<String, Integer> requestCounts = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  void startServer() throws IOException {
+    // Every request waits a little, to give the other workers time to start theirs.
+    server = TestHttpServer.start(this::handle, path -> 20);
+    baseUrl = server.baseUrl();
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.close();
+  }
+
+  @Test
+  void testSavesEveryPostWithBoundedRequests() throws Exception {
+    StringBuilder mainPage = new StringBuilder("<html><body>");
+    for (int month = 1; month <= 6; month++) {
+      String monthPath = String.format("/2020/%02d/", month);
+      mainPage.append("<a class='post-count-link' href='").append(baseUrl).append(monthPath).append("'>").append(month).append("</a>");
+      StringBuilder monthPage = new StringBuilder("<html><body><ul class='posts'>");
+      for (int day = 1; day <= 4; day++) {
+        String postPath = monthPath + "post-" + day + ".html";
+        monthPage.append("<li><a href='").append(baseUrl).append(postPath).append("'>Post</a></li>");
+        pages.put(postPath, post(String.format("Wednesday, %s %d, 2020", monthName(month), day), "Day " + day + " of " + month));
+      }
+      pages.put(monthPath, monthPage.append("</ul></body></html>").toString());
+    }
+    // The same post listed under two months is only saved once.
+    pages.put("/2020/06/", pages.get("/2020/06/").replace("</ul>", "<li><a href='" + baseUrl + "/2020/05/post-1.html'>Again</a></li></ul>"));
+    pages.put("/", mainPage.append("</body></html>").toString());
+    Files.createDirectories(outputDir.resolve("2020-01-01_Day1Of1"));
+
+    int savedCount = BlogCrawler.crawl(baseUrl + "/", outputDir, 4, newCache());
+
+    assertThat(savedCount).isEqualTo(23);
+    assertThat(server.maxInFlight()).isBetween(2, 4);
+    try (Stream<Path> dirs = Files.list(outputDir)) {
+      assertThat(dirs.map(dir -> dir.getFileName().toString()).filter(name -> !name.equals(HttpCache.CACHE_DIR)))
+          .hasSize(24).noneMatch(name -> name.startsWith("tmp."));
+    }
+    assertThat(Files.readString(outputDir.resolve("2020-03-02_Day2Of3/2020-03-02_Day2Of3.html")))
+        .contains(">Day 2 of 3</a></h2>").contains("<p>Day 2 of 3 text</p>");
+  }
+
+  @Test
+  void testStopsOnFirstFailure() {
+    pages.put("/", "<html><body><a class='post-count-link' href='" + baseUrl + "/2020/01/'>1</a></body></html>");
+    pages.put("/2020/01/", "<html><body><ul class='posts'><li><a href='" + baseUrl + "/missing.html'>Gone</a></li></ul></body></html>");
+
+    assertThatThrownBy(() -> BlogCrawler.crawl(baseUrl + "/", outputDir, 4, newCache())).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void testRecrawlOnlyLooksAtChangedMonths() throws Exception {
+    StringBuilder mainPage = new StringBuilder("<html><body>");
+    for (int month = 1; month <= 3; month++) {
+      String monthPath = String.format("/2021/%02d/", month);
+      mainPage.append("<a class='post-count-link' href='").append(baseUrl).append(monthPath).append("'>").append(month).append("</a>");
+      pages.put(monthPath, "<html><body><ul class='posts'>" + postLink(month, 1) + postLink(month, 2) + "</ul></body></html>");
+    }
+    pages.put("/", mainPage.append("</body></html>").toString());
+    assertThat(BlogCrawler.crawl(baseUrl + "/", outputDir, 2, newCache())).isEqualTo(6);
+
+    // A new post in March: only the main page and March's listing are downloaded again, and only March's posts fetched.
+    pages.put("/2021/03/", pages.get("/2021/03/").replace("</ul>", postLink(3, 3) + "</ul>"));
+    requestCounts.clear();
+    HttpCache cache = newCache();
+    assertThat(BlogCrawler.crawl(baseUrl + "/", outputDir, 2, cache)).isEqualTo(1);
+
+    assertThat(cache.requestCount()).isEqualTo(4);
+    assertThat(cache.unchangedCount()).isEqualTo(3);
+    assertThat(requestCounts.keySet()).containsExactlyInAnyOrder("/", "/2021/01/", "/2021/02/", "/2021/03/",
+        "/2021/03/post-1.html", "/2021/03/post-2.html", "/2021/03/post-3.html");
+    assertThat(outputDir.resolve("2021-03-03_Day3Of3/2021-03-03_Day3Of3.html")).exists();
+
+    // Nothing new, so nothing but the listings is requested, and every listing is unchanged.
+    requestCounts.clear();
+    cache = newCache();
+    assertThat(BlogCrawler.crawl(baseUrl + "/", outputDir, 2, cache)).isZero();
+    assertThat(cache.unchangedCount()).isEqualTo(4);
+    assertThat(requestCounts.keySet()).containsExactlyInAnyOrder("/", "/2021/01/", "/2021/02/", "/2021/03/");
+  }
+
+  private HttpCache newCache() {
+    return new HttpCache(outputDir.resolve(HttpCache.CACHE_DIR));
+  }
+
+  private String postLink(int month, int day) {
+    String postPath = String.format("/2021/%02d/post-%d.html", month, day);
+    pages.put(postPath, post(String.format("Friday, %s %d, 2021", monthName(month), day), "Day " + day + " of " + month));
+    return "<li><a href='" + baseUrl + postPath + "'>Post</a></li>";
+  }
+
+  private static String post(String date, String title) {
+    return "<html><body><h2 class='date-header'>" + date + "</h2><h3 class='post-title entry-title'>" + title + "</h3>"
+        + "<div class='post-body entry-content'><div><span>" + title + " text</span></div></div></body></html>";
+  }
+
+  private static String monthName(int month) {
+    return java.time.Month.of(month).getDisplayName(java.time.format.TextStyle.FULL, java.util.Locale.US);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    requestCounts.merge(path, 1, Integer::sum);
+    String page = pages.get(path);
+    String etag = page != null ? "\"" + Integer.toHexString(page.hashCode()) + "\"" : null;
+    if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+    byte[] body = (page != null ? page : "Not found").getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+    if (etag != null) {
+      exchange.getResponseHeaders().set("ETag", etag);
+    }
+    exchange.sendResponseHeaders(page != null ? 200 : 404, body.length);
+    exchange.getResponseBody().write(body);
+  }
+}
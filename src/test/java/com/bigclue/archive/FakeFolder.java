@@ -0,0 +1,265 @@
+package com.bigclue.archive;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.FolderClosedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.URLName;
+import jakarta.mail.internet.MimeMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * An open mailbox in memory, standing in for an IMAP folder in tests. Each one is a connection of its own, counted in
+ *   the Connections of its account.
+ */
+class FakeFolder extends Folder implements UIDFolder {
+  static final Session SESSION = Session.getInstance(new Properties());
+
+  private final String name;
+  private final long uidValidity;
+  private final List<FakeMessage> messages;
+  private final Connections connections;
+  private boolean isOpen = true;
+
+  /** What has been done with the connections to one account. */
+  static class Connections {
+    final AtomicInteger openCount = new AtomicInteger();
+    final AtomicInteger maxOpenCount = new AtomicInteger();
+    final AtomicInteger openedCount = new AtomicInteger();
+    /** Each batch of messages fetched by UID, as "mailbox:uid,uid,..." */
+    final List<String> fetches = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  FakeFolder(String name, long uidValidity, List<FakeMessage> messages, Connections connections) {
+    super(new FakeStore(connections));
+    this.name = name;
+    this.uidValidity = uidValidity;
+    this.messages = messages;
+    this.connections = connections;
+    connections.openedCount.incrementAndGet();
+    connections.maxOpenCount.accumulateAndGet(connections.openCount.incrementAndGet(), Math::max);
+  }
+
+  /**
+   * Returns messages with UIDs 1 to count, each a day apart, with subjects like "What's up: prefix 3".
+   */
+  static List<FakeMessage> messages(String prefix, int count) throws MessagingException {
+    List<FakeMessage> messages = new ArrayList<>();
+    for (int i = 1; i <= count; i++) {
+      messages.add(new FakeMessage(i, "What's up: " + prefix + " " + i, new Date(1_600_000_000_000L + i * 86_400_000L), 0));
+    }
+    return messages;
+  }
+
+  /** A message with a UID and received date, whose content can't be read the first few times it's asked for. */
+  static class FakeMessage extends MimeMessage {
+    final long uid;
+    private final Date receivedDate;
+    private final AtomicInteger failuresLeft;
+
+    FakeMessage(long uid, String subject, Date receivedDate, int failures) throws MessagingException {
+      super(SESSION);
+      this.uid = uid;
+      this.receivedDate = receivedDate;
+      this.failuresLeft = new AtomicInteger(failures);
+      setSubject(subject);
+      setText("Message " + uid);
+      saveChanges();
+    }
+
+    @Override
+    public Date getReceivedDate() {
+      return receivedDate;
+    }
+
+    @Override
+    public Object getContent() throws IOException, MessagingException {
+      if (failuresLeft.getAndDecrement() > 0) {
+        throw new FolderClosedException(null, "Connection dropped");
+      }
+      return super.getContent();
+    }
+  }
+
+  @Override
+  public Message[] getMessagesByUID(long[] uids) {
+    connections.fetches.add(name + ":" + Arrays.stream(uids).mapToObj(Long::toString).collect(Collectors.joining(",")));
+    Message[] found = new Message[uids.length];
+    for (int i = 0; i < uids.length; i++) {
+      found[i] = getMessageByUID(uids[i]);
+    }
+    return found;
+  }
+
+  @Override
+  public Message[] getMessagesByUID(long start, long end) {
+    return messages.stream().filter(m -> m.uid >= start && (end == LASTUID || m.uid <= end)).toArray(Message[]::new);
+  }
+
+  @Override
+  public Message getMessageByUID(long uid) {
+    return messages.stream().filter(m -> m.uid == uid).findFirst().orElse(null);
+  }
+
+  @Override
+  public long getUID(Message message) {
+    return ((FakeMessage) message).uid;
+  }
+
+  @Override
+  public long getUIDValidity() {
+    return uidValidity;
+  }
+
+  @Override
+  public long getUIDNext() {
+    return messages.isEmpty() ? 1 : messages.get(messages.size() - 1).uid + 1;
+  }
+
+  @Override
+  public int getMessageCount() {
+    return messages.size();
+  }
+
+  @Override
+  public Message getMessage(int msgnum) {
+    return messages.get(msgnum - 1);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  @Override
+  public void close(boolean expunge) {
+    isOpen = false;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getFullName() {
+    return name;
+  }
+
+  @Override
+  public Folder getParent() {
+    return null;
+  }
+
+  @Override
+  public boolean exists() {
+    return true;
+  }
+
+  @Override
+  public Folder[] list(String pattern) {
+    return new Folder[0];
+  }
+
+  @Override
+  public char getSeparator() {
+    return '/';
+  }
+
+  @Override
+  public int getType() {
+    return HOLDS_MESSAGES;
+  }
+
+  @Override
+  public boolean create(int type) {
+    return false;
+  }
+
+  @Override
+  public boolean hasNewMessages() {
+    return false;
+  }
+
+  @Override
+  public Folder getFolder(String name) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean delete(boolean recurse) {
+    return false;
+  }
+
+  @Override
+  public boolean renameTo(Folder f) {
+    return false;
+  }
+
+  @Override
+  public void open(int mode) {
+    isOpen = true;
+  }
+
+  @Override
+  public Flags getPermanentFlags() {
+    return new Flags();
+  }
+
+  @Override
+  public void appendMessages(Message[] msgs) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message[] expunge() {
+    return new Message[0];
+  }
+
+  /** The connection a FakeFolder belongs to. Closing it counts the connection as closed. */
+  private static class FakeStore extends Store {
+    private final Connections connections;
+    private boolean isClosed = false;
+
+    FakeStore(Connections connections) {
+      super(SESSION, new URLName("fake://localhost"));
+      this.connections = connections;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!isClosed) {
+        isClosed = true;
+        connections.openCount.decrementAndGet();
+      }
+    }
+
+    @Override
+    public Folder getDefaultFolder() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Folder getFolder(String name) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Folder getFolder(URLName url) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
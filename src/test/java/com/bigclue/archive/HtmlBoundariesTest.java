@@ -0,0 +1,40 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HtmlBoundariesTest {
+  @Test
+  void testFindsHeadAndBody() {
+    String html = "<!DOCTYPE html>\n<HTML lang=en><Head><title>Hi</title><!-- <body> --></HEAD>\n"
+        + "<BODY class='x'>\n<p>Hello</p>\n</Body></html>\n";
+    HtmlBoundaries boundaries = HtmlBoundaries.scan(html);
+    assertThat(boundaries.head()).hasToString("<title>Hi</title><!-- <body> -->");
+    assertThat(boundaries.beforeBody()).hasToString("\n");
+    assertThat(boundaries.body()).hasToString("\n<p>Hello</p>\n");
+    assertThat(HtmlBoundaries.trim(boundaries.body())).hasToString("<p>Hello</p>");
+    assertThat(boundaries.replaceBody("<p>Bye</p>"))
+        .isEqualTo(html.replace("\n<p>Hello</p>\n", "<p>Bye</p>"));
+  }
+
+  @Test
+  void testAddsMissingBody() {
+    HtmlBoundaries boundaries = HtmlBoundaries.scan("<html><head><title>Hi</title></head><p>Hello</p></html>");
+    assertThat(boundaries.body()).hasToString("<p>Hello</p>");
+    assertThat(boundaries.replaceBody("<p>Bye</p>"))
+        .isEqualTo("<html><head><title>Hi</title></head><body><p>Bye</p></body></html>");
+
+    assertThat(HtmlBoundaries.scan("Just <b>text</b>").body()).hasToString("Just <b>text</b>");
+    assertThat(HtmlCleaner.cleanHtml("<div>No body here</div>")).isEqualTo("<body><p>No body here</p>\n</body>");
+  }
+
+  @Test
+  void testRemovesDocumentTagsAfterBody() {
+    HtmlBoundaries boundaries = HtmlBoundaries.scan("<html><body><p>Main</p></body></html>\n<p>Footer</p>");
+    assertThat(boundaries.afterBody()).hasToString("</body></html>\n<p>Footer</p>");
+    assertThat(HtmlBoundaries.withoutDocumentTags(boundaries.afterBody())).isEqualTo("\n<p>Footer</p>");
+    assertThat(HtmlBoundaries.withoutDocumentTags("<HTML><head><title>Two</title></head><Body class=x><p>B</p><!-- <body> --></body></html>"))
+        .isEqualTo("<p>B</p><!-- <body> -->");
+  }
+}
@@ -0,0 +1,115 @@
+package com.bigclue.archive;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageDownloaderTest {
+  @TempDir
+  Path dir;
+
+  private TestHttpServer server;
+  private String baseUrl;
+  private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  void startServer() throws IOException {
+    server = TestHttpServer.start(this::handle, path -> path.startsWith("/slow/") ? 30 : 0);
+    baseUrl = server.baseUrl();
+  }
+
+  @AfterEach
+  void stopServer() {
+    server.close();
+  }
+
+  @Test
+  void testNamesRetriesAndSkips() throws Exception {
+    Files.writeString(dir.resolve("existing.jpg"), "old");
+    try (ImageDownloader downloader = new ImageDownloader(4, 4, Duration.ofMillis(1))) {
+      ImageDownloader.PostDownloads downloads = downloader.forPost();
+      Future<String> named = downloads.download(baseUrl + "/img/named.jpg", dir);
+      Future<String> again = downloads.download(baseUrl + "/img/named.jpg", dir);
+      Future<String> disposition = downloads.download(baseUrl + "/img/disposition", dir);
+      Future<String> typed = downloads.download(baseUrl + "/img/typed", dir);
+      Future<String> flaky = downloads.download(baseUrl + "/img/flaky.jpg", dir);
+      Future<String> missing = downloads.download(baseUrl + "/img/missing.jpg", dir);
+      Future<String> existing = downloads.download(baseUrl + "/img/existing.jpg", dir);
+
+      assertThat(named.get()).isEqualTo("named.jpg");
+      assertThat(again).isSameAs(named);
+      assertThat(disposition.get()).isEqualTo("beach.png");
+      assertThat(typed.get()).matches("image\\d+\\.gif");
+      assertThat(flaky.get()).isEqualTo("flaky.jpg");
+      assertThat(missing.get()).isEqualTo("missing.jpg");
+      assertThat(existing.get()).isEqualTo("existing.jpg");
+
+      assertThat(dir.resolve("named.jpg")).hasContent("/img/named.jpg");
+      assertThat(dir.resolve("beach.png")).hasContent("/img/disposition");
+      assertThat(dir.resolve(typed.get())).hasContent("/img/typed");
+      assertThat(dir.resolve("flaky.jpg")).hasContent("/img/flaky.jpg");
+      assertThat(dir.resolve("missing.jpg")).doesNotExist();
+      assertThat(dir.resolve("existing.jpg")).hasContent("old");
+      try (var files = Files.list(dir)) {
+        assertThat(files.map(file -> file.getFileName().toString())).noneMatch(name -> name.startsWith("tmp."));
+      }
+      // One GET per image (no HEAD), three tries for the flaky one, one for the 404, and none for the existing file.
+      assertThat(requestCounts.get("/img/named.jpg")).hasValue(1);
+      assertThat(requestCounts.get("/img/disposition")).hasValue(1);
+      assertThat(requestCounts.get("/img/flaky.jpg")).hasValue(3);
+      assertThat(requestCounts.get("/img/missing.jpg")).hasValue(1);
+      assertThat(requestCounts).doesNotContainKey("/img/existing.jpg");
+      assertThat(downloader.requestCount()).isEqualTo(7);
+    }
+  }
+
+  @Test
+  void testLimitsDownloadsPerPost() throws Exception {
+    try (ImageDownloader downloader = new ImageDownloader(8, 2, Duration.ofMillis(1))) {
+      ImageDownloader.PostDownloads downloads = downloader.forPost();
+      List<Future<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(downloads.download(baseUrl + "/slow/photo" + i + ".jpg", dir));
+      }
+      for (Future<String> future : futures) {
+        future.get();
+      }
+      assertThat(server.maxInFlight()).isBetween(1, 2);
+      assertThat(dir.resolve("photo7.jpg")).hasContent("/slow/photo7.jpg");
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    int count = requestCounts.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+    int status = 200;
+    if (path.endsWith("/missing.jpg")) {
+      status = 404;
+    } else if (path.endsWith("/flaky.jpg") && count < 3) {
+      status = 503;
+    } else if (path.endsWith("/disposition")) {
+      exchange.getResponseHeaders().set("Content-Disposition", "inline; filename=\"beach.png\"");
+    } else if (path.endsWith("/typed")) {
+      exchange.getResponseHeaders().set("Content-Type", "image/gif");
+    }
+    byte[] body = path.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+  }
+}
@@ -0,0 +1,87 @@
+package com.bigclue.archive;
+
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageResizerTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void testResizesToFitBounds() throws Exception {
+    Path photo = writeImage("photo.jpg", "jpeg", 2400, 1200, BufferedImage.TYPE_INT_RGB);
+    Path logo = writeImage("logo.png", "png", 300, 600, BufferedImage.TYPE_INT_ARGB);
+    Path icon = writeImage("icon.png", "png", 40, 40, BufferedImage.TYPE_INT_ARGB);
+    MemoryBudget budget = new MemoryBudget(64L * 1024 * 1024);
+    try (ImageResizer resizer = new ImageResizer(2, budget)) {
+      resizer.resize(photo, dir.resolve("small-photo.jpg"), new ImageResizer.Bounds(320, 320)).get();
+      resizer.resize(logo, dir.resolve("small-logo.png"), new ImageResizer.Bounds(400, 300)).get();
+      resizer.resize(icon, dir.resolve("small-icon.png"), ImageResizer.Bounds.DEFAULT).get();
+    }
+
+    BufferedImage smallPhoto = ImageIO.read(dir.resolve("small-photo.jpg").toFile());
+    assertThat(smallPhoto.getWidth()).isEqualTo(320);
+    assertThat(smallPhoto.getHeight()).isEqualTo(160);
+    // Still red in the middle, after subsampling and scaling.
+    assertThat(new Color(smallPhoto.getRGB(160, 80)).getRed()).isGreaterThan(200);
+    BufferedImage smallLogo = ImageIO.read(dir.resolve("small-logo.png").toFile());
+    assertThat(smallLogo.getWidth()).isEqualTo(150);
+    assertThat(smallLogo.getHeight()).isEqualTo(300);
+    assertThat(smallLogo.getColorModel().hasAlpha()).isTrue();
+    // Already small enough, so copied as it is.
+    assertThat(Files.mismatch(icon, dir.resolve("small-icon.png"))).isEqualTo(-1);
+    assertThat(budget.available()).isEqualTo(64L * 1024 * 1024);
+    try (var files = Files.list(dir)) {
+      assertThat(files.map(file -> file.getFileName().toString())).noneMatch(name -> name.startsWith("tmp."));
+    }
+  }
+
+  @Test
+  void testRejectsUnreadableImage() throws Exception {
+    Path notAnImage = Files.writeString(dir.resolve("broken.jpg"), "<html>Not found</html>");
+    assertThatThrownBy(() -> ImageResizer.resizeImage(notAnImage, dir.resolve("small.jpg"), ImageResizer.Bounds.DEFAULT,
+        new MemoryBudget(1024 * 1024))).isInstanceOf(IOException.class);
+    assertThat(dir.resolve("small.jpg")).doesNotExist();
+  }
+
+  @Test
+  void testFindsSmallImageBounds() {
+    assertThat(ImageResizer.boundsFromUrl("https://blogger.googleusercontent.com/img/b/R29v/AVvXsEi/s320/IMG_1234.JPG"))
+        .isEqualTo(new ImageResizer.Bounds(320, 320));
+    assertThat(ImageResizer.boundsFromUrl("https://blogger.googleusercontent.com/img/b/R29v/AVvXsEi/w400-h300/IMG_1234.JPG"))
+        .isEqualTo(new ImageResizer.Bounds(400, 300));
+    assertThat(ImageResizer.boundsFromUrl("https://blogger.googleusercontent.com/img/b/R29v/AVvXsEi/s1600-rw/IMG.JPG"))
+        .isEqualTo(new ImageResizer.Bounds(1600, 1600));
+    assertThat(ImageResizer.boundsFromUrl("https://blogger.googleusercontent.com/img/a/AVvXsEh=w640-h480"))
+        .isEqualTo(new ImageResizer.Bounds(640, 480));
+    assertThat(ImageResizer.boundsFromUrl("https://blogger.googleusercontent.com/img/b/R29v/AVvXsEi/IMG_1234.JPG")).isNull();
+
+    assertThat(BlogToHtml.smallImageBounds(Jsoup.parse("<img src='https://example.com/x.jpg' width='200' height='150'>")
+        .selectFirst("img"))).isEqualTo(new ImageResizer.Bounds(200, 150));
+    assertThat(BlogToHtml.smallImageBounds(Jsoup.parse("<img src='https://example.com/x.jpg'>").selectFirst("img")))
+        .isEqualTo(ImageResizer.Bounds.DEFAULT);
+  }
+
+  private Path writeImage(String name, String format, int width, int height, int type) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(Color.RED);
+    graphics.fillRect(0, 0, width, height);
+    graphics.dispose();
+    Path file = dir.resolve(name);
+    ImageIO.write(image, format, file.toFile());
+    return file;
+  }
+}
@@ -0,0 +1,53 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InlineImagesTest {
+  @Test
+  void testImageBeforeItsHtmlPart() {
+    InlineImages inlineImages = new InlineImages();
+    StringBuilder html = new StringBuilder("<body>\n");
+    inlineImages.add(new String[] {"<photo1@example.com>"}, "photo1.jpg", html.length());
+    html.append("<p>Look: <img width='640' src='cid:photo1@example.com'> and <img src=\"cid:photo2\" alt=\">\"></p>");
+    inlineImages.add(new String[] {"photo2"}, "photo2.jpg", html.length());
+    html.append("</body>");
+
+    assertThat(inlineImages.applyTo(html))
+        .isEqualTo("<body>\n<p>Look: <img src=\"photo1.jpg\"> and <img src=\"photo2.jpg\"></p></body>");
+  }
+
+  @Test
+  void testUnreferencedImagesStayInPlace() {
+    InlineImages inlineImages = new InlineImages();
+    StringBuilder html = new StringBuilder("<p>First</p>");
+    inlineImages.add(null, "a.jpg", html.length());
+    html.append("<p>Second</p>");
+    inlineImages.add(new String[] {"<unused>"}, "b.jpg", html.length());
+
+    assertThat(inlineImages.applyTo(html))
+        .isEqualTo("<p>First</p>\n<p><img src=\"a.jpg\"></p>\n<p>Second</p>\n<p><img src=\"b.jpg\"></p>\n");
+  }
+
+  @Test
+  void testFileVersionMatchesInMemoryVersion(@TempDir Path tempDir) throws Exception {
+    InlineImages inlineImages = new InlineImages();
+    StringBuilder html = new StringBuilder("<body>\n");
+    inlineImages.add(new String[] {"<photo1@example.com>"}, "photo1.jpg", html.length());
+    html.append("<p>Jos\u00e9 \ud83d\ude00 <img width='640' src='cid:photo1@example.com'> <img src=\"cid:photo2\" alt=\">\">");
+    inlineImages.add(new String[] {"photo2"}, "photo2.jpg", html.length());
+    inlineImages.add(null, "photo3.jpg", html.length());
+    html.append("<<img src='cid:missing'><img src='cid:photo2'></p>".repeat(2000)).append("<img src='cid:photo1@exa");
+    Path htmlFile = Files.writeString(tempDir.resolve("parts.html"), html);
+
+    StringWriter out = new StringWriter();
+    inlineImages.applyTo(htmlFile, out);
+    assertThat(out.toString()).isEqualTo(inlineImages.applyTo(html));
+  }
+}
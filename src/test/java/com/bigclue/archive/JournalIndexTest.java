@@ -0,0 +1,82 @@
+package com.bigclue.archive;
+
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JournalIndexTest {
+  @TempDir
+  Path journalDir;
+
+  @Test
+  void testPhraseAndDateQueries() throws Exception {
+    addMessage("2019-05-01_10-00-00_Spring", "Spring", "<p>We planted tulips in the garden.</p><p>The garden was muddy.</p>");
+    addMessage("2020-07-04_10-00-00_Fireworks", "Fireworks", "<p>In the garden we planted nothing; tulips were sold out.</p>");
+    addMessage("2021-01-01_10-00-00_NewYear", "New Year", "<p>Snow in the garden. Crème brûlée for dessert.</p>");
+    Path indexFile = journalDir.resolve(JournalIndex.INDEX_FILE);
+    assertThat(JournalIndex.build(MailIndexer.getHtmlFiles(journalDir.toString()), indexFile)).isEqualTo(3);
+
+    try (JournalIndex index = JournalIndex.open(indexFile)) {
+      assertThat(index.docCount()).isEqualTo(3);
+      assertThat(index.dirName(1)).isEqualTo("2020-07-04_10-00-00_Fireworks");
+      assertThat(index.date(1)).isEqualTo(20200704);
+      assertThat(search(index, "tulips")).containsExactly("2019-05-01_10-00-00_Spring", "2020-07-04_10-00-00_Fireworks");
+      assertThat(search(index, "\"planted tulips\"")).containsExactly("2019-05-01_10-00-00_Spring");
+      assertThat(search(index, "\"in the garden\" planted")).containsExactly("2019-05-01_10-00-00_Spring", "2020-07-04_10-00-00_Fireworks");
+      assertThat(search(index, "\"in the garden\" after:2020-01-01")).containsExactly("2020-07-04_10-00-00_Fireworks", "2021-01-01_10-00-00_NewYear");
+      assertThat(search(index, "garden before:2020-07-04")).containsExactly("2019-05-01_10-00-00_Spring", "2020-07-04_10-00-00_Fireworks");
+      assertThat(search(index, "after:2020-07-05")).containsExactly("2021-01-01_10-00-00_NewYear");
+      assertThat(search(index, "\"CREME Brulee\"")).containsExactly("2021-01-01_10-00-00_NewYear");
+      assertThat(search(index, "\"garden planted\"")).isEmpty();
+      assertThat(search(index, "zebra garden")).isEmpty();
+    }
+    assertThatThrownBy(() -> JournalIndex.Query.parse("after:2020")).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void testSameAsScanningEveryMessage() throws Exception {
+    String[] vocabulary = {"sun", "rain", "beach", "hike", "día", "café", "x", "boat", "lake", "snow"};
+    Random random = new Random(42);
+    for (int i = 0; i < 60; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = random.nextInt(200); j >= 0; j--) {
+        text.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+      }
+      addMessage(String.format("%d-%02d-%02d_10-00-00_Day", 2000 + i / 12, i % 12 + 1, i % 28 + 1), "Day", text.toString());
+    }
+    Path indexFile = journalDir.resolve(JournalIndex.INDEX_FILE);
+    List<Path> htmlFiles = MailIndexer.getHtmlFiles(journalDir.toString());
+    JournalIndex.build(htmlFiles, indexFile);
+    try (JournalIndex index = JournalIndex.open(indexFile)) {
+      for (int q = 0; q < 200; q++) {
+        List<String> phrase = List.of(vocabulary[random.nextInt(vocabulary.length)], vocabulary[random.nextInt(vocabulary.length)]);
+        List<String> expected = new ArrayList<>();
+        for (Path htmlFile : htmlFiles) {
+          if (Collections.indexOfSubList(SearchIndex.words(Jsoup.parse(htmlFile.toFile(), "UTF-8").text()), SearchIndex.words(String.join(" ", phrase))) >= 0) {
+            expected.add(htmlFile.getParent().getFileName().toString());
+          }
+        }
+        assertThat(search(index, "\"" + String.join(" ", phrase) + "\"")).as(phrase.toString()).isEqualTo(expected);
+      }
+    }
+  }
+
+  private static List<String> search(JournalIndex index, String query) {
+    return index.search(JournalIndex.Query.parse(query));
+  }
+
+  private void addMessage(String dirName, String title, String body) throws Exception {
+    Path dir = Files.createDirectories(journalDir.resolve(dirName));
+    Files.writeString(dir.resolve(dirName + ".html"), "<html><head><title>" + title + "</title></head><body>" + body + "</body></html>");
+  }
+}
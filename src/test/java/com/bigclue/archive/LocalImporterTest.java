@@ -0,0 +1,194 @@
+package com.bigclue.archive;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LocalImporterTest {
+  private static final Session SESSION = Session.getInstance(new Properties());
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testMboxSameAsImap() throws Exception {
+    List<byte[]> messages = messages();
+    Path imapDir = archiveAsFromImap(messages);
+    Path mboxFile = dir.resolve("takeout.mbox");
+    StringBuilder mbox = new StringBuilder();
+    SimpleDateFormat fromLineFormat = new SimpleDateFormat("EEE MMM dd HH:mm:ss Z yyyy", Locale.US);
+    fromLineFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    for (int i = 0; i < messages.size(); i++) {
+      String text = new String(messages.get(i), StandardCharsets.ISO_8859_1).replace("\r\n", "\n").replaceAll("(?m)^(>*From )", ">$1");
+      mbox.append("From 16000000").append(i).append("@xxx ").append(fromLineFormat.format(date(i))).append('\n').append(text).append('\n');
+    }
+    Files.writeString(mboxFile, mbox, StandardCharsets.ISO_8859_1);
+
+    Path mboxDir = Files.createDirectories(dir.resolve("mbox"));
+    assertThat(LocalImporter.importMail(mboxFile, mboxDir.toString(), "What's Up", true, 3)).isEqualTo(3);
+    assertThat(files(mboxDir)).isEqualTo(files(imapDir)).hasSizeGreaterThan(6);
+    assertThat(LocalImporter.importMail(mboxFile, mboxDir.toString(), "What's Up", true, 3)).isZero();
+
+    // A window that only fits a message or two (and the next "From " line) at a time splits the file the same way.
+    List<Long> offsets = new ArrayList<>();
+    LocalImporter.splitMbox(mboxFile, Integer.MAX_VALUE, (offset, fromLineDate, content) -> offsets.add(offset));
+    List<Long> windowedOffsets = new ArrayList<>();
+    int largest = 0;
+    for (int i = 0; i < offsets.size(); i++) {
+      largest = (int) Math.max(largest, (i + 1 < offsets.size() ? offsets.get(i + 1) : Files.size(mboxFile)) - offsets.get(i));
+    }
+    LocalImporter.splitMbox(mboxFile, largest + 100, (offset, fromLineDate, content) -> windowedOffsets.add(offset));
+    assertThat(offsets).hasSize(4).isEqualTo(windowedOffsets);
+    int tooSmall = largest - 10;
+    assertThatThrownBy(() -> LocalImporter.splitMbox(mboxFile, tooSmall, (offset, fromLineDate, content) -> {}))
+        .hasMessageContaining("bigger than");
+  }
+
+  @Test
+  void testMaildirSameAsImap() throws Exception {
+    List<byte[]> messages = messages();
+    Path imapDir = archiveAsFromImap(messages);
+    Path maildir = dir.resolve("Maildir");
+    Files.createDirectories(maildir.resolve("new"));
+    Files.createDirectories(maildir.resolve("cur"));
+    for (int i = 0; i < messages.size(); i++) {
+      Path file = maildir.resolve(i % 2 == 0 ? "cur" : "new").resolve(date(i).getTime() / 1000 + ".M" + i + ".host:2,S");
+      Files.writeString(file, new String(messages.get(i), StandardCharsets.ISO_8859_1).replace("\r\n", "\n"), StandardCharsets.ISO_8859_1);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(date(i).getTime()));
+    }
+    Path maildirDir = Files.createDirectories(dir.resolve("maildir"));
+    assertThat(LocalImporter.importMail(maildir, maildirDir.toString(), "What's Up", true, 2)).isEqualTo(3);
+    assertThat(files(maildirDir)).isEqualTo(files(imapDir));
+  }
+
+  @Test
+  void testUnescapeFromLines() {
+    assertThat(unescape("Hi\n>From here\n>>From there\n> From nowhere\nFrom")).isEqualTo("Hi\nFrom here\n>From there\n> From nowhere\nFrom");
+    ByteBuffer plain = ByteBuffer.wrap("No escapes\n".getBytes(StandardCharsets.US_ASCII));
+    assertThat(LocalImporter.unescapeFromLines(plain)).isSameAs(plain);
+  }
+
+  @Test
+  void testReadsWithCrlfs() throws Exception {
+    LocalImporter.CrlfInputStream in = new LocalImporter.CrlfInputStream(ByteBuffer.wrap("\nA: b\r\n\nbody\nend".getBytes(StandardCharsets.US_ASCII)));
+    assertThat(in.available()).isEqualTo(19);
+    assertThat(in.read()).isEqualTo('\r');
+    in.mark(100);
+    assertThat(new String(in.readNBytes(7), StandardCharsets.US_ASCII)).isEqualTo("\nA: b\r\n");
+    assertThat(in.getPosition()).isEqualTo(8);
+    assertThat(new String(in.newStream(in.getPosition(), -1).readAllBytes(), StandardCharsets.US_ASCII)).isEqualTo("\r\nbody\r\nend");
+    assertThat(new String(in.newStream(10, 16).readAllBytes(), StandardCharsets.US_ASCII)).isEqualTo("body\r\n");
+    in.reset();
+    assertThat(new String(in.readAllBytes(), StandardCharsets.US_ASCII)).isEqualTo("\nA: b\r\n\r\nbody\r\nend");
+    assertThat(in.read()).isEqualTo(-1);
+  }
+
+  private static String unescape(String s) {
+    ByteBuffer unescaped = LocalImporter.unescapeFromLines(ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)));
+    byte[] bytes = new byte[unescaped.remaining()];
+    unescaped.get(bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  /** Archives the messages the way they'd come from the mail server: with CRLFs, and their received dates. */
+  private Path archiveAsFromImap(List<byte[]> messages) throws Exception {
+    Path imapDir = Files.createDirectories(dir.resolve("imap"));
+    Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+    for (int i = 0; i < messages.size(); i++) {
+      Date receivedDate = date(i);
+      MimeMessage message = new MimeMessage(SESSION, new ByteArrayInputStream(messages.get(i))) {
+        @Override
+        public Date getReceivedDate() {
+          return receivedDate;
+        }
+      };
+      if (LocalImporter.hasLabel(message, "What's Up")) {
+        MailToHtml.archiveMessage(message, imapDir.toString(), true, claimedDirs);
+      }
+    }
+    return imapDir;
+  }
+
+  private static Date date(int i) {
+    return new Date(1_600_000_000_000L + i * 86_400_000L);
+  }
+
+  private static List<byte[]> messages() throws Exception {
+    List<byte[]> messages = new ArrayList<>();
+    MimeMessage text = new MimeMessage(SESSION);
+    text.setSubject("What's up: Beach day");
+    text.setText("We went to the beach.\n\nFrom the beach we could see *whales*.\n>From the pier, too.\nThe end.", "UTF-8");
+    text.setHeader("X-Gmail-Labels", "Opened,\"What's Up\",Category Personal");
+    messages.add(bytes(text));
+
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setText("<html><body><div>Look at this</div>\n<div>and this:</div>\n<img src=\"cid:photo@x\"></body></html>", "UTF-8", "html");
+    MimeBodyPart imagePart = new MimeBodyPart();
+    imagePart.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3, 'F', 'r', 'o', 'm', ' ', '\n'}, "image/jpeg")));
+    imagePart.setFileName("photo.jpg");
+    imagePart.setContentID("<photo@x>");
+    MimeMessage photos = new MimeMessage(SESSION);
+    photos.setSubject("What's up: Whale photos");
+    photos.setContent(new MimeMultipart("related", htmlPart, imagePart));
+    messages.add(bytes(photos));
+
+    MimeMessage other = new MimeMessage(SESSION);
+    other.setSubject("Your bill is ready");
+    other.setText("Pay up.");
+    other.setHeader("X-Gmail-Labels", "Inbox,Bills");
+    messages.add(bytes(other));
+
+    MimeMessage unlabeled = new MimeMessage(SESSION);
+    unlabeled.setSubject("Whats up - Café night");
+    unlabeled.setText("Crème brûlée.", "UTF-8", "plain");
+    messages.add(bytes(unlabeled));
+    return messages;
+  }
+
+  private static byte[] bytes(MimeMessage message) throws Exception {
+    message.saveChanges();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    message.writeTo(out);
+    // Like a message from an IMAP server, with CRLFs throughout
+    return out.toString(StandardCharsets.ISO_8859_1).replaceAll("\r?\n", "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /** Returns the content of every file under root, by path. */
+  private static Map<String, String> files(Path root) throws Exception {
+    Map<String, String> files = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : paths.filter(Files::isRegularFile).toList()) {
+        files.put(root.relativize(path).toString(), new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1));
+      }
+    }
+    return files;
+  }
+}
@@ -0,0 +1,91 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailIndexerTest {
+  @TempDir
+  Path journalDir;
+
+  @Test
+  void testAddToIndexMatchesFullRebuild() throws Exception {
+    addMessage("2019-05-01_10-00-00_Spring", "Spring");
+    addMessage("2021-01-01_10-00-00_NewYear", "New Year");
+    addMessage("2021-06-01_10-00-00_Summer", "Summer &amp; sun");
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+
+    // One in a year that isn't listed yet, one in the middle of a year, one at the very end, and one at the start.
+    for (String dirName : new String[] {"2020-03-01_10-00-00_Leap", "2021-02-01_10-00-00_Snow",
+        "2022-12-31_10-00-00_Finally", "2018-01-01_10-00-00_Start"}) {
+      addMessage(dirName, dirName.substring(20));
+      MailIndexer.addToIndexHtml(journalDir.toString(), "index.html", dirName);
+    }
+    Map<String, String> incremental = indexFiles();
+    assertThat(incremental).containsOnlyKeys("index.html", "years.js", "2018.js", "2019.js", "2020.js", "2021.js", "2022.js");
+    assertThat(incremental.get("2021.js")).containsSubsequence("NewYear", "Snow", "Summer &amp; sun");
+    MailIndexer.addToIndexHtml(journalDir.toString(), "index.html", "2021-02-01_10-00-00_Snow");
+    assertThat(indexFiles()).isEqualTo(incremental);
+
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+    assertThat(incremental).isEqualTo(indexFiles());
+  }
+
+  @Test
+  void testUpgradesSinglePageIndex() throws Exception {
+    addMessage("2020-01-01_10-00-00_First", "First");
+    Files.writeString(journalDir.resolve("index.html"), "<html><table><tr class='row-2020'></tr></table></html>");
+    addMessage("2020-01-02_10-00-00_Second", "Second");
+    MailIndexer.addToIndexHtml(journalDir.toString(), "index.html", "2020-01-02_10-00-00_Second");
+
+    assertThat(journalDir.resolve("index.html")).content().contains("<tbody id='rows'></tbody>");
+    assertThat(journalDir.resolve(".index/years.js")).content().contains("[\"2020\",2]");
+    assertThat(journalDir.resolve(".index/2020.js")).content()
+        .contains("[\"2020-01-01_10-00-00_First\",\"First\"],\n[\"2020-01-02_10-00-00_Second\",\"Second\"]");
+  }
+
+  @Test
+  void testRebuildOnlyRereadsChangedFiles() throws Exception {
+    addMessage("2020-01-01_10-00-00_First", "First");
+    addMessage("2020-01-02_10-00-00_Second", "Second");
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+    assertThat(journalDir.resolve(TitleCache.CACHE_FILE)).exists();
+
+    // Same size and modification time, so the cached title should still be used.
+    Path first = journalDir.resolve("2020-01-01_10-00-00_First/2020-01-01_10-00-00_First.html");
+    FileTime mtime = Files.getLastModifiedTime(first);
+    Files.writeString(first, Files.readString(first).replace("First", "FIRST"));
+    Files.setLastModifiedTime(first, mtime);
+    // A changed file is read again.
+    addMessage("2020-01-02_10-00-00_Second", "Second, edited");
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+
+    String year = Files.readString(journalDir.resolve(".index/2020.js"));
+    assertThat(year).contains("\"First\"]").doesNotContain("FIRST").contains("\"Second, edited\"]");
+  }
+
+  /** Returns the contents of index.html and the files it loads the list of messages from, by name. */
+  private Map<String, String> indexFiles() throws Exception {
+    Map<String, String> files = new TreeMap<>();
+    files.put("index.html", Files.readString(journalDir.resolve("index.html")));
+    try (Stream<Path> yearFiles = Files.list(journalDir.resolve(IndexShards.INDEX_DIR))) {
+      for (Path file : yearFiles.toList()) {
+        files.put(file.getFileName().toString(), Files.readString(file));
+      }
+    }
+    return files;
+  }
+
+  private void addMessage(String dirName, String title) throws Exception {
+    Path dir = Files.createDirectories(journalDir.resolve(dirName));
+    Files.writeString(dir.resolve(dirName + ".html"), "<html><head><title>" + title + "</title></head><body></body></html>");
+  }
+}
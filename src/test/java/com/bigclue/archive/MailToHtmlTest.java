@@ -1,6 +1,17 @@
 package com.bigclue.archive;
 
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -14,6 +25,24 @@ class MailToHtmlTest {
     assertThat(MailToHtml.subjectToDirName("Whats Up - ...more stuff... ")).isEqualTo("MoreStuff");
   }
 
+  @Test
+  void testGetHtmlBodyKeepsContentAfterBody() {
+    assertThat(MailToHtml.getHtmlBody("<html><head><title>T</title></head><body>\n<p>Main</p>\n</body></html>\n"))
+        .hasToString("<p>Main</p>");
+    assertThat(MailToHtml.getHtmlBody("<html><body><p>Main</p></body></html>\n<p>Footer</p>"))
+        .hasToString("<p>Main</p>\n<p>Footer</p>");
+    assertThat(MailToHtml.getHtmlBody("<html><body><p>One</p></body></html><html><head><title>2</title></head><body><p>Two</p></body></html>"))
+        .hasToString("<p>One</p><p>Two</p>");
+  }
+
+  @Test
+  void testGetHtmlBodyKeepsContentBeforeBody() {
+    assertThat(MailToHtml.getHtmlBody("<html><head><title>T</title></head><p>Header</p>\n<body><p>Main</p></body></html>"))
+        .hasToString("<p>Header</p>\n<p>Main</p>");
+    assertThat(MailToHtml.getHtmlBody("<html><p>Header</p><body><p>Main</p></body></html>"))
+        .hasToString("<p>Header</p><p>Main</p>");
+  }
+
   @Test
   void testReplaceImageRef() {
     StringBuilder html = new StringBuilder();
@@ -23,5 +52,24 @@ class MailToHtmlTest {
     assertThat(MailToHtml.replaceInlineImageTag(html, target, replacement)).isTrue();
     assertThat(html.toString()).hasToString("<body><p><img src=\"actual_image.jpeg\"></p>");
   }
-}
 
+  @Test
+  void testSaveMessageWithInlineImage(@TempDir Path dir) throws Exception {
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setText("<html><body><div>Look at this:</div><div><img src=\"cid:photo@x\"></div></body></html>", "UTF-8", "html");
+    MimeBodyPart imagePart = new MimeBodyPart();
+    imagePart.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3}, "image/jpeg")));
+    imagePart.setFileName("photo.jpg");
+    imagePart.setContentID("<photo@x>");
+    MimeMultipart related = new MimeMultipart("related", htmlPart, imagePart);
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setContent(related);
+    message.saveChanges();
+
+    MailToHtml.saveMessageAsHtmlWithAttachments(message, dir, "entry", "What's up: Photos");
+    assertThat(Files.readString(dir.resolve("entry.orig.html")))
+        .contains("<title>Photos</title>").contains("<img src=\"photo.jpg\">").doesNotContain("cid:");
+    assertThat(Files.readString(dir.resolve("entry.html"))).contains("<p>Look at this:</p>\n<p><img src=\"photo.jpg\"></p>");
+    assertThat(dir.resolve("photo.jpg")).exists();
+  }
+}
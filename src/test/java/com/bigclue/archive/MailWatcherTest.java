@@ -0,0 +1,41 @@
+package com.bigclue.archive;
+
+import jakarta.mail.FolderClosedException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MailWatcherTest {
+  @TempDir
+  Path rootDir;
+
+  @Test
+  void testRetriesMessageWhoseSaveFailed() throws Exception {
+    FakeFolder.Connections connections = new FakeFolder.Connections();
+    List<FakeFolder.FakeMessage> messages = new ArrayList<>(FakeFolder.messages("Day", 3));
+    // The connection drops while the second message is being saved, the first time round.
+    messages.set(1, new FakeFolder.FakeMessage(2, "What's up: Dropped", new Date(1_600_100_000_000L), 1));
+    MailWatcher watcher = new MailWatcher(() -> new FakeFolder("What's Up", 7, messages, connections), rootDir.toString(),
+        "alice@example.com", "What's Up", new Prefetcher(10));
+
+    assertThatThrownBy(() -> watcher.archiveNewMessages(new FakeFolder("What's Up", 7, messages, connections)))
+        .isInstanceOf(FolderClosedException.class);
+    assertThat(SyncState.load(rootDir.toString(), "alice@example.com", "What's Up")).isNull();
+
+    // After reconnecting, the same watcher archives it, and only then moves the checkpoint past it.
+    watcher.archiveNewMessages(new FakeFolder("What's Up", 7, messages, connections));
+    try (var dirs = Files.list(rootDir)) {
+      assertThat(dirs.map(dir -> dir.getFileName().toString()).filter(name -> name.endsWith("_Dropped"))).hasSize(1);
+    }
+    assertThat(IndexShards.readYear(rootDir.resolve(IndexShards.INDEX_DIR), "2020")).hasSize(3);
+    assertThat(SyncState.load(rootDir.toString(), "alice@example.com", "What's Up")).isEqualTo(new SyncState.Checkpoint(7, 3));
+  }
+}
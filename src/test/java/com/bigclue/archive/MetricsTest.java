@@ -0,0 +1,139 @@
+package com.bigclue.archive;
+
+import jakarta.activation.DataHandler;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class MetricsTest {
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  void turnOff() {
+    Metrics.disable();
+  }
+
+  @Test
+  void testNestedStagesHaveSelfTime() throws Exception {
+    assertThat(Metrics.time(Metrics.Stage.CLEAN)).isSameAs(Metrics.time(Metrics.Stage.WRITE));
+    Metrics.enable();
+    Metrics.time(Metrics.Stage.CLEAN, () -> {
+      Thread.sleep(20);
+      Metrics.time(Metrics.Stage.WRITE, () -> Thread.sleep(50));
+    });
+    String json = Metrics.summaryJson();
+    assertThat(stat(json, "clean", "count")).isEqualTo(1);
+    assertThat(stat(json, "write", "count")).isEqualTo(1);
+    assertThat(stat(json, "clean", "totalMillis")).isGreaterThanOrEqualTo(70);
+    assertThat(stat(json, "clean", "selfMillis")).isBetween(20.0, stat(json, "clean", "totalMillis") - 50);
+    assertThat(stat(json, "write", "selfMillis")).isCloseTo(stat(json, "write", "totalMillis"), within(0.01));
+    assertThat(stat(json, "fetch", "count")).isZero();
+  }
+
+  @Test
+  @SuppressWarnings("try")
+  void testScopesRecordTheirOwnPart() {
+    assertThat(Metrics.newScope()).isNull();
+    Metrics.enable();
+    Metrics.Stats alice = Metrics.newScope();
+    try (Metrics.Scope scope = Metrics.enterScope(alice)) {
+      Metrics.count(Metrics.Counter.MESSAGES_ARCHIVED, 2);
+      Metrics.time(Metrics.Stage.DECODE).close();
+    }
+    Metrics.count(Metrics.Counter.MESSAGES_ARCHIVED, 3);
+    assertThat(Metrics.summaryJson()).contains("\"messagesArchived\": 5,");
+    assertThat(Metrics.summary(alice)).containsPattern("decode +1 runs").containsPattern("messages_archived +2");
+  }
+
+  @Test
+  void testHistogramPercentiles() {
+    Metrics.Histogram histogram = new Metrics.Histogram();
+    for (int micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros);
+    }
+    assertThat(histogram.count()).isEqualTo(1000);
+    assertThat(histogram.max()).isEqualTo(1000);
+    assertThat(histogram.percentile(50)).isBetween(440L, 500L);
+    assertThat(histogram.percentile(99)).isBetween(880L, 990L);
+    assertThat(histogram.percentile(0)).isEqualTo(1);
+  }
+
+  @Test
+  void testCountsArchivedMessages() throws Exception {
+    Metrics.enable();
+    Path summaryFile = dir.resolve("summary.json");
+    Path jfrFile = dir.resolve("run.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("com.bigclue.archive.Message");
+      recording.start();
+      Set<String> claimedDirs = ConcurrentHashMap.newKeySet();
+      String dirName = MailToHtml.archiveMessage(message(), dir.toString(), true, claimedDirs);
+      assertThat(MailToHtml.archiveMessage(message(), dir.toString(), true, claimedDirs)).isNull();
+      recording.stop();
+      recording.dump(jfrFile);
+      assertThat(dirName).endsWith("_Photos");
+    }
+    Metrics.writeSummary(summaryFile);
+
+    String json = Files.readString(summaryFile);
+    assertThat(json).contains("\"messagesArchived\": 1,").contains("\"messagesSkipped\": 1,")
+        .contains("\"attachments\": 1,").contains("\"attachmentBytes\": 3,");
+    assertThat(stat(json, "decode", "count")).isEqualTo(1);
+    assertThat(stat(json, "attachment", "count")).isEqualTo(1);
+    assertThat(stat(json, "clean", "count")).isEqualTo(1);
+    assertThat(stat(json, "write", "count")).isGreaterThan(2);
+    List<RecordedEvent> events = RecordingFile.readAllEvents(jfrFile);
+    assertThat(events).hasSize(1);
+    assertThat(events.get(0).getString("dirName")).endsWith("_Photos");
+    assertThat(events.get(0).getInt("attachmentCount")).isEqualTo(1);
+    assertThat(events.get(0).getLong("attachmentBytes")).isEqualTo(3);
+    assertThat(events.get(0).getLong("htmlBytes")).isPositive();
+  }
+
+  private static MimeMessage message() throws Exception {
+    MimeBodyPart textPart = new MimeBodyPart();
+    textPart.setText("A photo.", "UTF-8");
+    MimeBodyPart imagePart = new MimeBodyPart();
+    imagePart.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[] {1, 2, 3}, "image/jpeg")));
+    imagePart.setFileName("photo.jpg");
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties())) {
+      @Override
+      public Date getReceivedDate() {
+        return new Date(1_600_000_000_000L);
+      }
+    };
+    message.setSubject("What's up: Photos");
+    message.setContent(new MimeMultipart(textPart, imagePart));
+    message.saveChanges();
+    return message;
+  }
+
+  /** Returns one number from a stage in the JSON summary. */
+  private static double stat(String json, String stage, String name) {
+    Matcher matcher = Pattern.compile("\"" + stage + "\": \\{[^}]*\"" + name + "\": ([0-9.]+)").matcher(json);
+    assertThat(matcher.find()).as(stage + "." + name).isTrue();
+    return Double.parseDouble(matcher.group(1));
+  }
+}
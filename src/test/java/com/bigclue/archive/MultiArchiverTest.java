@@ -0,0 +1,179 @@
+package com.bigclue.archive;
+
+import jakarta.mail.MessagingException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MultiArchiverTest {
+  @TempDir
+  Path dir;
+  private String userHome;
+  /** Messages in each job's mailbox, by job name. */
+  private final Map<String, List<FakeFolder.FakeMessage>> mailboxes = new HashMap<>();
+  /** Connections to each account, by email. */
+  private final Map<String, FakeFolder.Connections> accounts = new HashMap<>();
+
+  @BeforeEach
+  void setHome() {
+    // Journal directories are relative to the home directory.
+    userHome = System.getProperty("user.home");
+    System.setProperty("user.home", dir.toString());
+  }
+
+  @AfterEach
+  void resetHome() {
+    System.setProperty("user.home", userHome);
+  }
+
+  @Test
+  void testLoadsJobs() throws Exception {
+    Path jobsFile = Files.writeString(dir.resolve("jobs.properties"), """
+        # One job per person
+        bob.email = bob@example.com
+        bob.journalDir = Documents/Journal/Bob
+        alice.email = alice@example.com
+        alice.mailbox = Family News
+        alice.journalDir = Documents/Journal/Alice
+        alice.credentials = /home/me/keys/alice
+        """);
+    assertThat(MultiArchiver.loadJobs(jobsFile)).containsExactly(
+        new MultiArchiver.Job("alice", "alice@example.com", "Family News", "Documents/Journal/Alice", Paths.get("/home/me/keys/alice")),
+        new MultiArchiver.Job("bob", "bob@example.com", "What's Up", "Documents/Journal/Bob", null));
+  }
+
+  @Test
+  void testRejectsBadJobs() throws Exception {
+    Path typo = Files.writeString(dir.resolve("typo.properties"), "alice.email = a@example.com\nalice.journaldir = J\n");
+    assertThatThrownBy(() -> MultiArchiver.loadJobs(typo)).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("alice.journaldir");
+    Path missing = Files.writeString(dir.resolve("missing.properties"), "alice.email = a@example.com\n");
+    assertThatThrownBy(() -> MultiArchiver.loadJobs(missing)).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("alice.journalDir");
+    assertThat(MultiArchiver.loadJobs(Files.writeString(dir.resolve("empty.properties"), ""))).isEqualTo(List.of());
+  }
+
+  @Test
+  @Timeout(30)
+  void testTakesJobsInTurnAndTakesOverIdleConnections() throws Exception {
+    mailboxes.put("a", FakeFolder.messages("A", 15));
+    mailboxes.put("b", FakeFolder.messages("B", 5));
+    List<MultiArchiver.Job> jobs = List.of(job("a", "alice@example.com", "A", "JournalA"), job("b", "alice@example.com", "B", "JournalB"));
+    // One thread, so one connection to the account, which the jobs take turns with.
+    MultiArchiver.archive(jobs, this::open, 1, 5, true, null);
+
+    FakeFolder.Connections alice = accounts.get("alice@example.com");
+    assertThat(alice.fetches).containsExactly("A:1,2,3,4,5", "B:1,2,3,4,5", "A:6,7,8,9,10", "A:11,12,13,14,15");
+    assertThat(alice.maxOpenCount.get()).isEqualTo(1);
+    assertThat(alice.openedCount.get()).isEqualTo(5);
+    assertThat(alice.openCount.get()).isZero();
+    assertThat(SyncState.load(rootDir("JournalA"), "alice@example.com", "A")).isEqualTo(new SyncState.Checkpoint(1, 15));
+    assertThat(SyncState.load(rootDir("JournalB"), "alice@example.com", "B")).isEqualTo(new SyncState.Checkpoint(1, 5));
+    assertThat(Paths.get(rootDir("JournalA"), "index.html")).exists();
+  }
+
+  @Test
+  @Timeout(30)
+  void testCapsConnectionsPerAccount() throws Exception {
+    List<MultiArchiver.Job> jobs = new ArrayList<>();
+    for (String name : List.of("a", "b", "c")) {
+      mailboxes.put(name, FakeFolder.messages(name, 20));
+      jobs.add(job(name, "alice@example.com", name, "Journal"));
+    }
+    mailboxes.put("d", FakeFolder.messages("d", 20));
+    jobs.add(job("d", "dave@example.com", "d", "Journal"));
+    MultiArchiver.archive(jobs, this::open, 3, 2, true, null);
+
+    assertThat(accounts.get("alice@example.com").maxOpenCount.get()).isLessThanOrEqualTo(3);
+    assertThat(accounts.get("alice@example.com").openCount.get()).isZero();
+    assertThat(accounts.get("dave@example.com").openCount.get()).isZero();
+    assertThat(Paths.get(rootDir("Journal")).toFile().list((d, name) -> name.startsWith("20"))).hasSize(80);
+  }
+
+  @Test
+  @Timeout(30)
+  void testFailedJobKeepsItsCheckpoint() throws Exception {
+    mailboxes.put("broken", new ArrayList<>(FakeFolder.messages("Broken", 10)));
+    mailboxes.get("broken").set(7, new FakeFolder.FakeMessage(8, "What's up: Unreadable", new Date(1_600_000_000_000L), Integer.MAX_VALUE));
+    mailboxes.put("good", FakeFolder.messages("Good", 12));
+    List<MultiArchiver.Job> jobs = List.of(job("bad", "alice@example.com", "Bad", "JournalBad"),
+        job("broken", "alice@example.com", "Broken", "JournalBroken"), job("good", "bob@example.com", "Good", "JournalGood"));
+    // With one thread, alice gets one connection, so the failed opens for "bad" must give theirs back for "broken" to run.
+    assertThatThrownBy(() -> MultiArchiver.archive(jobs, this::open, 1, 5, true, null))
+        .isInstanceOf(MessagingException.class).hasMessage("No such mailbox: Bad");
+
+    assertThat(SyncState.load(rootDir("JournalBad"), "alice@example.com", "Bad")).isNull();
+    assertThat(SyncState.load(rootDir("JournalBroken"), "alice@example.com", "Broken")).isNull();
+    // The messages before the unreadable one are archived; the batch it's in stops there, and there are no more.
+    assertThat(Paths.get(rootDir("JournalBroken")).toFile().list((d, name) -> name.startsWith("20") && !name.endsWith(".tmp"))).hasSize(7);
+    assertThat(SyncState.load(rootDir("JournalGood"), "bob@example.com", "Good")).isEqualTo(new SyncState.Checkpoint(1, 12));
+    assertThat(accounts.get("alice@example.com").openCount.get()).isZero();
+  }
+
+  @Test
+  @Timeout(30)
+  void testKeepsCheckpointsOfSameMailboxApart() throws Exception {
+    mailboxes.put("alice", FakeFolder.messages("Alice", 4));
+    mailboxes.put("bob", FakeFolder.messages("Bob", 6));
+    List<MultiArchiver.Job> jobs = List.of(job("alice", "alice@example.com", "What's Up", "Family"),
+        job("bob", "bob@example.com", "What's Up", "Family"));
+    MultiArchiver.archive(jobs, this::open, 2, 5, true, null);
+
+    assertThat(SyncState.load(rootDir("Family"), "alice@example.com", "What's Up")).isEqualTo(new SyncState.Checkpoint(1, 4));
+    assertThat(SyncState.load(rootDir("Family"), "bob@example.com", "What's Up")).isEqualTo(new SyncState.Checkpoint(1, 6));
+    assertThat(Paths.get(rootDir("Family")).toFile().list((d, name) -> name.startsWith("20"))).hasSize(10);
+  }
+
+  @Test
+  @Timeout(30)
+  void testTakesUpCheckpointFromBeforeAccounts() throws Exception {
+    // A journal archived before checkpoints were kept by account has its checkpoint under the mailbox alone.
+    Files.createDirectories(Paths.get(rootDir("Family")));
+    Properties legacy = new Properties();
+    legacy.setProperty("What's Up.uidValidity", "1");
+    legacy.setProperty("What's Up.lastUid", "4");
+    try (Writer out = Files.newBufferedWriter(Paths.get(rootDir("Family"), SyncState.STATE_FILE))) {
+      legacy.store(out, null);
+    }
+    mailboxes.put("alice", FakeFolder.messages("Alice", 6));
+    MultiArchiver.archive(List.of(job("alice", "alice@example.com", "What's Up", "Family")), this::open, 1, 5, true, null);
+
+    assertThat(accounts.get("alice@example.com").fetches).containsExactly("What's Up:5,6");
+    assertThat(SyncState.load(rootDir("Family"), "alice@example.com", "What's Up")).isEqualTo(new SyncState.Checkpoint(1, 6));
+    // Once replaced, the old checkpoint is gone, so another account's mailbox of the same name doesn't start from it.
+    assertThat(SyncState.load(rootDir("Family"), "bob@example.com", "What's Up")).isNull();
+  }
+
+  private FakeFolder open(MultiArchiver.Job job) throws MessagingException {
+    FakeFolder.Connections connections;
+    synchronized (accounts) {
+      connections = accounts.computeIfAbsent(job.email(), email -> new FakeFolder.Connections());
+    }
+    if (!mailboxes.containsKey(job.name())) {
+      throw new MessagingException("No such mailbox: " + job.mailbox());
+    }
+    return new FakeFolder(job.mailbox(), 1, mailboxes.get(job.name()), connections);
+  }
+
+  private static MultiArchiver.Job job(String name, String email, String mailbox, String journalDir) {
+    return new MultiArchiver.Job(name, email, mailbox, journalDir, null);
+  }
+
+  private static String rootDir(String journalDir) {
+    return MailToHtml.rootDirOf(journalDir);
+  }
+}
@@ -0,0 +1,62 @@
+package com.bigclue.archive;
+
+import jakarta.mail.FolderClosedException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParallelArchiverTest {
+  @TempDir
+  Path rootDir;
+
+  @Test
+  void testArchivesEveryBatchOnce() throws Exception {
+    FakeFolder.Connections connections = new FakeFolder.Connections();
+    List<FakeFolder.FakeMessage> messages = FakeFolder.messages("Day", 23);
+    long[] uids = LongStream.rangeClosed(1, 23).toArray();
+    int archivedCount = ParallelArchiver.archive(() -> new FakeFolder("INBOX", 1, messages, connections), uids,
+        rootDir.toString(), true, 3, new Prefetcher(5));
+
+    assertThat(archivedCount).isEqualTo(23);
+    assertThat(rootDir.toFile().list()).hasSize(23);
+    List<String> batches = new ArrayList<>(connections.fetches);
+    batches.sort(null);
+    assertThat(batches).containsExactly("INBOX:1,2,3,4,5", "INBOX:11,12,13,14,15", "INBOX:16,17,18,19,20",
+        "INBOX:21,22,23", "INBOX:6,7,8,9,10");
+    assertThat(connections.openedCount.get()).isEqualTo(3);
+    assertThat(connections.openCount.get()).isZero();
+  }
+
+  @Test
+  void testCapsConnections() throws Exception {
+    FakeFolder.Connections connections = new FakeFolder.Connections();
+    List<FakeFolder.FakeMessage> messages = FakeFolder.messages("Day", 40);
+    ParallelArchiver.archive(() -> new FakeFolder("INBOX", 1, messages, connections), LongStream.rangeClosed(1, 40).toArray(),
+        rootDir.toString(), true, 20, new Prefetcher(1));
+    assertThat(connections.openedCount.get()).isEqualTo(ParallelArchiver.MAX_CONNECTIONS);
+    assertThat(rootDir.toFile().list()).hasSize(40);
+  }
+
+  @Test
+  void testThrowsFirstFailureAfterWorkersStop() throws Exception {
+    FakeFolder.Connections connections = new FakeFolder.Connections();
+    List<FakeFolder.FakeMessage> messages = new ArrayList<>(FakeFolder.messages("Day", 30));
+    messages.set(6, new FakeFolder.FakeMessage(7, "What's up: Broken", new Date(1_600_000_000_000L), Integer.MAX_VALUE));
+    assertThatThrownBy(() -> ParallelArchiver.archive(() -> new FakeFolder("INBOX", 1, messages, connections),
+        LongStream.rangeClosed(1, 30).toArray(), rootDir.toString(), true, 3, new Prefetcher(5)))
+        .isInstanceOf(FolderClosedException.class);
+    // Every worker has closed its connection, and the broken message was never renamed into place.
+    assertThat(connections.openCount.get()).isZero();
+    assertThat(Arrays.stream(rootDir.toFile().listFiles()).map(File::getName)).noneMatch(name -> name.endsWith("_Broken"));
+  }
+}
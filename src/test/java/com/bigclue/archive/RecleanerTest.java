@@ -0,0 +1,52 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecleanerTest {
+  @TempDir
+  Path journalDir;
+
+  @Test
+  void testRecleansEveryMessageAndRebuildsIndex() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      addMessage(String.format("2020-01-%02d_10-00-00_Day_%d", i % 28 + 1, i), "Day " + i);
+    }
+    // Already clean, so it shouldn't be rewritten.
+    Path upToDate = journalDir.resolve("2020-01-01_10-00-00_Day_0/2020-01-01_10-00-00_Day_0.html");
+    Files.writeString(upToDate, HtmlCleaner.cleanHtml(Files.readString(journalDir.resolve(
+        "2020-01-01_10-00-00_Day_0/2020-01-01_10-00-00_Day_0.orig.html"))));
+    // Hidden and half-archived directories are left alone.
+    Files.createDirectories(journalDir.resolve(".blobs"));
+    addMessage("2020-02-01_10-00-00_Partial.tmp", "Partial");
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Recleaner.Result result;
+    try {
+      result = Recleaner.recleanArchive(journalDir.toString(), pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertThat(result.cleanedCount()).isEqualTo(40);
+    assertThat(result.changedCount()).isEqualTo(39);
+    assertThat(result.failedCount()).isZero();
+    Path dir = journalDir.resolve("2020-01-05_10-00-00_Day_4");
+    assertThat(Files.readString(dir.resolve(dir.getFileName() + ".html"))).contains("<p>Day 4 text</p>");
+    assertThat(journalDir.resolve("2020-02-01_10-00-00_Partial.tmp/2020-02-01_10-00-00_Partial.tmp.html")).doesNotExist();
+    assertThat(journalDir.resolve("index.html")).exists();
+    assertThat(Files.readString(journalDir.resolve(".index/2020.js"))).contains("\"Day 39\"]").doesNotContain("Partial");
+  }
+
+  private void addMessage(String dirName, String title) throws Exception {
+    Path dir = Files.createDirectories(journalDir.resolve(dirName));
+    Files.writeString(dir.resolve(dirName + ".orig.html"), "<html><head><title>" + title + "</title></head><body>"
+        + "<div><span>" + title + " text</span></div></body></html>");
+  }
+}
@@ -0,0 +1,114 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SearchIndexTest {
+  @TempDir
+  Path journalDir;
+
+  @Test
+  void testSearchesAndUpdatesIncrementally() throws Exception {
+    addMessage("2019-05-01_10-00-00_Spring", "Spring", "<p>Tulips in the garden.</p><p>Café on the corner.</p>");
+    addMessage("2020-07-04_10-00-00_Fireworks", "Fireworks", "<p>Fireworks over the lake; then tulips again.</p>");
+    addMessage("2021-01-01_10-00-00_NewYear", "New Year", "<p>Snow in the garden, 2021 begins.</p>");
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+
+    assertThat(SearchIndex.search(journalDir, "tulips")).containsExactly("2019-05-01_10-00-00_Spring", "2020-07-04_10-00-00_Fireworks");
+    assertThat(SearchIndex.search(journalDir, "Garden TULIPS")).containsExactly("2019-05-01_10-00-00_Spring");
+    assertThat(SearchIndex.search(journalDir, "cafe")).containsExactly("2019-05-01_10-00-00_Spring");
+    assertThat(SearchIndex.search(journalDir, "2021")).containsExactly("2021-01-01_10-00-00_NewYear");
+    assertThat(SearchIndex.search(journalDir, "zebra")).isEmpty();
+    assertThat(journalDir.resolve(".search/t-tu.js")).content().startsWith("searchShardLoaded(\"tu\",{\"tulips\":[0,1]");
+    assertThat(Files.readString(journalDir.resolve("index.html"))).contains("id='search'").contains("function runSearch()");
+
+    // Nothing changed, so nothing is read or written.
+    SearchIndex.Result result = SearchIndex.update(journalDir, htmlFiles("2019-05-01_10-00-00_Spring",
+        "2020-07-04_10-00-00_Fireworks", "2021-01-01_10-00-00_NewYear"));
+    assertThat(result.tokenizedCount()).isZero();
+    assertThat(result.writtenCount()).isZero();
+
+    // Only the new and the changed message are tokenized, and a shard that's no longer needed goes away.
+    addMessage("2020-01-01_10-00-00_Quiet", "Quiet", "<p>Nothing much.</p>");
+    Path changed = addMessage("2020-07-04_10-00-00_Fireworks", "Fireworks", "<p>Fireworks over the lake.</p>");
+    Files.setLastModifiedTime(changed, FileTime.fromMillis(Files.getLastModifiedTime(changed).toMillis() + 2000));
+    assertThat(journalDir.resolve(".search/t-zz.js")).doesNotExist();
+    Files.writeString(journalDir.resolve(".search/t-zz.js"), "stale");
+    result = SearchIndex.update(journalDir, htmlFiles("2019-05-01_10-00-00_Spring", "2020-01-01_10-00-00_Quiet",
+        "2020-07-04_10-00-00_Fireworks", "2021-01-01_10-00-00_NewYear"));
+    assertThat(result.docCount()).isEqualTo(4);
+    assertThat(result.tokenizedCount()).isEqualTo(2);
+    assertThat(journalDir.resolve(".search/t-zz.js")).doesNotExist();
+    assertThat(SearchIndex.search(journalDir, "tulips")).containsExactly("2019-05-01_10-00-00_Spring");
+    assertThat(SearchIndex.search(journalDir, "lake")).containsExactly("2020-07-04_10-00-00_Fireworks");
+    assertThat(SearchIndex.search(journalDir, "much")).containsExactly("2020-01-01_10-00-00_Quiet");
+  }
+
+  @Test
+  void testAddsMessageWithoutRebuilding() throws Exception {
+    addMessage("2019-05-01_10-00-00_Spring", "Spring", "<p>Tulips in the garden.</p>");
+    addMessage("2021-01-01_10-00-00_NewYear", "New Year", "<p>Snow in the garden.</p>");
+    MailIndexer.createIndexHtml(journalDir.toString(), "index.html");
+    FileTime before = FileTime.fromMillis(1_000_000_000_000L);
+    try (Stream<Path> files = Files.list(journalDir.resolve(".search"))) {
+      for (Path file : files.toList()) {
+        Files.setLastModifiedTime(file, before);
+      }
+    }
+
+    // A message from between the other two is numbered after them, and only the shards of its words are written.
+    addMessage("2020-07-04_10-00-00_Fireworks", "Fireworks", "<p>Fireworks over the lake; then tulips again.</p>");
+    MailIndexer.addToIndexHtml(journalDir.toString(), "index.html", "2020-07-04_10-00-00_Fireworks");
+    assertThat(Files.getLastModifiedTime(journalDir.resolve(".search/t-ga.js"))).isEqualTo(before);
+    assertThat(Files.getLastModifiedTime(journalDir.resolve(".search/t-sn.js"))).isEqualTo(before);
+    assertThat(journalDir.resolve(".search/t-tu.js")).content().startsWith("searchShardLoaded(\"tu\",{\"tulips\":[0,2]");
+    assertThat(journalDir.resolve(".search/t-la.js")).content().startsWith("searchShardLoaded(\"la\",{\"lake\":[2]");
+    List<String> queries = List.of("tulips", "garden", "lake", "fireworks tulips", "snow", "zebra");
+    List<List<String>> added = new ArrayList<>();
+    for (String query : queries) {
+      added.add(SearchIndex.search(journalDir, query));
+    }
+    assertThat(added.get(0)).containsExactly("2019-05-01_10-00-00_Spring", "2020-07-04_10-00-00_Fireworks");
+
+    // Adding it again changes nothing, and a full update finds the same messages, without reading any but the new one.
+    MailIndexer.addToIndexHtml(journalDir.toString(), "index.html", "2020-07-04_10-00-00_Fireworks");
+    SearchIndex.Result result = SearchIndex.update(journalDir, htmlFiles("2019-05-01_10-00-00_Spring",
+        "2020-07-04_10-00-00_Fireworks", "2021-01-01_10-00-00_NewYear"));
+    assertThat(result.tokenizedCount()).isZero();
+    assertThat(journalDir.resolve(".search/t-tu.js")).content().startsWith("searchShardLoaded(\"tu\",{\"tulips\":[0,1]");
+    for (int i = 0; i < queries.size(); i++) {
+      assertThat(SearchIndex.search(journalDir, queries.get(i))).isEqualTo(added.get(i));
+    }
+  }
+
+  @Test
+  void testTokenizesLikeThePage() {
+    assertThat(SearchIndex.tokenize("Crème Brûlée, a tasty ÉCLAIR & 42 x")).containsExactly("42", "brulee", "creme", "eclair", "tasty");
+    assertThat(SearchIndex.shardOf("creme")).isEqualTo("cr");
+    assertThat(SearchIndex.shardOf("日本")).isEqualTo("_65e5_672c");
+  }
+
+  private Path addMessage(String dirName, String title, String body) throws Exception {
+    Path dir = Files.createDirectories(journalDir.resolve(dirName));
+    Path htmlFile = dir.resolve(dirName + ".html");
+    Files.writeString(htmlFile, "<html><head><title>" + title + "</title></head><body>" + body + "</body></html>");
+    return htmlFile;
+  }
+
+  private List<Path> htmlFiles(String... dirNames) {
+    List<Path> files = new ArrayList<>();
+    for (String dirName : dirNames) {
+      files.add(journalDir.resolve(dirName).resolve(dirName + ".html"));
+    }
+    return files;
+  }
+}
@@ -0,0 +1,56 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SinglePassCleanerTest {
+  @Test
+  void testSameAsRegexVersion() {
+    String[] bodies = {
+        "",
+        "   ",
+        "a<br>b<br>c",
+        "a<br>bc<br>d",
+        "a <span> </span> <BR class='x'> <font>b</font>",
+        "a<br> <br>b",
+        "a<br><img src='x.jpg'>b",
+        "text <img src='x.jpg'> more",
+        "<p>&nbsp;</p><p>&nbsp;&nbsp;</p><p>&NBSP; x &nbsp;</p>",
+        "a<br>&nbsp;<br>b",
+        "x&nbsp;<br>&nbsp;&nbsp;y",
+        "<pre>code</pre><param><picture>z</picture>",
+        "</br>one<br/>two",
+        "unclosed <br",
+        "a < b<br>c > d",
+        "x <<br>y",
+        "<a title=\"<span>\">link</a><br>z",
+        "literal <ß> and <¶> markers",
+        "\u0001<div>\u0001</div>\u0001",
+        "<a href='x'><img src='y'></a>",
+    };
+    for (String body : bodies) {
+      assertThat(HtmlCleaner.cleanBody(body)).as(body).isEqualTo(HtmlCleaner.cleanBodyRegex(body));
+    }
+  }
+
+  @Test
+  void testSameAsRegexVersionForRandomBodies() {
+    String[] tokens = {"a", "b", "&nbsp;", "&NBSP;", " ", "\n", "\t", ";", ">", "<br>", "<BR/>", "</br>", "<p>",
+        "</p>", "<div class='x'>", "</div>", "<span>", "</span>", "<font size=3>", "<blockquote>", "<img src='i'>",
+        "<b>", "</b>", "<a href='h'>", "</a>", "<pre>", "<ß>", "<", "<a title='",
+        "<table class=\"tr-caption-container\">", "</table>", "<td>", "</td>", "</ p>", "\u2028"};
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder body = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        body.append(tokens[random.nextInt(tokens.length)]);
+      }
+      String input = body.toString();
+      assertThat(HtmlCleaner.cleanBody(input)).as(input).isEqualTo(HtmlCleaner.cleanBodyRegex(input));
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.bigclue.archive;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingHtmlCleanerTest {
+  @Test
+  void testSameAsCleaningAtOnce() throws Exception {
+    String[] documents = {
+        "",
+        "<html><head><title>t</title></head><body><div>a</div><div>b</div></body></html>\n",
+        "<div>No body here</div>",
+        "<html><body><div>one</div><div>two</div>",
+        "<html><body><div>one</div><!-- </body> --><div>two</div></body><p>after</p></html>",
+        "<html><body><div>one</div><div>two</div></html><div>three</div>",
+        "<html></html><body><div>one</div></html><div>two</div>",
+        "<body><div><a href='x'></div><div><img src='y'></div><div></a></div><div>z</div></body>",
+        "<body><div>x</div><table class=\"tr-caption-container\" style=\"a\"><tr><td>c</td></tr></table><div>y</div><div>z</div></body>",
+        "<body><div>x</div><div>unclosed <!-- comment <div>y</div>",
+        "<body><div>x</div><div>y</div></BODY >",
+        "<body><div><a href='x'>link</a> after</div><div>y</div><div><a href='z'>m</a></div></body>",
+    };
+    for (String document : documents) {
+      for (int windowSize : new int[] {1, 7, 64}) {
+        assertThat(clean(document, windowSize, 3)).as(document).isEqualTo(HtmlCleaner.cleanHtmlInMemory(document));
+      }
+    }
+  }
+
+  @Test
+  void testSameAsCleaningAtOnceForRandomDocuments() throws Exception {
+    String[] tokens = {"a", "b c", " ", "\n", "&nbsp;", "<br>", "</br>", "<p>", "</p>", "<div>", "</div>", "<div><br></div>",
+        "<span>", "</span>", "<img src='i'>", "<a href='h'>", "</a>", "<table class=\"tr-caption-container\" x>",
+        "</table>", "<td>", "</td>", "</ p>", "<", ">", "<!--", "-->", "</body>", "</html>", " ", "<pre>"};
+    String[] starts = {"", "<html><head><title>t</title></head>\n<body>", "<body class='x'>", "<html></html><body>"};
+    Random random = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder document = new StringBuilder(starts[random.nextInt(starts.length)]);
+      int length = random.nextInt(20);
+      for (int j = 0; j < length; j++) {
+        document.append(tokens[random.nextInt(tokens.length)]);
+      }
+      String input = document.toString();
+      String expected = HtmlCleaner.cleanHtmlInMemory(input);
+      assertThat(clean(input, 1 + random.nextInt(16), 1 + random.nextInt(5))).as(input).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void testSplitsLongBodies() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      body.append("<div>Line ").append(i).append(" of a <span>long</span> letter<br>with two lines</div><div><br></div>")
+          .append(i % 10 == 0 ? "<div><a href='full.jpg'><img src='small.jpg'></a></div>" : "");
+    }
+    String document = "<html><head><title>Long</title></head><body>" + body + "</body></html>\n";
+    StringWriter out = new StringWriter();
+    TrackingWriter tracking = new TrackingWriter(out);
+    StreamingHtmlCleaner.cleanHtml(new StringReader(document), tracking, 4096);
+    assertThat(out.toString()).isEqualTo(HtmlCleaner.cleanHtmlInMemory(document));
+    // The output came out in many pieces, not all at the end.
+    assertThat(tracking.writeCount).isGreaterThan(50);
+  }
+
+  private static String clean(String document, int windowSize, int charsPerRead) throws IOException {
+    StringWriter out = new StringWriter();
+    StreamingHtmlCleaner.cleanHtml(new TrickleReader(new StringReader(document), charsPerRead), out, windowSize);
+    return out.toString();
+  }
+
+  /** Returns at most a few chars per read, so that tags and comments get split between reads. */
+  private static class TrickleReader extends FilterReader {
+    private final int charsPerRead;
+
+    TrickleReader(Reader in, int charsPerRead) {
+      super(in);
+      this.charsPerRead = charsPerRead;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      return super.read(cbuf, off, Math.min(len, charsPerRead));
+    }
+  }
+
+  private static class TrackingWriter extends java.io.FilterWriter {
+    private int writeCount = 0;
+
+    TrackingWriter(java.io.Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      writeCount++;
+      super.write(str, off, len);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.bigclue.archive;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * A local HTTP server for tests, answering on many threads at once and keeping track of how many requests it was
+ *   answering at the same time.
+ */
+class TestHttpServer implements AutoCloseable {
+  private final HttpServer server;
+  private final ExecutorService serverThreads;
+  private final Handler handler;
+  private final ToLongFunction<String> delayMillis;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  /** Answers one request. The exchange is closed afterwards. */
+  interface Handler {
+    void handle(HttpExchange exchange) throws IOException;
+  }
+
+  private TestHttpServer(Handler handler, ToLongFunction<String> delayMillis) throws IOException {
+    this.handler = handler;
+    this.delayMillis = delayMillis;
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    serverThreads = Executors.newFixedThreadPool(16);
+    server.setExecutor(serverThreads);
+    server.createContext("/", this::handle);
+  }
+
+  /**
+   * Starts a server on a free port.
+   * @param handler - answers each request
+   * @param delayMillis - how long to wait before answering a request for the given path, so that other requests
+   *                    have time to start and be counted as in flight at the same time
+   */
+  static TestHttpServer start(Handler handler, ToLongFunction<String> delayMillis) throws IOException {
+    TestHttpServer testServer = new TestHttpServer(handler, delayMillis);
+    testServer.server.start();
+    return testServer;
+  }
+
+  String baseUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /** The most requests that were being answered at the same time. */
+  int maxInFlight() {
+    return maxInFlight.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    serverThreads.shutdown();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      long delay = delayMillis.applyAsLong(exchange.getRequestURI().getPath());
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+      handler.handle(exchange);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+      exchange.close();
+    }
+  }
+}